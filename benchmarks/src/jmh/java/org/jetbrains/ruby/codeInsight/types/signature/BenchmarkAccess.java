@@ -0,0 +1,16 @@
+package org.jetbrains.ruby.codeInsight.types.signature;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Entry points of the benchmarks to the package-private parts of the contracts
+ */
+public final class BenchmarkAccess {
+
+    private BenchmarkAccess() {
+    }
+
+    public static void minimize(@NotNull RSignatureContract contract) {
+        contract.minimize();
+    }
+}
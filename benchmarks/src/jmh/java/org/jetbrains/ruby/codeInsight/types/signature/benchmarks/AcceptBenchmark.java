@@ -0,0 +1,121 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SignatureContract.Companion#accept(SignatureContract, RTuple)} for the tuples
+ * which are already read by the contract, i.e. the common case during ingest.
+ * <p>
+ * Run with the gc profiler (enabled in the build script) and check {@code gc.alloc.rate.norm}:
+ * {@link #acceptSameTuples} is expected to allocate nothing, {@link #acceptNewTuples} allocates only
+ * the tuples themselves and their transitions which are calculated once per tuple.
+ * <p>
+ * {@link #acceptReplayedTrace} and {@link #acceptAllReplayedTrace} check a trace in which every call
+ * is repeated a few times, one by one and with a single batch call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptBenchmark {
+    private static final int TUPLE_COUNT = 64;
+    private static final int REPLAY_COUNT = 4;
+
+    @Param({"2", "6"})
+    public int arity;
+
+    @Param({"4"})
+    public int typesPerPosition;
+
+    private SignatureContract myContract;
+    private List<RTuple> myTuples;
+    private List<RTuple> myReplayedTrace;
+    private List<List<String>> myArgsTypes;
+    private List<String> myReturnTypes;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final MethodInfo methodInfo = MethodInfoKt.MethodInfo(ClassInfoKt.ClassInfo("Bench::Klass"),
+                "bench", RVisibility.PUBLIC);
+        final List<ParameterInfo> argsInfo = new ArrayList<>();
+        for (int i = 0; i < arity; i++) {
+            argsInfo.add(new ParameterInfo("arg" + i, ParameterInfo.Type.REQ));
+        }
+
+        myTuples = new ArrayList<>();
+        myArgsTypes = new ArrayList<>();
+        myReturnTypes = new ArrayList<>();
+        RSignatureContract contract = null;
+        for (int i = 0; i < TUPLE_COUNT; i++) {
+            final List<String> argsTypes = new ArrayList<>();
+            for (int j = 0; j < arity; j++) {
+                argsTypes.add("Type" + random.nextInt(typesPerPosition));
+            }
+            final String returnType = "Type" + random.nextInt(typesPerPosition);
+            final RTuple tuple = new RTuple(methodInfo, argsInfo, argsTypes, returnType);
+
+            if (contract == null) {
+                contract = new RSignatureContract(tuple);
+            } else {
+                contract.addRTuple(tuple);
+            }
+            myTuples.add(tuple);
+            myArgsTypes.add(argsTypes);
+            myReturnTypes.add(returnType);
+        }
+        myContract = contract;
+
+        myReplayedTrace = new ArrayList<>();
+        for (int i = 0; i < myTuples.size(); i++) {
+            final RTuple template = myTuples.get(i);
+            for (int j = 0; j < REPLAY_COUNT; j++) {
+                myReplayedTrace.add(new RTuple(template.getMethodInfo(), template.getArgsInfo(),
+                        myArgsTypes.get(i), myReturnTypes.get(i)));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TUPLE_COUNT)
+    public void acceptSameTuples(Blackhole blackhole) {
+        for (final RTuple tuple : myTuples) {
+            blackhole.consume(SignatureContract.Companion.accept(myContract, tuple));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TUPLE_COUNT * REPLAY_COUNT)
+    public void acceptReplayedTrace(Blackhole blackhole) {
+        for (final RTuple tuple : myReplayedTrace) {
+            blackhole.consume(SignatureContract.Companion.accept(myContract, tuple));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TUPLE_COUNT * REPLAY_COUNT)
+    public BitSet acceptAllReplayedTrace() {
+        return SignatureContract.Companion.acceptAll(myContract, myReplayedTrace);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TUPLE_COUNT)
+    public void acceptNewTuples(Blackhole blackhole) {
+        for (int i = 0; i < myTuples.size(); i++) {
+            final RTuple template = myTuples.get(i);
+            final RTuple tuple = new RTuple(template.getMethodInfo(), template.getArgsInfo(),
+                    myArgsTypes.get(i), myReturnTypes.get(i));
+            blackhole.consume(SignatureContract.Companion.accept(myContract, tuple));
+        }
+    }
+}
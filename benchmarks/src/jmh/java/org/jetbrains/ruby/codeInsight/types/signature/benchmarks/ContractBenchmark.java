@@ -0,0 +1,57 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building, merging and querying {@link RSignatureContract}s on the {@link ContractWorkload} data.
+ * <p>
+ * Contracts publish a new version on every modification, so the benchmarks modifying a contract
+ * start from a new one on every invocation and include building it:
+ * the cost of {@code minimize} is the difference between {@link #addRTuplesAndMinimize} and {@link #addRTuples}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContractBenchmark {
+
+    @Benchmark
+    public RSignatureContract addRTuples(ContractWorkload workload) {
+        return ContractWorkload.buildContract(workload.tuples);
+    }
+
+    @Benchmark
+    public RSignatureContract addRTuplesAndMinimize(ContractWorkload workload) {
+        final RSignatureContract contract = ContractWorkload.buildContract(workload.tuples);
+        BenchmarkAccess.minimize(contract);
+        return contract;
+    }
+
+    /**
+     * Copies the contract into a new one and merges the other contract into the copy
+     */
+    @Benchmark
+    public RSignatureContract mergeWith(ContractWorkload workload) {
+        return RSignatureContract.mergeMutably(workload.contract.snapshot(), workload.otherContract);
+    }
+
+    @Benchmark
+    public Set<String> getAllReturnTypes(ContractWorkload workload) {
+        return SignatureContract.Companion.getAllReturnTypes(workload.contract);
+    }
+
+    @Benchmark
+    public ReturnTypeSummary calculateReturnTypeSummary(ContractWorkload workload) {
+        return ReturnTypeSummary.calculate(workload.contract);
+    }
+
+    @Benchmark
+    public Set<String> inferReturnTypes(ContractWorkload workload) {
+        return new TypeSetInference().inferReturnTypeNames(workload.contract, workload.unionArgumentTypes);
+    }
+}
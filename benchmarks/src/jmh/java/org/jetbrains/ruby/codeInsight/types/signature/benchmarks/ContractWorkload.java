@@ -0,0 +1,127 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.*;
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.IndexedSignatureContractKt;
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContractSerializationKt;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Synthetic call data shared by the contract benchmarks.
+ * <ul>
+ * <li>{@code arity} is the number of arguments of the method;</li>
+ * <li>{@code typeCardinality} is the number of distinct types seen at each position;</li>
+ * <li>{@code tupleCount} is the number of (not necessarily distinct) tuples read by the contract;</li>
+ * <li>{@code megamorphicPositions} is the number of leading positions seeing a new type in (almost) every tuple,
+ * as the arguments of serializers or {@code send}-based dispatchers do.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+public class ContractWorkload {
+    @Param({"2", "6"})
+    public int arity;
+
+    @Param({"4"})
+    public int typeCardinality;
+
+    @Param({"256"})
+    public int tupleCount;
+
+    @Param({"0", "1"})
+    public int megamorphicPositions;
+
+    /**
+     * Tuples read by {@link #contract}
+     */
+    public List<RTuple> tuples;
+    /**
+     * Tuples generated with another seed, a half of them is not read by {@link #contract}
+     */
+    public List<RTuple> otherTuples;
+
+    public RSignatureContract contract;
+    public RSignatureContract otherContract;
+    public byte[] serializedContract;
+    public byte[] compactSerializedContract;
+    public byte[] indexedSerializedContract;
+
+    /**
+     * Argument types of a call with union types at each position
+     */
+    public List<Set<String>> unionArgumentTypes;
+
+    private MethodInfo myMethodInfo;
+    private List<ParameterInfo> myArgsInfo;
+
+    @Setup
+    public void setUp() throws IOException {
+        myMethodInfo = MethodInfoKt.MethodInfo(ClassInfoKt.ClassInfo("Bench::Klass"), "bench", RVisibility.PUBLIC);
+        myArgsInfo = new ArrayList<>();
+        for (int i = 0; i < arity; i++) {
+            myArgsInfo.add(new ParameterInfo("arg" + i, ParameterInfo.Type.REQ));
+        }
+
+        tuples = generateTuples(42);
+        otherTuples = new ArrayList<>(tuples.subList(0, tupleCount / 2));
+        otherTuples.addAll(generateTuples(24).subList(tupleCount / 2, tupleCount));
+
+        contract = buildContract(tuples);
+        BenchmarkAccess.minimize(contract);
+        otherContract = buildContract(otherTuples);
+        BenchmarkAccess.minimize(otherContract);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SignatureContractSerializationKt.serialize(contract, new DataOutputStream(bytes));
+        serializedContract = bytes.toByteArray();
+
+        final ByteArrayOutputStream compactBytes = new ByteArrayOutputStream();
+        SignatureContractSerializationKt.serializeCompact(contract, new DataOutputStream(compactBytes));
+        compactSerializedContract = compactBytes.toByteArray();
+
+        final ByteArrayOutputStream indexedBytes = new ByteArrayOutputStream();
+        IndexedSignatureContractKt.serializeIndexed(contract, new DataOutputStream(indexedBytes));
+        indexedSerializedContract = indexedBytes.toByteArray();
+
+        unionArgumentTypes = new ArrayList<>();
+        for (int i = 0; i < arity; i++) {
+            unionArgumentTypes.add(new HashSet<>(Arrays.asList(typeName(i, 0), typeName(i, 1))));
+        }
+    }
+
+    public List<RTuple> generateTuples(long seed) {
+        final Random random = new Random(seed);
+        final List<RTuple> result = new ArrayList<>(tupleCount);
+
+        for (int i = 0; i < tupleCount; i++) {
+            final List<String> argsTypes = new ArrayList<>(arity);
+            for (int j = 0; j < arity; j++) {
+                argsTypes.add(j < megamorphicPositions
+                        ? "Megamorphic" + seed + "_" + i
+                        : typeName(j, random.nextInt(typeCardinality)));
+            }
+            final String returnType = typeName(arity, random.nextInt(typeCardinality));
+            result.add(new RTuple(myMethodInfo, myArgsInfo, argsTypes, returnType));
+        }
+
+        return result;
+    }
+
+    /**
+     * Types of the different positions overlap, so that the contracts have reference transitions as well
+     */
+    private static String typeName(int position, int index) {
+        return "Type" + (position + index) % 8;
+    }
+
+    public static RSignatureContract buildContract(List<RTuple> tuples) {
+        final RSignatureContract contract = new RSignatureContract(tuples.get(0));
+        for (int i = 1; i < tuples.size(); i++) {
+            contract.addRTuple(tuples.get(i));
+        }
+        return contract;
+    }
+}
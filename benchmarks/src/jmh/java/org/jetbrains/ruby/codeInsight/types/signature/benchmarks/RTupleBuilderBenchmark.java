@@ -0,0 +1,70 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.ParameterInfo;
+import org.jetbrains.ruby.codeInsight.types.signature.RTuple;
+import org.jetbrains.ruby.runtime.signature.server.serialisation.RTupleBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the call data sent by the Ruby side, one JSON line per call.
+ * The methods have {@code arity} arguments: required, then optional, then keyword ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTupleBuilderBenchmark {
+
+    @Param({"2", "6"})
+    public int arity;
+
+    private String myJson;
+    private List<ParameterInfo> myArgsInfo;
+    private List<String> myKwArgs;
+
+    @Setup
+    public void setUp() {
+        final ParameterInfo.Type[] modifiers = {ParameterInfo.Type.REQ, ParameterInfo.Type.OPT, ParameterInfo.Type.KEY};
+
+        myArgsInfo = new ArrayList<>();
+        myKwArgs = new ArrayList<>();
+        final List<String> argsInfo = new ArrayList<>();
+        for (int i = 0; i < arity; i++) {
+            final ParameterInfo.Type modifier = modifiers[i * modifiers.length / arity];
+            myArgsInfo.add(new ParameterInfo("arg" + i, modifier));
+            argsInfo.add(modifier + ",Type" + i + ",arg" + i);
+            if (modifier == ParameterInfo.Type.KEY) {
+                myKwArgs.add("arg" + i);
+            }
+        }
+
+        myJson = "{\"method_name\":\"bench\",\"call_info_mid\":\"bench\",\"receiver_name\":\"Bench::Klass\"," +
+                "\"visibility\":\"PUBLIC\",\"return_type_name\":\"String\"," +
+                "\"call_info_argc\":\"" + arity + "\",\"args_type_name\":\"\"," +
+                "\"args_info\":\"" + String.join(";", argsInfo) + "\"," +
+                "\"call_info_kw_args\":\"" + String.join(",", myKwArgs) + "\"," +
+                "\"path\":\"/gems/bench-1.0.0/lib/bench.rb\",\"lineno\":42}";
+    }
+
+    @Benchmark
+    public RTuple fromJson() {
+        return RTupleBuilder.fromJson(myJson);
+    }
+
+    @Benchmark
+    public boolean[] calcPresentArguments() {
+        return RTupleBuilder.calcPresentArguments(myArgsInfo, arity, myKwArgs);
+    }
+
+    @Benchmark
+    public boolean[] calcPresentArgumentsWithoutKwArgs() {
+        return RTupleBuilder.calcPresentArguments(myArgsInfo, arity - myKwArgs.size(), Collections.emptyList());
+    }
+}
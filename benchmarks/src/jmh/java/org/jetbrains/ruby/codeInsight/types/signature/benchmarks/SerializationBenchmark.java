@@ -0,0 +1,61 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureContract;
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.IndexedSignatureContract;
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContractSerializationKt;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link #acceptCompact} and {@link #acceptIndexed} answer a single query about a stored contract:
+ * the former decodes the whole contract first, the latter reads only the nodes on the path of the tuple.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Benchmark
+    public byte[] serialize(ContractWorkload workload) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(workload.serializedContract.length);
+        SignatureContractSerializationKt.serialize(workload.contract, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public SignatureContract deserialize(ContractWorkload workload) {
+        return SignatureContractSerializationKt.SignatureContract(
+                new DataInputStream(new ByteArrayInputStream(workload.serializedContract)));
+    }
+
+    @Benchmark
+    public byte[] serializeCompact(ContractWorkload workload) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(workload.compactSerializedContract.length);
+        SignatureContractSerializationKt.serializeCompact(workload.contract, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public SignatureContract deserializeCompact(ContractWorkload workload) throws IOException {
+        return SignatureContractSerializationKt.readSignatureContract(
+                new DataInputStream(new ByteArrayInputStream(workload.compactSerializedContract)));
+    }
+
+    @Benchmark
+    public boolean acceptCompact(ContractWorkload workload) throws IOException {
+        final SignatureContract contract = SignatureContractSerializationKt.readSignatureContract(
+                new DataInputStream(new ByteArrayInputStream(workload.compactSerializedContract)));
+        return SignatureContract.Companion.accept(contract, workload.otherTuples.get(workload.otherTuples.size() - 1));
+    }
+
+    @Benchmark
+    public boolean acceptIndexed(ContractWorkload workload) {
+        final SignatureContract contract = new IndexedSignatureContract(ByteBuffer.wrap(workload.indexedSerializedContract));
+        return SignatureContract.Companion.accept(contract, workload.otherTuples.get(workload.otherTuples.size() - 1));
+    }
+}
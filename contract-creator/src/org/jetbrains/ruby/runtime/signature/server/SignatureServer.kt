@@ -1,23 +1,22 @@
 package org.jetbrains.ruby.runtime.signature.server
 
 import com.google.gson.JsonParseException
-import org.jetbrains.exposed.sql.SchemaUtils
 import org.jetbrains.exposed.sql.transactions.transaction
 import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.storage.server.CachingSignatureStorage
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
 import org.jetbrains.ruby.codeInsight.types.storage.server.DiffPreservingStorage
 import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureStorage
 import org.jetbrains.ruby.codeInsight.types.storage.server.SignatureStorageImpl
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.ClassInfoTable
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.GemInfoTable
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.MethodInfoTable
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.SignatureTable
+import org.jetbrains.ruby.codeInsight.types.storage.server.impl.DatabaseSchema
+import org.jetbrains.ruby.codeInsight.types.storage.server.impl.TypeIndex
 import org.jetbrains.ruby.runtime.signature.server.serialisation.RTupleBuilder
 import java.io.BufferedReader
 import java.io.IOException
 import java.io.InputStreamReader
 import java.net.ServerSocket
 import java.net.Socket
+import java.util.*
 import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
@@ -29,8 +28,47 @@ object SignatureServer {
 
     private val LOGGER = Logger.getLogger("SignatureServer")
 
-    private val mainContainer = DiffPreservingStorage(SignatureStorageImpl(), SignatureStorageImpl())
-    private val newSignaturesContainer = RSignatureContractContainer()
+    /**
+     * All the reads and writes of the stored signatures go through the cache, so that the type provider
+     * reads the database only on the first lookup of a method
+     */
+    private val mainContainer = CachingSignatureStorage(DiffPreservingStorage(SignatureStorageImpl(), SignatureStorageImpl()))
+    /**
+     * Counting observations requires every tuple to be added, so the known ones are not skipped then
+     */
+    private val countObservations = java.lang.Boolean.getBoolean("contract.observation.counters")
+    private val newSignaturesContainer = ConcurrentRSignatureContractContainer(countObservations = countObservations)
+    @Volatile
+    private var merger = ParallelContractMerger()
+
+    /**
+     * Positions of the stored contracts reading more types than that are generalized with the [typeHierarchy]
+     */
+    private val generalizationThreshold = Integer.getInteger("contract.generalization.threshold", 0)
+
+    /**
+     * Hierarchy of the traced classes, once it is set and [generalizationThreshold] is positive the sibling
+     * types of the stored contracts are replaced with their common ancestors, see [RSignatureContract.generalize]
+     */
+    var typeHierarchy: TypeHierarchy? = null
+        set(value) {
+            field = value
+            merger = if (value != null && generalizationThreshold > 0)
+                ParallelContractMerger(typeHierarchy = value, maxTypes = generalizationThreshold)
+            else
+                ParallelContractMerger()
+        }
+
+    /**
+     * Estimated size in bytes the contracts not yet flushed to the storage may take, see [ContractSizeEstimator].
+     * Once it is exceeded the least recently updated contracts are stored right away.
+     */
+    private val memoryBudget = System.getProperty("contract.memory.budget")?.toLongOrNull()
+            ?: Runtime.getRuntime().maxMemory() / 4
+    private const val MEMORY_CHECK_INTERVAL = 1024
+    private const val BATCH_SIZE = 256
+    private var tuplesSinceStart = 0
+    val evictedContracts = AtomicLong(0)
 
     private val queue = ArrayBlockingQueue<String>(10024)
     private val isReady = AtomicBoolean(true)
@@ -43,7 +81,8 @@ object SignatureServer {
 
         DatabaseProvider.connect()
 
-        transaction { SchemaUtils.create(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable) }
+        transaction { DatabaseSchema.create() }
+        TypeIndex.ensureBuilt()
 
         Thread {
             val server = SignatureServer
@@ -60,7 +99,7 @@ object SignatureServer {
     }
 
     fun getContract(info: MethodInfo): SignatureContract? {
-        return mainContainer.getSignature(info)?.contract?.let { (it as? RSignatureContract)?.copy() ?: it }
+        return mainContainer.getSignature(info)?.contract?.let { (it as? RSignatureContract)?.snapshot() ?: it }
     }
 
     fun getContractByMethodAndReceiverName(methodName: String, receiverName: String): SignatureContract? {
@@ -73,6 +112,11 @@ object SignatureServer {
 
     fun getStorage() = mainContainer
 
+    /**
+     * @return estimated size in bytes of the contracts not yet flushed to the storage
+     */
+    fun getContractsMemoryUsage(): Long = newSignaturesContainer.estimatedSize
+
     fun isProcessingRequests() = !isReady.get()
 
     fun runServer() {
@@ -89,6 +133,10 @@ object SignatureServer {
         }
     }
 
+    /**
+     * Takes all the queued strings (up to [BATCH_SIZE]) at once, so that the tuples of a batch are
+     * checked against the contracts together
+     */
     private fun pollJson() {
         val jsonString = queue.poll(5, TimeUnit.SECONDS)
         if (jsonString == null) {
@@ -97,48 +145,79 @@ object SignatureServer {
             return
         }
 
-        try {
-            parseJson(jsonString)
+        val jsonStrings = ArrayList<String>(BATCH_SIZE)
+        jsonStrings.add(jsonString)
+        queue.drainTo(jsonStrings, BATCH_SIZE - 1)
+
+        addTuples(jsonStrings.mapNotNull { parseJson(it) })
+
+        tuplesSinceStart += jsonStrings.size
+        if (tuplesSinceStart > MEMORY_CHECK_INTERVAL) {
+            tuplesSinceStart = 0
+            enforceMemoryBudget()
+        }
+    }
+
+    private fun parseJson(jsonString: String): RTuple? {
+        val currRTuple = try {
+            ben(jsonTome) { RTupleBuilder.fromJson(jsonString) }
         } catch (e: JsonParseException) {
             LOGGER.severe("!$jsonString!\n$e")
+            return null
         }
+
+        if (currRTuple?.methodInfo?.classInfo?.classFQN?.startsWith("#<") == true) {
+            return null
+        }
+        return currRTuple
     }
 
-    private fun parseJson(jsonString: String) {
-        val currRTuple = ben(jsonTome) { RTupleBuilder.fromJson(jsonString) }
+    private fun addTuples(tuples: List<RTuple>) = ben(addTime) {
+        if (countObservations) {
+            tuples.forEach { newSignaturesContainer.offer(it) }
+            return@ben
+        }
 
-        if (currRTuple?.methodInfo?.classInfo?.classFQN?.startsWith("#<") == true) {
+        // optimization: most of the tuples are known, and the stored contracts are looked up once per method
+        val newTuples = tuples.withoutIndices(newSignaturesContainer.acceptTuples(tuples))
+        newTuples.withoutIndices(mainContainer.acceptTuples(newTuples)).forEach { newSignaturesContainer.offer(it) }
+    }
+
+    private fun enforceMemoryBudget() {
+        if (getContractsMemoryUsage() <= memoryBudget) {
             return
         }
 
-        ben(addTime) {
-            if (currRTuple != null
-                    && !newSignaturesContainer.acceptTuple(currRTuple) // optimization
-                    && !mainContainer.acceptTuple(currRTuple)) {
-                newSignaturesContainer.addTuple(currRTuple)
-            }
-        }
+        LOGGER.info("Contracts exceed the memory budget of $memoryBudget bytes, storing the least recently updated ones")
+        val evicted = ArrayList<Pair<MethodInfo, SignatureContract>>()
+        newSignaturesContainer.evict(memoryBudget / 2) { methodInfo, contract -> evicted.add(methodInfo to contract) }
+        evictedContracts.addAndGet(evicted.size.toLong())
+        storeSignatures(evicted)
     }
 
     private fun flushNewTuplesToMainStorage() {
-        for (methodInfo in newSignaturesContainer.registeredMethods) {
-            if (!methodInfo.validate()) {
-                LOGGER.warning("validation failed, cannot store " + methodInfo.toString())
-                continue
-            }
-            newSignaturesContainer.getSignature(methodInfo)?.let { newSignature ->
-                transaction {
-                    val storedSignature = mainContainer.getSignature(methodInfo)
-                    mainContainer.putSignature(SignatureInfo(methodInfo,
-                            if (storedSignature == null)
-                                newSignature
-                            else
-                                RSignatureContract.mergeMutably(storedSignature.contract, newSignature)
-                    ))
-                }
+        val drained = ArrayList<Pair<MethodInfo, SignatureContract>>()
+        newSignaturesContainer.drain { methodInfo, newSignature -> drained.add(methodInfo to newSignature) }
+        storeSignatures(drained)
+    }
+
+    /**
+     * Minimizes and merges the contracts in parallel, the storage is only accessed from this thread
+     * as the transactions are bound to it
+     */
+    private fun storeSignatures(newSignatures: List<Pair<MethodInfo, SignatureContract>>) {
+        val valid = newSignatures.filter { (methodInfo, _) ->
+            methodInfo.validate().also { if (!it) LOGGER.warning("validation failed, cannot store " + methodInfo.toString()) }
+        }
+        if (valid.isEmpty()) {
+            return
+        }
+        // the cache is invalidated again once the merged contracts are committed
+        mainContainer.inTransaction {
+            merger.merge(valid, { mainContainer.getSignature(it)?.contract }) { methodInfo, contract ->
+                mainContainer.putSignature(SignatureInfo(methodInfo, contract))
             }
         }
-        newSignaturesContainer.clear()
     }
 
     private class SignatureHandler internal constructor(private val socket: Socket, private val handlerNumber: Int) : Thread() {
@@ -196,6 +275,7 @@ object SignatureServer {
                 LOGGER.info("add=" + addTime.toLong() * 1e-6)
                 LOGGER.info("json=" + jsonTome.toLong() * 1e-6)
                 LOGGER.info("read=" + readTime.toLong() * 1e-6)
+                LOGGER.info("contracts memory=" + getContractsMemoryUsage() + " bytes, evicted=" + evictedContracts.get())
             }
         }
     }
@@ -222,10 +302,19 @@ fun <T> ben(x: AtomicLong, F: ()->T): T {
     }
 }
 
-private fun <T : RSignatureStorage.Packet> RSignatureStorage<T>.acceptTuple(tuple: RTuple): Boolean {
-    val contractInfo = getSignature(tuple.methodInfo)
-    return contractInfo != null
-            && tuple.argsInfo == contractInfo.contract.argsInfo
-            && SignatureContract.accept(contractInfo.contract, tuple)
+private fun <T : RSignatureStorage.Packet> RSignatureStorage<T>.acceptTuples(tuples: List<RTuple>): BitSet {
+    val result = BitSet(tuples.size)
 
+    tuples.indices.groupBy { tuples[it].methodInfo }.forEach { (methodInfo, indices) ->
+        val contract = getSignature(methodInfo)?.contract ?: return@forEach
+        val sameArgs = indices.filter { tuples[it].argsInfo == contract.argsInfo }
+        SignatureContract.acceptAll(contract, sameArgs.map { tuples[it] }).stream().forEach { result.set(sameArgs[it]) }
+    }
+
+    return result
 }
+
+/**
+ * @return the elements whose indices are not set in [excluded]
+ */
+private fun <T> List<T>.withoutIndices(excluded: BitSet) = filterIndexed { index, _ -> !excluded[index] }
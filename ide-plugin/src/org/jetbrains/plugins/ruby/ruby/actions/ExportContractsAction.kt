@@ -8,6 +8,7 @@ import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
 import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureStorage
 import org.jetbrains.ruby.runtime.signature.server.SignatureServer
 import java.io.File
+import java.util.function.Consumer
 
 class ExportContractsAction : ExportFileActionBase(
         whatToExport = "Type Contracts",
@@ -27,19 +28,21 @@ class ExportContractsAction : ExportFileActionBase(
             else
                 RSignatureStorage.ExportDescriptor(false, perGemSettingsMap.filter { !it.value.share }.keys)
 
-            val packets = SignatureServer.getStorage().formPackets(exportDescriptor)
-            val moreThanOne = packets.size > 1
-
-            return packets.mapIndexed { index, packet ->
-                val fileName = if (moreThanOne)
-                    baseFileName.replace(".bin", ".${index + 1}.bin")
-                else
-                    baseFileName
-
-                val file = File(fileName)
+            val files = ArrayList<File>()
+            // every packet is written as soon as it is formed; the first file is renamed once the second one comes
+            SignatureServer.getStorage().formPackets(exportDescriptor, Consumer { packet ->
+                if (files.size == 1) {
+                    val first = File(numberedFileName(baseFileName, 1))
+                    FileUtil.rename(files[0], first)
+                    files[0] = first
+                }
+                val file = File(if (files.isEmpty()) baseFileName else numberedFileName(baseFileName, files.size + 1))
                 FileUtil.writeToFile(file, packet.data)
-                file
-            }
+                files.add(file)
+            })
+            return files
         }
+
+        private fun numberedFileName(baseFileName: String, number: Int) = baseFileName.replace(".bin", ".$number.bin")
     }
 }
\ No newline at end of file
@@ -0,0 +1,15 @@
+package org.jetbrains.plugins.ruby.ruby.codeInsight.stateTracker
+
+import org.jetbrains.ruby.codeInsight.types.signature.TypeHierarchy
+import org.jetbrains.ruby.stateTracker.RubyClass
+import org.jetbrains.ruby.stateTracker.RubyClassHierarchy
+
+/**
+ * Superclasses of the contract types taken from the class hierarchy collected by the state tracker
+ */
+class ClassHierarchyTypeHierarchy(private val rubyClassHierarchy: RubyClassHierarchy) : TypeHierarchy {
+    override fun getSuperclass(type: String): String? {
+        val rubyClass = rubyClassHierarchy.getRubyModule(type) as? RubyClass ?: return null
+        return rubyClass.superClass.takeIf { it != RubyClass.EMPTY }?.name
+    }
+}
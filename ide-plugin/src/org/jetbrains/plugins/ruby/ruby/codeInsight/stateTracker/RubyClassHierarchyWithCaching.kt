@@ -12,6 +12,7 @@ import org.jetbrains.plugins.ruby.ruby.codeInsight.symbols.structure.SymbolUtil
 import org.jetbrains.plugins.ruby.ruby.codeInsight.types.Context
 import org.jetbrains.plugins.ruby.ruby.persistent.TypeInferenceDirectory
 import org.jetbrains.plugins.ruby.settings.RubyTypeContractsSettings
+import org.jetbrains.ruby.runtime.signature.server.SignatureServer
 import org.jetbrains.ruby.stateTracker.*
 import java.io.File
 import java.io.FileInputStream
@@ -111,7 +112,9 @@ class RubyClassHierarchyWithCaching private constructor(private val rubyClassHie
         }
 
         private fun createClassHierarchyFromJson(json: String, module: Module) : RubyClassHierarchyWithCaching {
-            val rubyClassHierarchy = RubyClassHierarchyWithCaching(RubyClassHierarchyLoader.fromJson(json))
+            val loadedHierarchy = RubyClassHierarchyLoader.fromJson(json)
+            val rubyClassHierarchy = RubyClassHierarchyWithCaching(loadedHierarchy)
+            SignatureServer.typeHierarchy = ClassHierarchyTypeHierarchy(loadedHierarchy)
             module.putUserData(RubyClassHierarchyWithCaching.CLASS_HIERARCHY_KEY,
                     rubyClassHierarchy)
             return rubyClassHierarchy
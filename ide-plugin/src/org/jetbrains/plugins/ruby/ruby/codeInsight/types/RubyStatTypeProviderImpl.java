@@ -6,7 +6,6 @@ import com.intellij.openapi.module.ModuleUtilCore;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiElement;
-import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.StringRef;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -27,9 +26,6 @@ import org.jetbrains.plugins.ruby.ruby.lang.psi.methodCall.RArgumentToBlock;
 import org.jetbrains.plugins.ruby.ruby.lang.psi.methodCall.RCall;
 import org.jetbrains.plugins.ruby.ruby.lang.psi.references.RReference;
 import org.jetbrains.ruby.codeInsight.types.signature.*;
-import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
-import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition;
-import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition;
 import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureProvider;
 import org.jetbrains.ruby.codeInsight.types.storage.server.StorageException;
 import org.jetbrains.ruby.runtime.signature.server.SignatureServer;
@@ -42,54 +38,6 @@ public class RubyStatTypeProviderImpl implements RubyStatTypeProvider {
     private static final Logger LOG = Logger.getInstance(RubyStatTypeProviderImpl.class);
 
 
-    private int countMask(List<Set<String>> readTypes, String type, int currPosition) {
-        int ans = 0;
-
-        List<Set<String>> readTypesReversed = ContainerUtil.reverse(readTypes.subList(0, currPosition));
-
-        for (Set<String> strings : readTypesReversed) {
-            ans <<= 1;
-
-            if (strings.contains(type)) {
-                ans |= 1;
-            }
-        }
-
-        return ans;
-    }
-
-    private Map<SignatureNode, List<Set<String>>> getNextLevel(Map<SignatureNode, List<Set<String>>> currNodesAndReadTypes, Set<String> argTypeNames, int pos) {
-
-        Map<SignatureNode, List<Set<String>>> nextLayer = new HashMap<>();
-        currNodesAndReadTypes.forEach((node, readTypeSets) -> {
-
-            for (final String typeName : argTypeNames) {
-                TypedContractTransition typedTransition = new TypedContractTransition(typeName);
-
-                if (node.getTransitions().containsKey(typedTransition)) {
-                    final List<Set<String>> newList = new ArrayList<>(readTypeSets);
-                    newList.add(ContainerUtil.newHashSet(typeName));
-
-                    addReadTypesList(nextLayer, newList, node.getTransitions().get(typedTransition));
-                } else {
-                    int mask = countMask(readTypeSets, typeName, pos);
-
-                    ReferenceContractTransition refTransition = new ReferenceContractTransition(mask);
-
-                    if (node.getTransitions().containsKey(refTransition)) {
-                        final List<Set<String>> newList = new ArrayList<>(readTypeSets);
-                        newList.add(ContainerUtil.newHashSet(typeName));
-
-                        addReadTypesList(nextLayer, newList, node.getTransitions().get(refTransition));
-                    }
-                }
-            }
-
-        });
-
-        return nextLayer;
-    }
-
     @Nullable
     public static MethodInfo findMethodInfo(@NotNull String name,
                                             @NotNull String typeName,
@@ -166,9 +114,6 @@ public class RubyStatTypeProviderImpl implements RubyStatTypeProvider {
             }
         }
 
-        Map<SignatureNode, List<Set<String>>> currNodesAndReadTypes = new HashMap<>();
-        currNodesAndReadTypes.put(contract.getStartNode(), new ArrayList<>());
-
         boolean[] isArgumentPresent = RTupleBuilder.calcPresentArguments(paramInfos, callArgs.size(), kwArgs.keySet());
 
         List<Set<String>> typeArguments = new ArrayList<>();
@@ -184,21 +129,14 @@ public class RubyStatTypeProviderImpl implements RubyStatTypeProvider {
                 }
                 final Set<String> argTypeNames = getArgTypeNames(currElement);
                 typeArguments.add(argTypeNames);
-                currNodesAndReadTypes = getNextLevel(currNodesAndReadTypes, argTypeNames, i);
             } else {
                 Set<String> tmpSet = new HashSet<>();
                 tmpSet.add("-");
                 typeArguments.add(tmpSet);
-                currNodesAndReadTypes = getNextLevel(currNodesAndReadTypes, tmpSet, i);
             }
         }
 
-        final Set<String> returnTypes = new HashSet<>();
-        currNodesAndReadTypes.forEach((node, readTypeSets) -> {
-            for (final ContractTransition transition : node.getTransitions().keySet()) {
-                returnTypes.addAll(transition.getValue(readTypeSets));
-            }
-        });
+        final Set<String> returnTypes = new TypeSetInference().inferReturnTypeNames(contract, typeArguments);
 
         RType returnVal = returnTypes.stream()
                 .map(name -> RTypeFactory.createTypeByFQN(call.getProject(), name))
@@ -229,17 +167,6 @@ public class RubyStatTypeProviderImpl implements RubyStatTypeProvider {
         LOG.warn(builder.toString());
     }
 
-    private void addReadTypesList(Map<SignatureNode, List<Set<String>>> nextLayer, List<Set<String>> readTypeSets, SignatureNode to) {
-        nextLayer.computeIfPresent(to, (rSignatureContractNode, sets) -> {
-            for (int i = 0; i < sets.size(); i++) {
-                sets.get(i).addAll(readTypeSets.get(i));
-            }
-            return sets;
-        });
-        nextLayer.putIfAbsent(to, readTypeSets);
-    }
-
-
     @Nullable
     private static MethodInfo findMethodInfo(@NotNull final PsiElement callElement) {
         final Module module = ModuleUtilCore.findModuleForPsiElement(callElement);
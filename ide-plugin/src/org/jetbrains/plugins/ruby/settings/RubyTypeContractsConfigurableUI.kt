@@ -12,11 +12,7 @@ import com.intellij.util.ui.CheckBox
 import com.intellij.util.ui.ColumnInfo
 import com.intellij.util.ui.JBUI
 import com.intellij.util.ui.ListTableModel
-import org.jetbrains.exposed.sql.and
-import org.jetbrains.exposed.sql.deleteWhere
-import org.jetbrains.exposed.sql.transactions.transaction
 import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.GemInfoTable
 import org.jetbrains.ruby.runtime.signature.server.SignatureServer
 import java.util.*
 import javax.swing.JComponent
@@ -108,13 +104,10 @@ class RubyTypeContractsConfigurableUI(settings: RubyTypeContractsSettings) : Con
 
     override fun apply(settings: RubyTypeContractsSettings) {
         if (toBeRemovedGems.isNotEmpty()) {
-            transaction {
-                toBeRemovedGems.forEach {
-                    GemInfoTable.deleteWhere { GemInfoTable.name eq it.name and (GemInfoTable.version eq it.version) }
-                }
-                perGemSettingsMap.keys.removeAll(toBeRemovedGems)
-                registeredGems.removeAll(toBeRemovedGems)
-            }
+            val storage = SignatureServer.getStorage()
+            toBeRemovedGems.forEach { storage.deleteGem(it) }
+            perGemSettingsMap.keys.removeAll(toBeRemovedGems)
+            registeredGems.removeAll(toBeRemovedGems)
         }
         settings.stateTrackerEnabled = stateTrackerEnabled
         settings.typeTrackerEnabled = typeTrackerEnabled
@@ -7,7 +7,6 @@ import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCa
 import com.yourkit.util.FileUtil;
 import kotlin.jvm.functions.Function1;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.exposed.sql.SchemaUtils;
 import org.jetbrains.exposed.sql.Transaction;
 import org.jetbrains.exposed.sql.transactions.ThreadLocalTransactionManagerKt;
 import org.jetbrains.plugins.ruby.ruby.run.RubyCommandLine;
@@ -16,10 +15,7 @@ import org.jetbrains.ruby.codeInsight.types.signature.*;
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContractSerializationKt;
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.StringDataOutput;
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.ClassInfoTable;
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.GemInfoTable;
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.MethodInfoTable;
-import org.jetbrains.ruby.codeInsight.types.storage.server.impl.SignatureTable;
+import org.jetbrains.ruby.codeInsight.types.storage.server.impl.DatabaseSchema;
 import org.jetbrains.ruby.runtime.signature.server.SignatureServer;
 import org.junit.Assert;
 
@@ -46,7 +42,7 @@ public class CallStatCompletionTest extends LightPlatformCodeInsightFixtureTestC
     protected void setUp() throws Exception {
         super.setUp();
         ThreadLocalTransactionManagerKt.transaction((Function1<Transaction, Void>) transaction -> {
-            SchemaUtils.INSTANCE.create(GemInfoTable.INSTANCE, ClassInfoTable.INSTANCE, MethodInfoTable.INSTANCE, SignatureTable.INSTANCE);
+            DatabaseSchema.INSTANCE.create();
             return null;
         });
     }
@@ -55,10 +51,11 @@ public class CallStatCompletionTest extends LightPlatformCodeInsightFixtureTestC
     protected void tearDown() throws Exception {
         try {
             ThreadLocalTransactionManagerKt.transaction((Function1<Transaction, Void>) transaction -> {
-                SchemaUtils.INSTANCE.drop(GemInfoTable.INSTANCE, ClassInfoTable.INSTANCE, MethodInfoTable.INSTANCE, SignatureTable.INSTANCE);
+                DatabaseSchema.INSTANCE.drop();
                 return null;
             });
         } finally {
+            SignatureServer.INSTANCE.getStorage().invalidateAll();
             super.tearDown();
         }
     }
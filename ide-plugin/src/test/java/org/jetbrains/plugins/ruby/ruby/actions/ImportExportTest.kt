@@ -16,6 +16,8 @@ import org.jetbrains.ruby.codeInsight.types.signature.RVisibility
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.*
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.ClassInfoTable
+import org.jetbrains.ruby.codeInsight.types.storage.server.impl.ContractStore
+import org.jetbrains.ruby.codeInsight.types.storage.server.impl.DatabaseSchema
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.GemInfoTable
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.MethodInfoTable
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.SignatureTable
@@ -32,7 +34,7 @@ class  ImportExportTest : LightPlatformCodeInsightFixtureTestCase() {
 
         DatabaseProvider.connect(true)
         transaction = TransactionManager.manager.newTransaction()
-        SchemaUtils.create(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable)
+        DatabaseSchema.create()
 
         val gem1 = GemInfoTable.insertAndGetId { it[name] = "test_gem"; it[version] = "1.2.3" }
         val gem2 = GemInfoTable.insertAndGetId { it[name] = "test_gem"; it[version] = "1.2.4" }
@@ -47,10 +49,12 @@ class  ImportExportTest : LightPlatformCodeInsightFixtureTestCase() {
 
     override fun tearDown() {
         try {
-            SchemaUtils.drop(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable)
+            DatabaseSchema.drop()
             tempFile?.delete()
         } finally {
             transaction?.commit()
+            // the tables are changed around the storage
+            SignatureServer.getStorage().invalidateAll()
         }
         tempFile = null
         transaction = null
@@ -129,21 +133,10 @@ class  ImportExportTest : LightPlatformCodeInsightFixtureTestCase() {
             val contract1 = SignatureContract(StringDataInput(SignatureTestData.simpleContract))
             val contract2 = SignatureContract(StringDataInput(SignatureTestData.trivialContract))
 
-            val blob1 = TransactionManager.current().connection.createBlob()
-            SignatureTable.insert { it[contract] = BlobSerializer.writeToBlob(contract1, blob1); it[methodInfo] = method1 }
-            blob1.free()
-
-            val blob2 = TransactionManager.current().connection.createBlob()
-            SignatureTable.insert { it[contract] = BlobSerializer.writeToBlob(contract2, blob2); it[methodInfo] = method2 }
-            blob2.free()
-
-            val blob3 = TransactionManager.current().connection.createBlob()
-            SignatureTable.insert { it[contract] = BlobSerializer.writeToBlob(contract1, blob3); it[methodInfo] = method3 }
-            blob3.free()
-
-            val blob4 = TransactionManager.current().connection.createBlob()
-            SignatureTable.insert { it[contract] = BlobSerializer.writeToBlob(contract2, blob4); it[methodInfo] = method4 }
-            blob4.free()
+            SignatureTable.insert { it[contract] = ContractStore.acquire(contract1); it[methodInfo] = method1 }
+            SignatureTable.insert { it[contract] = ContractStore.acquire(contract2); it[methodInfo] = method2 }
+            SignatureTable.insert { it[contract] = ContractStore.acquire(contract1); it[methodInfo] = method3 }
+            SignatureTable.insert { it[contract] = ContractStore.acquire(contract2); it[methodInfo] = method4 }
         }
 
         private object SignatureTestData {
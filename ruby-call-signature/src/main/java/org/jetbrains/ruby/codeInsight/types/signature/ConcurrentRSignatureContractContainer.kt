@@ -0,0 +1,122 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import java.util.*
+
+/**
+ * Thread-safe [RSignatureContractContainer] shared by several threads parsing the incoming tuples.
+ *
+ * Methods are distributed over [shardCount] shards, each of them being a plain container guarded
+ * by its own lock, so the threads adding tuples of different methods rarely wait for each other.
+ * [drain] replaces the shards one by one with empty ones and hands the contracts out of the lock,
+ * so the tuples keep being added while the drained contracts are stored.
+ */
+class ConcurrentRSignatureContractContainer @JvmOverloads constructor(
+        private val budget: ContractBudget = ContractBudget.DEFAULT,
+        private val maxTableRows: Int = TupleTableContract.DEFAULT_MAX_ROWS,
+        private val countObservations: Boolean = false,
+        shardCount: Int = DEFAULT_SHARD_COUNT) {
+
+    private class Shard(var container: RSignatureContractContainer)
+
+    private val myShards: Array<Shard>
+
+    init {
+        require(shardCount > 0) { "Shard count must be positive: $shardCount" }
+        myShards = Array(Integer.highestOneBit(shardCount * 2 - 1)) { Shard(newContainer()) }
+    }
+
+    private fun newContainer() = RSignatureContractContainer(budget, maxTableRows, countObservations)
+
+    private fun shardFor(info: MethodInfo): Shard {
+        val hash = info.hashCode()
+        return myShards[(hash xor (hash ushr 16)) and (myShards.size - 1)]
+    }
+
+    fun acceptTuple(tuple: RTuple): Boolean {
+        val shard = shardFor(tuple.methodInfo)
+        return synchronized(shard) { shard.container.acceptTuple(tuple) }
+    }
+
+    /**
+     * @return the indices of the accepted tuples, see [RSignatureContractContainer.acceptTuples]
+     */
+    fun acceptTuples(tuples: List<RTuple>): BitSet {
+        val result = BitSet(tuples.size)
+
+        tuples.indices.groupBy { shardFor(tuples[it].methodInfo) }.forEach { (shard, indices) ->
+            val accepted = synchronized(shard) { shard.container.acceptTuples(indices.map { tuples[it] }) }
+            accepted.stream().forEach { result.set(indices[it]) }
+        }
+
+        return result
+    }
+
+    /**
+     * Atomically adds the tuple unless it is already accepted, see [RSignatureContractContainer.offer]
+     */
+    fun offer(tuple: RTuple): Boolean {
+        val shard = shardFor(tuple.methodInfo)
+        return synchronized(shard) { shard.container.offer(tuple) }
+    }
+
+    val registeredMethods: Set<MethodInfo>
+        get() = myShards.flatMapTo(HashSet()) { synchronized(it) { it.container.registeredMethods.toList() } }
+
+    /**
+     * @return a contract which is not modified by the tuples added later
+     */
+    fun getSignature(info: MethodInfo): SignatureContract? {
+        val shard = shardFor(info)
+        return synchronized(shard) { shard.container.getSignature(info) }?.let {
+            (it as? RSignatureContract)?.snapshot() ?: it
+        }
+    }
+
+    /**
+     * Removes all the contracts and passes them to the [consumer]. The contracts are not modified anymore,
+     * the tuples added meanwhile go to new contracts which are drained next time.
+     *
+     * The contracts are not minimized, so that the consumer may minimize them in parallel,
+     * see [ParallelContractMerger].
+     */
+    fun drain(consumer: (MethodInfo, SignatureContract) -> Unit) {
+        for (shard in myShards) {
+            val drained = synchronized(shard) {
+                shard.container.also { shard.container = newContainer() }
+            }
+            drained.contracts.forEach { (methodInfo, contract) -> consumer(methodInfo, contract) }
+        }
+    }
+
+    /**
+     * Sum of the estimated sizes of the contracts in bytes
+     */
+    val estimatedSize: Long
+        get() = myShards.fold(0L) { size, shard -> size + synchronized(shard) { shard.container.estimatedSize } }
+
+    /**
+     * Evicts the contracts of every shard down to its share of [targetSize] and passes them to the [consumer]
+     * out of the shard lock, see [RSignatureContractContainer.evict]. The [policy] is applied per shard.
+     */
+    @JvmOverloads
+    fun evict(targetSize: Long,
+              policy: RSignatureContractContainer.EvictionPolicy = RSignatureContractContainer.EvictionPolicy.LEAST_RECENTLY_UPDATED,
+              consumer: (MethodInfo, SignatureContract) -> Unit) {
+        val shardTargetSize = targetSize / myShards.size
+        for (shard in myShards) {
+            val evicted = synchronized(shard) { shard.container.evict(shardTargetSize, policy) }
+            evicted.forEach { (info, contract) -> consumer(info, contract) }
+        }
+    }
+
+    fun clear() {
+        for (shard in myShards) {
+            synchronized(shard) { shard.container = newContainer() }
+        }
+    }
+
+    companion object {
+        @JvmField
+        val DEFAULT_SHARD_COUNT = Runtime.getRuntime().availableProcessors() * 4
+    }
+}
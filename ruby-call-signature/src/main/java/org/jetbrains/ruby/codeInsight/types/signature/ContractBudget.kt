@@ -0,0 +1,25 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+/**
+ * Size limit of a [RSignatureContract]. A contract exceeding its budget is widened position by position
+ * until it fits or there is nothing left to widen, see [WideningDecision].
+ */
+data class ContractBudget(val maxNodes: Int, val maxEdges: Int) {
+    val isUnlimited: Boolean
+        get() = maxNodes == Int.MAX_VALUE && maxEdges == Int.MAX_VALUE
+
+    fun isExceeded(nodeCount: Int, edgeCount: Int) = nodeCount > maxNodes || edgeCount > maxEdges
+
+    companion object {
+        @JvmField
+        val UNLIMITED = ContractBudget(Int.MAX_VALUE, Int.MAX_VALUE)
+
+        /**
+         * Budget of the contracts which are not given one explicitly.
+         */
+        @JvmField
+        val DEFAULT = ContractBudget(
+                System.getProperty("contract.budget.nodes")?.toIntOrNull() ?: Int.MAX_VALUE,
+                System.getProperty("contract.budget.edges")?.toIntOrNull() ?: Int.MAX_VALUE)
+    }
+}
@@ -0,0 +1,99 @@
+package org.jetbrains.ruby.codeInsight.types.signature;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition;
+
+import java.util.*;
+
+/**
+ * Rough estimation of the heap retained by contracts, assuming a 64-bit JVM with compressed oops.
+ * <p>
+ * Type names are counted for every transition reading them, though they are often shared,
+ * so the estimations err on the side of the bigger size.
+ */
+public final class ContractSizeEstimator {
+
+    /**
+     * The node object, its {@link HashMap} and the table of the map
+     */
+    static final long NODE_BYTES = 24 + 48 + 16;
+    /**
+     * {@link HashMap} entry and its table slot
+     */
+    static final long TRANSITION_ENTRY_BYTES = 32 + 8;
+
+    private static final long OBJECT_BYTES = 16;
+    private static final long STRING_BYTES = 24 + 16;
+    private static final long ARRAY_BYTES = 16;
+    private static final long REFERENCE_BYTES = 4;
+
+    private ContractSizeEstimator() {
+    }
+
+    public static long estimateTransition(@NotNull ContractTransition transition) {
+        if (transition instanceof TypedContractTransition) {
+            return OBJECT_BYTES + STRING_BYTES + 2L * ((TypedContractTransition) transition).getType().length();
+        }
+        return OBJECT_BYTES;
+    }
+
+    /**
+     * @return the size of the node and its transitions, not including the nodes they lead to
+     */
+    public static long estimateNode(@NotNull SignatureNode node) {
+        long result = NODE_BYTES;
+        for (ContractTransition transition : node.getTransitions().keySet()) {
+            result += TRANSITION_ENTRY_BYTES + estimateTransition(transition);
+        }
+        return result;
+    }
+
+    /**
+     * @return the size of all the nodes reachable from the given one
+     */
+    public static long estimateGraph(@NotNull SignatureNode startNode) {
+        final Set<SignatureNode> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<SignatureNode> queue = new ArrayDeque<>();
+        visited.add(startNode);
+        queue.add(startNode);
+
+        long result = 0;
+        while (!queue.isEmpty()) {
+            final SignatureNode node = queue.poll();
+            result += estimateNode(node);
+            for (SignatureNode child : node.getTransitions().values()) {
+                if (visited.add(child)) {
+                    queue.add(child);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param cells transitions of the table, equal transitions of a column being the same instance
+     */
+    static long estimateTable(@NotNull ContractTransition[] cells) {
+        long result = OBJECT_BYTES + ARRAY_BYTES + REFERENCE_BYTES * cells.length;
+        final Set<ContractTransition> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ContractTransition cell : cells) {
+            if (distinct.add(cell)) {
+                result += estimateTransition(cell);
+            }
+        }
+        return result;
+    }
+
+    static long estimateRowCounts(int rowCount) {
+        return ARRAY_BYTES + 4L * rowCount;
+    }
+
+    /**
+     * @return the size of a contract read in place from a buffer: the view objects and the cache of the decoded
+     * type names, not including the buffer itself which is usually mapped or shared
+     */
+    public static long estimateBufferView(int typeCount) {
+        return 3 * OBJECT_BYTES + ARRAY_BYTES + REFERENCE_BYTES * typeCount;
+    }
+}
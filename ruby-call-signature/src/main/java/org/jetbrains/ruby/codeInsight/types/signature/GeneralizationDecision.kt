@@ -0,0 +1,35 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+
+/**
+ * Records that the literal types read by a contract at argument [position] were replaced with their common
+ * ancestors, see [RSignatureContract.generalize]. [replacements] maps every replaced type to its ancestor.
+ *
+ * A replaced type is read by the transition of its ancestor unless it is read explicitly, so the contract still
+ * accepts the tuples it was generalized from and the ones added later are generalized the same way. The types
+ * replaced by a later decision at the same position include the ancestors of the earlier ones.
+ */
+data class GeneralizationDecision(val position: Int, val replacements: Map<String, String>) {
+    companion object {
+        /**
+         * @return the transition reading the type of the given one at the position, the given one if its type
+         * is not replaced
+         */
+        @JvmStatic
+        fun generalize(decisions: List<GeneralizationDecision>, position: Int, transition: ContractTransition): ContractTransition {
+            if (transition !is TypedContractTransition) {
+                return transition
+            }
+
+            var type = transition.type
+            for (decision in decisions) {
+                if (decision.position == position) {
+                    type = decision.replacements[type] ?: type
+                }
+            }
+            return if (type == transition.type) transition else TypedContractTransition(type)
+        }
+    }
+}
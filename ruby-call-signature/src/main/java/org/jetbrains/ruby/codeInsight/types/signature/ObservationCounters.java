@@ -0,0 +1,97 @@
+package org.jetbrains.ruby.codeInsight.types.signature;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
+
+/**
+ * Saturating observation counters of the transitions of a node.
+ * <p>
+ * Nodes have a few transitions, so the counters are kept in a small open addressing table
+ * without boxing. Updates are done by the contract writer only; readers may see a count
+ * being updated but never an inconsistent table.
+ */
+final class ObservationCounters {
+
+    @NotNull
+    private volatile Table myTable;
+
+    ObservationCounters(int expectedSize) {
+        myTable = new Table(capacityFor(expectedSize));
+    }
+
+    int get(@NotNull ContractTransition transition) {
+        final Table table = myTable;
+        final int index = table.indexOf(transition);
+        return table.myKeys[index] == null ? 0 : table.myCounts[index];
+    }
+
+    void add(@NotNull ContractTransition transition, int count) {
+        Table table = myTable;
+        int index = table.indexOf(transition);
+
+        if (table.myKeys[index] == null) {
+            if ((table.mySize + 1) * 2 > table.myKeys.length) {
+                table = table.resize(table.myKeys.length * 2);
+                myTable = table;
+                index = table.indexOf(transition);
+            }
+            table.myKeys[index] = transition;
+            table.mySize++;
+        }
+
+        table.myCounts[index] = saturatedAdd(table.myCounts[index], count);
+    }
+
+    static int saturatedAdd(int a, int b) {
+        final long sum = (long) a + b;
+        return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        return Integer.highestOneBit(Math.max(expectedSize, 1) * 4 - 1);
+    }
+
+    private static class Table {
+        @NotNull
+        private final ContractTransition[] myKeys;
+        @NotNull
+        private final int[] myCounts;
+
+        private int mySize;
+
+        Table(int capacity) {
+            this(new ContractTransition[capacity], new int[capacity], 0);
+        }
+
+        Table(@NotNull ContractTransition[] keys, @NotNull int[] counts, int size) {
+            myKeys = keys;
+            myCounts = counts;
+            mySize = size;
+        }
+
+        int indexOf(@NotNull ContractTransition transition) {
+            final int mask = myKeys.length - 1;
+            final int hash = transition.hashCode();
+            int index = (hash ^ (hash >>> 16)) & mask;
+
+            while (myKeys[index] != null && !myKeys[index].equals(transition)) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        @NotNull
+        Table resize(int capacity) {
+            final Table result = new Table(capacity);
+            for (int i = 0; i < myKeys.length; i++) {
+                if (myKeys[i] != null) {
+                    final int index = result.indexOf(myKeys[i]);
+                    result.myKeys[index] = myKeys[i];
+                    result.myCounts[index] = myCounts[i];
+                }
+            }
+            result.mySize = mySize;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+
+/**
+ * Minimizes the new contracts and merges them into the stored ones on a [ForkJoinPool], one contract per task.
+ *
+ * The tasks are submitted largest first, so that a big contract does not start last and delay the whole batch.
+ * The results are handed to the writer on the calling thread in the original order as soon as they are ready,
+ * so the writer may use thread-bound resources such as database transactions.
+ *
+ * If the [typeHierarchy] is given, the merged contracts reading more than [maxTypes] types at a position
+ * are generalized as well, see [RSignatureContract.generalize].
+ */
+class ParallelContractMerger @JvmOverloads constructor(private val pool: ForkJoinPool = ForkJoinPool.commonPool(),
+                                                       private val typeHierarchy: TypeHierarchy? = null,
+                                                       private val maxTypes: Int = Int.MAX_VALUE) {
+
+    /**
+     * @param contracts      new contracts, not modified by anyone else
+     * @param storedContract returns the stored contract to merge the new one into, called on the calling thread;
+     *                       the returned contract is modified
+     * @param writer         receives the merged contracts in the order of [contracts]
+     */
+    fun merge(contracts: List<Pair<MethodInfo, SignatureContract>>,
+              storedContract: (MethodInfo) -> SignatureContract?,
+              writer: (MethodInfo, SignatureContract) -> Unit) {
+        val stored = contracts.map { storedContract(it.first) }
+
+        val tasks = arrayOfNulls<ForkJoinTask<SignatureContract>>(contracts.size)
+        contracts.indices
+                .sortedByDescending { contracts[it].second.estimatedSize + (stored[it]?.estimatedSize ?: 0) }
+                .forEach { tasks[it] = pool.submit(Callable { merge(contracts[it].second, stored[it]) }) }
+
+        contracts.forEachIndexed { index, (methodInfo, _) -> writer(methodInfo, tasks[index]!!.join()) }
+    }
+
+    private fun merge(contract: SignatureContract, stored: SignatureContract?): SignatureContract {
+        val result = if (stored == null) {
+            contract.also { (it as? RSignatureContract)?.minimize() }
+        } else {
+            RSignatureContract.mergeMutably(stored, contract)
+        }
+        if (typeHierarchy != null) {
+            (result as? RSignatureContract)?.generalize(typeHierarchy, maxTypes)
+        }
+        return result
+    }
+}
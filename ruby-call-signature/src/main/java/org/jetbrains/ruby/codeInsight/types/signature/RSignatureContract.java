@@ -1,35 +1,51 @@
 package org.jetbrains.ruby.codeInsight.types.signature;
 
-import kotlin.Pair;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition;
 
 import java.util.*;
 
-import static org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TransitionHelper.calculateTransition;
-
+/**
+ * Mutable contract built from the incoming tuples.
+ * <p>
+ * The automaton itself is never modified in place: every modification builds a new immutable
+ * version sharing all the untouched nodes with the previous one and publishes it atomically.
+ * Readers get the current version with {@link #snapshot()} without any locking or copying,
+ * writers are serialized on the contract monitor.
+ * <p>
+ * The getters of this class delegate to the current version, so a reader doing several calls
+ * which must be consistent with each other should use a snapshot instead.
+ * <p>
+ * If the contract grows beyond its {@link ContractBudget} the argument position with the most
+ * literal type alternatives is widened, see {@link WideningDecision}.
+ * <p>
+ * The contract may count how many observed tuples were read by each transition, see
+ * {@link #setCountingObservations(boolean)}. The counters saturate at {@link Integer#MAX_VALUE}
+ * and are summed on merges. They are versioned like the transitions: counting an observation of
+ * a known tuple copies its path, so the counts of a snapshot never change. When a node shared by
+ * several paths is copied to extend one of them, the copy inherits the counts of all the paths,
+ * so the counts below such nodes are upper bounds rather than exact numbers.
+ */
 public class RSignatureContract implements SignatureContract {
 
-    @NotNull
-    private final RSignatureContractNode myStartContractNode;
     @NotNull
     private final List<ParameterInfo> myArgsInfo;
     @NotNull
-    private final List<List<RSignatureContractNode>> myLevels;
-    @NotNull
     private final SignatureNode myTermNode;
 
-    public RSignatureContract(@NotNull RTuple tuple) {
-        myArgsInfo = tuple.getArgsInfo();
-        myLevels = new ArrayList<>(getArgsInfo().size() + 2);
-        for (int i = 0; i < getArgsInfo().size() + 2; i++) {
-            myLevels.add(new ArrayList<>());
-        }
+    @NotNull
+    private volatile Version myVersion;
+
+    @NotNull
+    private volatile ContractBudget myBudget = ContractBudget.DEFAULT;
 
-        myStartContractNode = createNodeAndAddToLevels(0);
+    private volatile boolean myCountsObservations;
 
-        myTermNode = createNodeAndAddToLevels(myLevels.size() - 1);
+    public RSignatureContract(@NotNull RTuple tuple) {
+        this(tuple.getArgsInfo());
 
         addRTuple(tuple);
     }
@@ -37,263 +53,716 @@ public class RSignatureContract implements SignatureContract {
     public RSignatureContract(@NotNull List<ParameterInfo> argsInfo,
                               @NotNull RSignatureContractNode startContractNode,
                               @NotNull SignatureNode termNode,
-                              @NotNull List<List<RSignatureContractNode>> levels) {
-        myStartContractNode = startContractNode;
+                              @NotNull List<? extends List<? extends SignatureNode>> levels) {
+        this(argsInfo, startContractNode, termNode, levels, Collections.emptyList());
+    }
+
+    public RSignatureContract(@NotNull List<ParameterInfo> argsInfo,
+                              @NotNull RSignatureContractNode startContractNode,
+                              @NotNull SignatureNode termNode,
+                              @NotNull List<? extends List<? extends SignatureNode>> levels,
+                              @NotNull List<WideningDecision> wideningDecisions) {
+        this(argsInfo, startContractNode, termNode, levels, wideningDecisions, Collections.emptyList());
+    }
+
+    public RSignatureContract(@NotNull List<ParameterInfo> argsInfo,
+                              @NotNull RSignatureContractNode startContractNode,
+                              @NotNull SignatureNode termNode,
+                              @NotNull List<? extends List<? extends SignatureNode>> levels,
+                              @NotNull List<WideningDecision> wideningDecisions,
+                              @NotNull List<GeneralizationDecision> generalizationDecisions) {
         myArgsInfo = argsInfo;
-        myLevels = levels;
         myTermNode = termNode;
+        myVersion = new Version(startContractNode, argsInfo, levels, wideningDecisions, generalizationDecisions);
 
         // TODO recalculate mask
     }
 
-    private RSignatureContract(@NotNull SignatureContract source) {
-        myArgsInfo = source.getArgsInfo();
-        myLevels = new ArrayList<>(getArgsInfo().size() + 2);
-        for (int i = 0; i < getArgsInfo().size() + 2; i++) {
-            myLevels.add(new ArrayList<>());
-        }
-
-        final Map<SignatureNode, kotlin.Pair<RSignatureContractNode, Integer>> oldNodesToNewWithLayerNumber = new HashMap<>();
-        final Queue<SignatureNode> q = new ArrayDeque<>();
-
-        final RSignatureContractNode newStartNode = createNodeAndAddToLevels(0);
-        myLevels.get(0).add(newStartNode);
-        oldNodesToNewWithLayerNumber.put(newStartNode, new kotlin.Pair<>(newStartNode, 0));
-        q.add(source.getStartNode());
+    /**
+     * Creates a contract reading no tuples, it is only valid once something is added to it.
+     */
+    RSignatureContract(@NotNull List<ParameterInfo> argsInfo) {
+        myArgsInfo = argsInfo;
+        myTermNode = new RSignatureContractNode();
+        myVersion = new Version(new RSignatureContractNode(), argsInfo, null, Collections.emptyList(), Collections.emptyList());
+        myVersion.myEstimatedSize = ContractSizeEstimator.NODE_BYTES * 2;
+    }
 
-        while (!q.isEmpty()) {
-            final SignatureNode oldSourceNode = q.poll();
-            final kotlin.Pair<RSignatureContractNode, Integer> newSourceNodeAndLevel = oldNodesToNewWithLayerNumber.get(oldSourceNode);
+    /**
+     * @return the current version of the contract. It never changes, so it can be read
+     * concurrently with the modifications of this contract.
+     */
+    @NotNull
+    public SignatureContract snapshot() {
+        return myVersion;
+    }
 
-            oldSourceNode.getTransitions().forEach((contractTransition, oldTargetNode) -> {
-                final kotlin.Pair<RSignatureContractNode, Integer> newTargetNodeWithLayer =
-                        oldNodesToNewWithLayerNumber.computeIfAbsent(oldTargetNode, old -> {
-                            final RSignatureContractNode newNode = createNodeAndAddToLevels(newSourceNodeAndLevel.getSecond() + 1);
-                            q.add(newNode);
-                            return new kotlin.Pair<>(
-                                    newNode,
-                                    newSourceNodeAndLevel.getSecond() + 1
-                            );
-                        });
+    @NotNull
+    @Override
+    public SignatureNode getStartNode() {
+        return myVersion.myStartNode;
+    }
 
-                newSourceNodeAndLevel.getFirst().addLink(contractTransition, newTargetNodeWithLayer.getFirst());
-            });
-        }
+    @NotNull
+    @Override
+    public List<ParameterInfo> getArgsInfo() {
+        return myArgsInfo;
+    }
 
-        myStartContractNode = newStartNode;
+    public int getNodeCount() {
+        return myVersion.getNodeCount();
+    }
 
-        if (myLevels.get(myLevels.size() - 1).size() != 1) {
-            throw new AssertionError("Incorrect # of nodes on the last level: "
-                    + myLevels.get(myLevels.size() - 1));
-        }
-        myTermNode = myLevels.get(myLevels.size() - 1).iterator().next();
+    @NotNull
+    @Override
+    public ReturnTypeSummary getReturnTypeSummary() {
+        return myVersion.getReturnTypeSummary();
     }
 
     @NotNull
     @Override
-    public RSignatureContractNode getStartNode() {
-        return myStartContractNode;
+    public List<WideningDecision> getWideningDecisions() {
+        return myVersion.myWideningDecisions;
     }
 
     @NotNull
     @Override
-    public List<ParameterInfo> getArgsInfo() {
-        return myArgsInfo;
+    public List<GeneralizationDecision> getGeneralizationDecisions() {
+        return myVersion.myGeneralizationDecisions;
     }
 
-    public int getNodeCount() {
-        return myLevels.stream().map(List::size).reduce(0, (a, b) -> a + b);
+    /**
+     * The size is maintained incrementally while tuples are added and recalculated after
+     * the modifications rebuilding the automaton (merges, widening)
+     */
+    @Override
+    public long getEstimatedSize() {
+        return myVersion.getEstimatedSize();
     }
 
     @NotNull
-    public synchronized SignatureContract copy() {
-        final Map<SignatureNode, RSignatureContractNode> oldToNew = new HashMap<>();
+    public ContractBudget getBudget() {
+        return myBudget;
+    }
+
+    /**
+     * Sets the budget for the contract and widens it right away if it is exceeded.
+     */
+    public synchronized void setBudget(@NotNull ContractBudget budget) {
+        myBudget = budget;
+        enforceBudget();
+    }
+
+    public boolean isCountingObservations() {
+        return myCountsObservations;
+    }
 
-        RSignatureContractNode newStartNode = new RSignatureContractNode();
-        oldToNew.put(myStartContractNode, newStartNode);
+    /**
+     * Makes {@link #addRTuple(RTuple)} count the observations of the tuples, including the ones
+     * already read by the contract. The counts merged from other contracts are kept either way.
+     */
+    public void setCountingObservations(boolean countsObservations) {
+        myCountsObservations = countsObservations;
+    }
+
+    /**
+     * Installs the summary calculated beforehand (e.g. deserialized along with the contract)
+     * so that it is not recalculated on the first query.
+     */
+    public synchronized void primeReturnTypeSummary(@NotNull ReturnTypeSummary summary) {
+        myVersion.myReturnTypeSummary = summary;
+    }
 
-        for (int i = 0; i < myLevels.size() - 1; ++i) {
-            for (final RSignatureContractNode oldSourceNode : myLevels.get(i)) {
+    /**
+     * Copies the nodes on the path read by the tuple (only the ones which change) and publishes
+     * the version with the new path. If the tuple is already read by the contract only its
+     * observation is counted, if the contract counts observations at all.
+     */
+    public void addRTuple(@NotNull RTuple tuple) {
+        addTransitions(tuple.getTransitions(), myCountsObservations ? 1 : 0);
+    }
 
-                final RSignatureContractNode newSourceNode = oldToNew.get(oldSourceNode);
-                oldSourceNode.getTransitions().forEach((transition, oldTargetNode) -> {
-                    final RSignatureContractNode newTargetNode = oldToNew.computeIfAbsent(oldTargetNode,
-                            (x) -> new RSignatureContractNode());
-                    newSourceNode.addLink(transition, newTargetNode);
-                });
+    /**
+     * @param tupleTransitions transitions of a tuple as returned by {@link RTuple#getTransitions()}
+     * @param count            number of the observations of the tuple to add to the counters of its path
+     */
+    synchronized void addTransitions(@NotNull ContractTransition[] tupleTransitions, int count) {
+        final Version version = myVersion;
+
+        final ContractTransition[] transitions = widen(generalize(tupleTransitions, version.myGeneralizationDecisions),
+                version.myWideningDecisions);
+        final int argsCount = transitions.length - 1;
+        final SignatureNode[] path = new SignatureNode[argsCount + 1];
+        path[0] = version.myStartNode;
+
+        int depth = 0;
+        while (depth < argsCount) {
+            final SignatureNode nextNode = path[depth].getTransitions().get(transitions[depth]);
+            if (nextNode == null) {
+                break;
             }
+            path[++depth] = nextNode;
         }
 
-        return new Immutable(newStartNode, oldToNew.size(), myArgsInfo);
-    }
+        if (depth == argsCount && path[depth].getTransitions().containsKey(transitions[argsCount])) {
+            if (count > 0) {
+                countObservations(version, path, transitions, count);
+            }
+            return;
+        }
 
-    public synchronized void addRTuple(@NotNull RTuple tuple) {
-        RSignatureContractNode currNode = myStartContractNode;
+        // the copies of the path nodes replace them, so only the new suffix and the transition
+        // leading to it are added
+        long addedSize = ContractSizeEstimator.NODE_BYTES * (argsCount - depth);
+        SignatureNode child = myTermNode;
+        for (int argIndex = argsCount; argIndex > depth; argIndex--) {
+            final RSignatureContractNode newNode = new RSignatureContractNode();
+            newNode.addLink(transitions[argIndex], child);
+            newNode.addObservations(transitions[argIndex], count);
+            addedSize += ContractSizeEstimator.TRANSITION_ENTRY_BYTES + ContractSizeEstimator.estimateTransition(transitions[argIndex]);
+            child = newNode;
+        }
+        addedSize += ContractSizeEstimator.TRANSITION_ENTRY_BYTES + ContractSizeEstimator.estimateTransition(transitions[depth]);
 
-        String returnType = tuple.getReturnTypeName();
+        for (int argIndex = depth; argIndex >= 0; argIndex--) {
+            final RSignatureContractNode newNode = new RSignatureContractNode(path[argIndex]);
+            newNode.addLink(transitions[argIndex], child);
+            newNode.addObservations(transitions[argIndex], count);
+            child = newNode;
+        }
 
-        final List<String> argsTypes = tuple.getArgsTypes();
-        for (int argIndex = 0; argIndex < argsTypes.size(); argIndex++) {
-            final String type = argsTypes.get(argIndex);
+        final Version newVersion = new Version(child, myArgsInfo, null, version.myWideningDecisions,
+                version.myGeneralizationDecisions);
+        final long size = version.myEstimatedSize;
+        if (size >= 0) {
+            newVersion.myEstimatedSize = size + addedSize;
+        }
+        myVersion = newVersion;
+        enforceBudget();
+    }
 
-            final ContractTransition transition = calculateTransition(tuple.getArgsTypes(), argIndex, type);
+    /**
+     * Copies the nodes on the path of an already read tuple with its observations added to their counters
+     * and publishes the version with the new path. The automaton itself does not change, so the estimated
+     * size is kept.
+     */
+    private void countObservations(@NotNull Version version,
+                                   @NotNull SignatureNode[] path,
+                                   @NotNull ContractTransition[] transitions,
+                                   int count) {
+        SignatureNode child = null;
+        for (int argIndex = path.length - 1; argIndex >= 0; argIndex--) {
+            final RSignatureContractNode newNode = new RSignatureContractNode(path[argIndex]);
+            if (child != null) {
+                newNode.addLink(transitions[argIndex], child);
+            }
+            newNode.addObservations(transitions[argIndex], count);
+            child = newNode;
+        }
 
-            if (!currNode.getTransitions().containsKey(transition)) {
-                final RSignatureContractNode newNode = createNodeAndAddToLevels(argIndex + 1);
+        final Version newVersion = new Version(child, myArgsInfo, null, version.myWideningDecisions,
+                version.myGeneralizationDecisions);
+        newVersion.myEstimatedSize = version.myEstimatedSize;
+        myVersion = newVersion;
+    }
 
-                currNode.addLink(transition, newNode);
+    @NotNull
+    private static ContractTransition[] generalize(@NotNull ContractTransition[] transitions,
+                                                   @NotNull List<GeneralizationDecision> generalizationDecisions) {
+        if (generalizationDecisions.isEmpty()) {
+            return transitions;
+        }
 
-                currNode = newNode;
-            } else {
+        final ContractTransition[] result = transitions.clone();
+        for (GeneralizationDecision decision : generalizationDecisions) {
+            final int position = decision.getPosition();
+            result[position] = GeneralizationDecision.generalize(generalizationDecisions, position, transitions[position]);
+        }
+        return result;
+    }
 
-                currNode = ((RSignatureContractNode) currNode.getTransitions().get(transition));
-            }
+    @NotNull
+    private static ContractTransition[] widen(@NotNull ContractTransition[] transitions,
+                                              @NotNull List<WideningDecision> wideningDecisions) {
+        if (wideningDecisions.isEmpty()) {
+            return transitions;
         }
 
-        final ContractTransition transition = calculateTransition(tuple.getArgsTypes(), tuple.getArgsTypes().size(), returnType);
+        final ContractTransition[] result = transitions.clone();
+        for (WideningDecision decision : wideningDecisions) {
+            result[decision.getPosition()] = widen(result[decision.getPosition()]);
+        }
+        return result;
+    }
 
-        currNode.addLink(transition, myTermNode);
+    @NotNull
+    private static ContractTransition widen(@NotNull ContractTransition transition) {
+        return transition instanceof TypedContractTransition ? WideningDecision.WIDENED_TRANSITION : transition;
     }
 
+    /**
+     * Merges the equivalent nodes of the current version bottom-up: each node is replaced with
+     * the first visited node having the same (already merged) transitions. The observations
+     * of the replaced nodes are added to their representatives.
+     */
     synchronized void minimize() {
-        int numberOfLevels = myLevels.size();
+        final Version version = myVersion;
+
+        final SignatureNode newStartNode = minimize(version.myStartNode);
+        if (newStartNode != version.myStartNode) {
+            final Version minimized = new Version(newStartNode, myArgsInfo, null, version.myWideningDecisions,
+                    version.myGeneralizationDecisions);
+            minimized.myReturnTypeSummary = version.myReturnTypeSummary;
+            myVersion = minimized;
+        }
+    }
+
+    @NotNull
+    private SignatureNode minimize(@NotNull SignatureNode startNode) {
+        final Map<SignatureNode, List<SignatureNode>> pendingObservations = new HashMap<>();
+        final SignatureNode minimized = minimize(startNode, new HashMap<>(), new HashMap<>(),
+                Collections.newSetFromMap(new IdentityHashMap<>()), pendingObservations);
+        return pendingObservations.isEmpty()
+                ? minimized
+                : addObservations(minimized, pendingObservations, new HashMap<>());
+    }
 
-        for (int i = numberOfLevels - 1; i > 0; i--) {
-            List<RSignatureContractNode> level = myLevels.get(i);
+    /**
+     * @param ownNodes            the nodes created by this pass, the observations of the replaced nodes are
+     *                            added to them right away
+     * @param pendingObservations the replaced nodes by their representatives created before this pass, which
+     *                            may be shared with a published version and so are copied along with their
+     *                            paths once the pass is over, see {@link #addObservations(SignatureNode, Map, Map)}
+     */
+    @NotNull
+    private SignatureNode minimize(@NotNull SignatureNode node,
+                                   @NotNull Map<SignatureNode, SignatureNode> representatives,
+                                   @NotNull Map<Map<ContractTransition, SignatureNode>, SignatureNode> nodesByTransitions,
+                                   @NotNull Set<SignatureNode> ownNodes,
+                                   @NotNull Map<SignatureNode, List<SignatureNode>> pendingObservations) {
+        if (node == myTermNode) {
+            return node;
+        }
 
-            HashMap<SignatureNode, SignatureNode> representatives = new HashMap<>();
-            Set<SignatureNode> uselessVertices = new HashSet<>();
+        final SignatureNode known = representatives.get(node);
+        if (known != null) {
+            return known;
+        }
 
-            for (SignatureNode node : level) {
-                representatives.put(node, node);
+        RSignatureContractNode newNode = null;
+        for (Map.Entry<ContractTransition, SignatureNode> entry : node.getTransitions().entrySet()) {
+            final SignatureNode child = entry.getValue();
+            final SignatureNode representative = minimize(child, representatives, nodesByTransitions,
+                    ownNodes, pendingObservations);
+            if (representative != child) {
+                if (newNode == null) {
+                    newNode = new RSignatureContractNode(node);
+                    ownNodes.add(newNode);
+                }
+                newNode.addLink(entry.getKey(), representative);
             }
+        }
 
-            for (int v1 = 0; v1 < level.size(); v1++) {
-                for (int v2 = v1 + 1; v2 < level.size(); v2++) {
-                    SignatureNode vertex1 = level.get(v1);
-                    SignatureNode vertex2 = level.get(v2);
+        final SignatureNode candidate = newNode == null ? node : newNode;
+        final SignatureNode existing = nodesByTransitions.putIfAbsent(candidate.getTransitions(), candidate);
+        final SignatureNode result = existing == null ? candidate : existing;
+        if (existing instanceof RSignatureContractNode && hasObservations(candidate)) {
+            if (ownNodes.contains(existing)) {
+                ((RSignatureContractNode) existing).addObservations(candidate);
+            } else {
+                pendingObservations.computeIfAbsent(existing, key -> new ArrayList<>()).add(candidate);
+            }
+        }
 
-                    boolean isSame = vertex1.getTransitions().size() == vertex2.getTransitions().size();
+        representatives.put(node, result);
+        return result;
+    }
 
-                    for (ContractTransition transition : vertex1.getTransitions().keySet()) {
+    /**
+     * Replaces the nodes having pending observations with their copies counting these observations,
+     * as well as all the nodes leading to them.
+     */
+    @NotNull
+    private SignatureNode addObservations(@NotNull SignatureNode node,
+                                          @NotNull Map<SignatureNode, List<SignatureNode>> pendingObservations,
+                                          @NotNull Map<SignatureNode, SignatureNode> visited) {
+        if (node == myTermNode) {
+            return node;
+        }
 
-                        if (!vertex2.getTransitions().containsKey(transition) || vertex1.getTransitions().get(transition) != vertex2.getTransitions().get(transition)) {
-                            isSame = false;
-                        }
-                    }
+        final SignatureNode known = visited.get(node);
+        if (known != null) {
+            return known;
+        }
 
-                    if (isSame) {
-                        SignatureNode vertex1presenter = representatives.get(vertex1);
-                        representatives.put(vertex2, vertex1presenter);
-                        uselessVertices.add(vertex2);
-                    }
+        RSignatureContractNode newNode = null;
+        for (Map.Entry<ContractTransition, SignatureNode> entry : node.getTransitions().entrySet()) {
+            final SignatureNode child = addObservations(entry.getValue(), pendingObservations, visited);
+            if (child != entry.getValue()) {
+                if (newNode == null) {
+                    newNode = new RSignatureContractNode(node);
                 }
+                newNode.addLink(entry.getKey(), child);
             }
+        }
 
-            List<RSignatureContractNode> prevLevel = myLevels.get(i - 1);
+        final List<SignatureNode> replacedNodes = pendingObservations.get(node);
+        if (replacedNodes != null) {
+            if (newNode == null) {
+                newNode = new RSignatureContractNode(node);
+            }
+            for (SignatureNode replacedNode : replacedNodes) {
+                newNode.addObservations(replacedNode);
+            }
+        }
 
+        final SignatureNode result = newNode == null ? node : newNode;
+        visited.put(node, result);
+        return result;
+    }
 
-            if (!uselessVertices.isEmpty()) {
-                for (RSignatureContractNode node : prevLevel) {
-                    for (ContractTransition transition : node.getTransitions().keySet()) {
-                        RSignatureContractNode child = ((RSignatureContractNode) node.getTransitions().get(transition));
-                        node.addLink(transition, representatives.get(child));
-                    }
-                }
+    @TestOnly
+    @NotNull
+    public List<List<SignatureNode>> getLevels() {
+        return myVersion.getLevels();
+    }
+
+    /**
+     * Publishes the minimized union of the current version and the additive. Subgraphs which
+     * are not extended by the additive are shared with the current version, the rows of
+     * a {@link TupleTableContract} are just added one by one. The observation counts of
+     * the additive are added to the counts of this contract.
+     */
+    public synchronized void mergeWith(@NotNull SignatureContract additive) {
+        if (additive instanceof TupleTableContract) {
+            final TupleTableContract table = (TupleTableContract) additive;
+            for (int row = 0; row < table.getRowCount(); row++) {
+                addTransitions(table.getRow(row), table.getObservationCount(row));
+            }
+            minimize();
+            return;
+        }
+
+        final SignatureContract additiveVersion = additive instanceof RSignatureContract
+                ? ((RSignatureContract) additive).snapshot()
+                : additive;
+
+        for (WideningDecision decision : additiveVersion.getWideningDecisions()) {
+            if (!WideningDecision.isWidened(myVersion.myWideningDecisions, decision.getPosition())) {
+                widen(decision.getPosition());
             }
+        }
+        for (GeneralizationDecision decision : additiveVersion.getGeneralizationDecisions()) {
+            if (!WideningDecision.isWidened(myVersion.myWideningDecisions, decision.getPosition())
+                    && !myVersion.myGeneralizationDecisions.contains(decision)) {
+                generalize(decision.getPosition(), decision.getReplacements());
+            }
+        }
 
-            //noinspection SuspiciousMethodCalls
-            level.removeAll(uselessVertices);
+        final Version version = myVersion;
+        final SignatureNode union = union(version.myStartNode, additiveVersion.getStartNode(), 0,
+                version.myWideningDecisions, version.myGeneralizationDecisions, new HashMap<>());
+        if (union == version.myStartNode) {
+            return;
         }
+
+        myVersion = new Version(union, myArgsInfo, null, version.myWideningDecisions,
+                version.myGeneralizationDecisions);
+        minimize();
+        enforceBudget();
     }
 
-    @TestOnly
+    /**
+     * @param ours     the node of this contract, {@code null} if the additive node is not present here
+     * @param theirs   the node of the additive contract on the same level
+     * @param wideningDecisions the positions at which the additive transitions are widened
+     * @param generalizationDecisions the replacements of the additive types
+     * @return {@code ours} if the additive node does not extend it and has no observations to add,
+     * a new node otherwise
+     */
     @NotNull
-    public List<List<RSignatureContractNode>> getLevels() {
-        return myLevels;
+    private SignatureNode union(@Nullable SignatureNode ours,
+                                @NotNull SignatureNode theirs,
+                                int level,
+                                @NotNull List<WideningDecision> wideningDecisions,
+                                @NotNull List<GeneralizationDecision> generalizationDecisions,
+                                @NotNull Map<PairOfNodes, SignatureNode> visited) {
+        if (level == myArgsInfo.size() + 1) {
+            return myTermNode;
+        }
+
+        final PairOfNodes pairOfNodes = new PairOfNodes(ours, theirs);
+        final SignatureNode known = visited.get(pairOfNodes);
+        if (known != null) {
+            return known;
+        }
+
+        final boolean isWidened = WideningDecision.isWidened(wideningDecisions, level);
+
+        final boolean hasObservations = hasObservations(theirs);
+
+        RSignatureContractNode newNode = null;
+        if (ours == null) {
+            newNode = new RSignatureContractNode();
+        } else if (hasObservations) {
+            newNode = new RSignatureContractNode(ours);
+        }
+
+        for (Map.Entry<ContractTransition, SignatureNode> entry : theirs.getTransitions().entrySet()) {
+            final ContractTransition generalized = GeneralizationDecision.generalize(generalizationDecisions, level, entry.getKey());
+            final ContractTransition transition = isWidened ? widen(generalized) : generalized;
+            final SignatureNode ourChild = (newNode != null ? newNode : ours).getTransitions().get(transition);
+            final SignatureNode child = union(ourChild, entry.getValue(), level + 1, wideningDecisions,
+                    generalizationDecisions, visited);
+            if (child != ourChild) {
+                if (newNode == null) {
+                    newNode = new RSignatureContractNode(ours);
+                }
+                newNode.addLink(transition, child);
+            }
+            if (hasObservations) {
+                newNode.addObservations(transition, theirs.getObservationCount(entry.getKey()));
+            }
+        }
+
+        final SignatureNode result = newNode == null ? ours : newNode;
+        visited.put(pairOfNodes, result);
+        return result;
     }
 
-    private void AddToBfsQueueAndUse(@NotNull SignatureNode oldNode, @NotNull SignatureNode newNode, @NotNull Queue<Pair<PairOfNodes, Integer>> bfsQueue, @NotNull Set<PairOfNodes> used, Integer level) {
-        PairOfNodes newPairOfNodes = new PairOfNodes(oldNode, newNode);
+    private static boolean hasObservations(@NotNull SignatureNode node) {
+        if (node instanceof RSignatureContractNode) {
+            return ((RSignatureContractNode) node).hasObservations();
+        }
+        for (ContractTransition transition : node.getTransitions().keySet()) {
+            if (node.getObservationCount(transition) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void enforceBudget() {
+        final ContractBudget budget = myBudget;
+        if (budget.isUnlimited() || !isExceeded(budget, myVersion)) {
+            return;
+        }
 
-        if (!used.contains(newPairOfNodes)) {
-            used.add(newPairOfNodes);
-            bfsQueue.add(new Pair<>(newPairOfNodes, level));
+        minimize();
+        while (isExceeded(budget, myVersion)) {
+            final int position = choosePositionToWiden(myVersion);
+            if (position < 0) {
+                return;
+            }
+            widen(position);
         }
     }
 
-    public synchronized void mergeWith(@NotNull SignatureContract additive) {
-        // TODO synchronize on additive (can't do this plainly due to the possible deadlock)???
-        Set<PairOfNodes> used = new HashSet<>();
-        Queue<Pair<PairOfNodes, Integer>> bfsQueue = new LinkedList<>();
-        PairOfNodes startPairOfNodes = new PairOfNodes(getStartNode(), additive.getStartNode());
-        bfsQueue.add(new Pair<>(startPairOfNodes, 0));
-
-        while (!bfsQueue.isEmpty()) {
-            Pair<PairOfNodes, Integer> currItem = bfsQueue.poll();
-            SignatureNode oldNode = currItem.getFirst().myOldNode;
-            SignatureNode newNode = currItem.getFirst().myNewNode;
-            Integer level = currItem.getSecond();
-
-            Map<SignatureNode, Integer> childNodesWithPows = new HashMap<>();
-
-            for (ContractTransition transition : oldNode.getTransitions().keySet()) {
-                SignatureNode node = oldNode.getTransitions().get(transition);
-
-                if (childNodesWithPows.containsKey(node)) {
-                    Integer oldPow = childNodesWithPows.get(node);
-                    childNodesWithPows.put(node, oldPow + 1);
-                } else {
-                    childNodesWithPows.put(node, 1);
+    private static boolean isExceeded(@NotNull ContractBudget budget, @NotNull Version version) {
+        return budget.isExceeded(version.getNodeCount(), version.getEdgeCount());
+    }
+
+    /**
+     * @return the not yet widened argument position having the most literal type alternatives
+     * (i.e. the least informative one) or -1 if widening cannot make the contract smaller
+     */
+    private int choosePositionToWiden(@NotNull Version version) {
+        int result = -1;
+        int resultTypesCount = 1;
+
+        for (int position = 0; position < myArgsInfo.size(); position++) {
+            if (WideningDecision.isWidened(version.myWideningDecisions, position)) {
+                continue;
+            }
+
+            final int typesCount = countTypes(version.getLevels().get(position));
+            if (typesCount > resultTypesCount) {
+                result = position;
+                resultTypesCount = typesCount;
+            }
+        }
+
+        return result;
+    }
+
+    private static int countTypes(@NotNull List<SignatureNode> level) {
+        final Set<ContractTransition> types = new HashSet<>();
+        for (SignatureNode node : level) {
+            for (ContractTransition transition : node.getTransitions().keySet()) {
+                if (transition instanceof TypedContractTransition) {
+                    types.add(transition);
                 }
             }
+        }
+        return types.size();
+    }
 
-            for (ContractTransition transition : newNode.getTransitions().keySet()) {
+    /**
+     * Replaces the literal type transitions at the given position with the single widened transition
+     * leading to the union of their targets, minimizes the result and records the decision.
+     * The widened transition counts the observations of all the replaced ones.
+     */
+    private void widen(int position) {
+        final Version version = myVersion;
+
+        final SignatureNode widened = widen(version.myStartNode, 0, position, version.myWideningDecisions,
+                version.myGeneralizationDecisions, new HashMap<>());
+        final SignatureNode minimized = minimize(widened);
+        final Version candidate = new Version(minimized, myArgsInfo, null, version.myWideningDecisions,
+                version.myGeneralizationDecisions);
+
+        final List<WideningDecision> decisions = new ArrayList<>(version.myWideningDecisions);
+        decisions.add(new WideningDecision(position, countTypes(version.getLevels().get(position)),
+                version.getNodeCount(), candidate.getNodeCount()));
+
+        myVersion = new Version(minimized, myArgsInfo, candidate.getLevels(), Collections.unmodifiableList(decisions),
+                version.myGeneralizationDecisions);
+    }
 
-                if (oldNode.getTransitions().containsKey(transition)) {
-                    SignatureNode node = oldNode.getTransitions().get(transition);
-                    if (childNodesWithPows.get(node) == 1) {
-                        AddToBfsQueueAndUse(node, newNode.getTransitions().get(transition), bfsQueue, used, level + 1);
-                        continue;
-                    }
+    @NotNull
+    private SignatureNode widen(@NotNull SignatureNode node,
+                                int level,
+                                int position,
+                                @NotNull List<WideningDecision> wideningDecisions,
+                                @NotNull List<GeneralizationDecision> generalizationDecisions,
+                                @NotNull Map<SignatureNode, SignatureNode> visited) {
+        final SignatureNode known = visited.get(node);
+        if (known != null) {
+            return known;
+        }
 
-                    Integer oldPow = childNodesWithPows.get(node);
-                    childNodesWithPows.put(node, oldPow - 1);
+        final RSignatureContractNode newNode = new RSignatureContractNode();
+        if (level < position) {
+            node.getTransitions().forEach((transition, child) ->
+                    newNode.addLink(transition, widen(child, level + 1, position, wideningDecisions,
+                            generalizationDecisions, visited)));
+            newNode.addObservations(node);
+        } else {
+            final Map<PairOfNodes, SignatureNode> unionVisited = new HashMap<>();
+            SignatureNode widenedChild = null;
+
+            for (Map.Entry<ContractTransition, SignatureNode> entry : node.getTransitions().entrySet()) {
+                if (entry.getKey() instanceof TypedContractTransition) {
+                    widenedChild = widenedChild == null
+                            ? entry.getValue()
+                            : union(widenedChild, entry.getValue(), level + 1, wideningDecisions,
+                            generalizationDecisions, unionVisited);
+                } else {
+                    newNode.addLink(entry.getKey(), entry.getValue());
                 }
+                newNode.addObservations(widen(entry.getKey()), node.getObservationCount(entry.getKey()));
+            }
 
+            if (widenedChild != null) {
+                newNode.addLink(WideningDecision.WIDENED_TRANSITION, widenedChild);
+            }
+        }
 
-                RSignatureContractNode node = createNodeAndAddToLevels(level + 1);
+        visited.put(node, newNode);
+        return newNode;
+    }
 
-                if (oldNode.getTransitions().keySet().contains(transition)) {
-                    SignatureNode nodeToClone = oldNode.getTransitions().get(transition);
+    /**
+     * Replaces the literal types at every not widened position reading more than {@code maxTypes} of them
+     * with their common ancestors, see {@link TypeHierarchy#generalize}. The transitions replaced with
+     * the same ancestor lead to the union of their targets and count the observations of all of them.
+     * <p>
+     * The replacements are recorded as a {@link GeneralizationDecision}, so the replaced types are still read
+     * by the transitions of their ancestors and the tuples added later are generalized the same way.
+     *
+     * @return true if any type was replaced
+     */
+    public synchronized boolean generalize(@NotNull TypeHierarchy hierarchy, int maxTypes) {
+        boolean changed = false;
+
+        for (int position = 0; position <= myArgsInfo.size(); position++) {
+            final Version version = myVersion;
+            if (WideningDecision.isWidened(version.myWideningDecisions, position)) {
+                continue;
+            }
 
-                    for (ContractTransition contractTransition : nodeToClone.getTransitions().keySet()) {
-                        node.getTransitions().put(contractTransition, nodeToClone.getTransitions().get(contractTransition));
+            final Set<String> types = new HashSet<>();
+            for (SignatureNode node : version.getLevels().get(position)) {
+                for (ContractTransition transition : node.getTransitions().keySet()) {
+                    if (transition instanceof TypedContractTransition) {
+                        types.add(((TypedContractTransition) transition).getType());
                     }
                 }
-                oldNode.getTransitions().put(transition, node);
+            }
+            if (types.size() <= maxTypes) {
+                continue;
+            }
 
-                AddToBfsQueueAndUse(node, newNode.getTransitions().get(transition), bfsQueue, used, level + 1);
+            final Map<String, String> replacements = hierarchy.generalize(types, maxTypes);
+            if (replacements.isEmpty()) {
+                continue;
             }
+
+            generalize(position, replacements);
+            changed = true;
         }
 
-        minimize();
+        return changed;
     }
 
-    @NotNull
-    private RSignatureContractNode createNodeAndAddToLevels(int index) {
-        RSignatureContractNode newNode = new RSignatureContractNode();
+    /**
+     * Replaces the literal types at the position according to the replacements, minimizes the result
+     * and records the decision.
+     */
+    private void generalize(int position, @NotNull Map<String, String> replacements) {
+        final Version version = myVersion;
+
+        final SignatureNode generalized = generalize(version.myStartNode, 0, position, replacements,
+                version.myWideningDecisions, version.myGeneralizationDecisions, new HashMap<>());
+
+        final List<GeneralizationDecision> decisions = new ArrayList<>(version.myGeneralizationDecisions);
+        decisions.add(new GeneralizationDecision(position, Collections.unmodifiableMap(new HashMap<>(replacements))));
+
+        myVersion = new Version(minimize(generalized), myArgsInfo, null, version.myWideningDecisions,
+                Collections.unmodifiableList(decisions));
+    }
 
-        //TODO
-        if(index == myLevels.size() - 1 && !myLevels.get(index).isEmpty()) {
-            return myLevels.get(index).get(0);
+    @NotNull
+    private SignatureNode generalize(@NotNull SignatureNode node,
+                                     int level,
+                                     int position,
+                                     @NotNull Map<String, String> replacements,
+                                     @NotNull List<WideningDecision> wideningDecisions,
+                                     @NotNull List<GeneralizationDecision> generalizationDecisions,
+                                     @NotNull Map<SignatureNode, SignatureNode> visited) {
+        final SignatureNode known = visited.get(node);
+        if (known != null) {
+            return known;
         }
 
-        if (myLevels.size() <= index) {
-            throw new IndexOutOfBoundsException("Trying to add to the level " + index
-                    + " when the number of levels is " + myLevels.size());
+        final RSignatureContractNode newNode = new RSignatureContractNode();
+        if (level < position) {
+            node.getTransitions().forEach((transition, child) -> newNode.addLink(transition,
+                    generalize(child, level + 1, position, replacements, wideningDecisions,
+                            generalizationDecisions, visited)));
+            newNode.addObservations(node);
+        } else {
+            final Map<PairOfNodes, SignatureNode> unionVisited = new HashMap<>();
+
+            for (Map.Entry<ContractTransition, SignatureNode> entry : node.getTransitions().entrySet()) {
+                ContractTransition transition = entry.getKey();
+                if (transition instanceof TypedContractTransition) {
+                    final String replacement = replacements.get(((TypedContractTransition) transition).getType());
+                    if (replacement != null) {
+                        transition = new TypedContractTransition(replacement);
+                    }
+                }
+
+                final SignatureNode present = newNode.getTransitions().get(transition);
+                newNode.addLink(transition, present == null
+                        ? entry.getValue()
+                        : union(present, entry.getValue(), level + 1, wideningDecisions,
+                        generalizationDecisions, unionVisited));
+                newNode.addObservations(transition, node.getObservationCount(entry.getKey()));
+            }
         }
-        myLevels.get(index).add(newNode);
+
+        visited.put(node, newNode);
         return newNode;
     }
 
@@ -302,28 +771,96 @@ public class RSignatureContract implements SignatureContract {
             ((RSignatureContract) first).mergeWith(second);
             return ((RSignatureContract) first);
         } else {
-            return mergeMutably(new RSignatureContract(first), second);
+            final RSignatureContract copy = new RSignatureContract(first.getArgsInfo());
+            copy.mergeWith(first);
+            return mergeMutably(copy, second);
         }
     }
 
-    private static class Immutable implements SignatureContract {
+    /**
+     * Immutable version of the contract. Levels and the summary are calculated on demand
+     * and kept for the lifetime of the version.
+     */
+    private static class Version implements SignatureContract {
         @NotNull
         private final SignatureNode myStartNode;
-
-        private final int myNodeCount;
         @NotNull
         private final List<ParameterInfo> myArgsInfo;
-
-
-        private Immutable(@NotNull SignatureNode startNode, int nodeCount, @NotNull List<ParameterInfo> argsInfo) {
+        @NotNull
+        private final List<WideningDecision> myWideningDecisions;
+        @NotNull
+        private final List<GeneralizationDecision> myGeneralizationDecisions;
+
+        @Nullable
+        private volatile List<List<SignatureNode>> myLevels;
+        @Nullable
+        private volatile ReturnTypeSummary myReturnTypeSummary;
+        /**
+         * -1 until calculated
+         */
+        private volatile long myEstimatedSize = -1;
+
+        private Version(@NotNull SignatureNode startNode,
+                        @NotNull List<ParameterInfo> argsInfo,
+                        @Nullable List<? extends List<? extends SignatureNode>> levels,
+                        @NotNull List<WideningDecision> wideningDecisions,
+                        @NotNull List<GeneralizationDecision> generalizationDecisions) {
             myStartNode = startNode;
-            myNodeCount = nodeCount;
             myArgsInfo = argsInfo;
+            myWideningDecisions = wideningDecisions;
+            myGeneralizationDecisions = generalizationDecisions;
+            if (levels != null) {
+                final List<List<SignatureNode>> copy = new ArrayList<>(levels.size());
+                levels.forEach(level -> copy.add(Collections.unmodifiableList(new ArrayList<>(level))));
+                myLevels = Collections.unmodifiableList(copy);
+            }
+        }
+
+        @NotNull
+        private List<List<SignatureNode>> getLevels() {
+            List<List<SignatureNode>> levels = myLevels;
+            if (levels == null) {
+                levels = calculateLevels();
+                myLevels = levels;
+            }
+            return levels;
+        }
+
+        @NotNull
+        private List<List<SignatureNode>> calculateLevels() {
+            final List<List<SignatureNode>> levels = new ArrayList<>(myArgsInfo.size() + 2);
+            Collection<SignatureNode> level = Collections.singletonList(myStartNode);
+
+            for (int i = 0; i < myArgsInfo.size() + 2; i++) {
+                levels.add(Collections.unmodifiableList(new ArrayList<>(level)));
+
+                final Set<SignatureNode> nextLevel = new LinkedHashSet<>();
+                for (SignatureNode node : level) {
+                    nextLevel.addAll(node.getTransitions().values());
+                }
+                level = nextLevel;
+            }
+
+            return Collections.unmodifiableList(levels);
         }
 
         @Override
         public int getNodeCount() {
-            return myNodeCount;
+            return getLevels().stream().mapToInt(List::size).sum();
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            long size = myEstimatedSize;
+            if (size < 0) {
+                size = ContractSizeEstimator.estimateGraph(myStartNode);
+                myEstimatedSize = size;
+            }
+            return size;
+        }
+
+        private int getEdgeCount() {
+            return getLevels().stream().flatMap(List::stream).mapToInt(node -> node.getTransitions().size()).sum();
         }
 
         @NotNull
@@ -337,23 +874,53 @@ public class RSignatureContract implements SignatureContract {
         public List<ParameterInfo> getArgsInfo() {
             return myArgsInfo;
         }
-    }
 
-    private static class PairOfNodes {
         @NotNull
-        private final SignatureNode myOldNode;
+        @Override
+        public List<WideningDecision> getWideningDecisions() {
+            return myWideningDecisions;
+        }
+
         @NotNull
-        private final SignatureNode myNewNode;
+        @Override
+        public List<GeneralizationDecision> getGeneralizationDecisions() {
+            return myGeneralizationDecisions;
+        }
 
         @NotNull
-        PairOfNodes pairGoByTransition(@NotNull ContractTransition transition) {
-            return new PairOfNodes(myOldNode.getTransitions().get(transition), myNewNode.getTransitions().get(transition));
+        @Override
+        public ReturnTypeSummary getReturnTypeSummary() {
+            ReturnTypeSummary summary = myReturnTypeSummary;
+            if (summary == null) {
+                summary = ReturnTypeSummary.calculate(this);
+                myReturnTypeSummary = summary;
+            }
+            return summary;
         }
+    }
+
+    private static class PairOfNodes {
+        @Nullable
+        private final SignatureNode myOldNode;
+        @NotNull
+        private final SignatureNode myNewNode;
 
-        PairOfNodes(@NotNull SignatureNode node1, @NotNull SignatureNode node2) {
+        PairOfNodes(@Nullable SignatureNode node1, @NotNull SignatureNode node2) {
             myOldNode = node1;
             myNewNode = node2;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final PairOfNodes that = (PairOfNodes) o;
+            return myOldNode == that.myOldNode && myNewNode == that.myNewNode;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(myOldNode) + System.identityHashCode(myNewNode);
+        }
     }
 }
-
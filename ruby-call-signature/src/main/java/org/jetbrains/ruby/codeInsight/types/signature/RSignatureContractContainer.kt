@@ -2,14 +2,39 @@ package org.jetbrains.ruby.codeInsight.types.signature
 
 import java.util.*
 
-class RSignatureContractContainer {
+/**
+ * Contracts reading at most [maxTableRows] tuples are kept as [TupleTableContract]s and converted
+ * to [RSignatureContract]s with the given [budget] once they grow bigger.
+ *
+ * If [countObservations] is set the contracts count the observations of every added tuple,
+ * so the tuples already read by the contracts should be added as well.
+ *
+ * The container keeps the [estimatedSize] of its contracts up to date and the order in which they
+ * were last updated, so that the contracts may be [evict]ed once they take too much memory.
+ */
+class RSignatureContractContainer @JvmOverloads constructor(
+        private val budget: ContractBudget = ContractBudget.DEFAULT,
+        private val maxTableRows: Int = TupleTableContract.DEFAULT_MAX_ROWS,
+        private val countObservations: Boolean = false) {
 
-    private val myContracts: MutableMap<MethodInfo, RSignatureContract>
-    private val myNumberOfCalls: MutableMap<MethodInfo, Int>
+    enum class EvictionPolicy {
+        LEAST_RECENTLY_UPDATED,
+        LARGEST
+    }
+
+    /**
+     * Iterated from the least recently updated contract
+     */
+    private val myContracts: MutableMap<MethodInfo, SignatureContract>
+
+    /**
+     * Sum of the estimated sizes of the contracts in bytes
+     */
+    var estimatedSize: Long = 0
+        private set
 
     init {
-        myContracts = HashMap()
-        myNumberOfCalls = HashMap()
+        myContracts = LinkedHashMap()
     }
 
     fun acceptTuple(tuple: RTuple): Boolean {
@@ -19,33 +44,130 @@ class RSignatureContractContainer {
         return contract != null && tuple.argsInfo == contract.argsInfo && SignatureContract.accept(contract, tuple)
     }
 
+    /**
+     * @return the indices of the tuples accepted by the contracts, see [SignatureContract.acceptAll]
+     */
+    fun acceptTuples(tuples: List<RTuple>): BitSet {
+        val result = BitSet(tuples.size)
+
+        tuples.indices.groupBy { tuples[it].methodInfo }.forEach { (info, indices) ->
+            val contract = myContracts[info] ?: return@forEach
+            val sameArgs = indices.filter { tuples[it].argsInfo == contract.argsInfo }
+            val accepted = SignatureContract.acceptAll(contract, sameArgs.map { tuples[it] })
+            accepted.stream().forEach { result.set(sameArgs[it]) }
+        }
+
+        return result
+    }
+
     fun addTuple(tuple: RTuple) {
         val currInfo = tuple.methodInfo
+        val contract = myContracts[currInfo]
 
-        if (myContracts.containsKey(currInfo)) {
-            val contract = myContracts[currInfo]
+        if (contract == null || tuple.argsInfo.size == contract.argsInfo.size) {
+            update(currInfo, contract, tuple)
+        }
+    }
+
+    /**
+     * Adds the tuple unless it is already accepted, with a single lookup of the contract.
+     *
+     * @return true if the tuple was added (or, when counting observations, counted)
+     */
+    fun offer(tuple: RTuple): Boolean {
+        val currInfo = tuple.methodInfo
+        val contract = myContracts[currInfo]
 
-            if (tuple.argsInfo.size == contract?.argsInfo?.size) {
-                contract.addRTuple(tuple)
-                myNumberOfCalls.compute(currInfo) { _, oldNumber -> (oldNumber ?: 0) + 1 }
+        if (contract != null) {
+            if (tuple.argsInfo.size != contract.argsInfo.size) {
+                return false
             }
+            if (!countObservations && tuple.argsInfo == contract.argsInfo && SignatureContract.accept(contract, tuple)) {
+                return false
+            }
+        }
+
+        update(currInfo, contract, tuple)
+        return true
+    }
+
+    private fun update(info: MethodInfo, contract: SignatureContract?, tuple: RTuple) {
+        // automata are modified in place, so the size must be taken beforehand
+        val sizeBefore = contract?.estimatedSize ?: 0
+        val result = addTuple(contract, tuple)
+        estimatedSize += result.estimatedSize - sizeBefore
+
+        if (contract != null) {
+            myContracts.remove(info)
+        }
+        myContracts.put(info, result)
+    }
+
+    private fun addTuple(contract: SignatureContract?, tuple: RTuple): SignatureContract {
+        val table = when (contract) {
+            null -> TupleTableContract(tuple, countObservations)
+            is TupleTableContract -> contract.withTuple(tuple)
+            is RSignatureContract -> return contract.apply { addRTuple(tuple) }
+            else -> return RSignatureContract.mergeMutably(contract, TupleTableContract(tuple, countObservations))
+        }
+
+        return if (table.rowCount <= maxTableRows) {
+            table
         } else {
-            val contract = RSignatureContract(tuple)
-            myContracts.put(currInfo, contract)
+            table.toAutomaton().also { it.budget = budget }
         }
     }
 
     val registeredMethods: Set<MethodInfo>
         get() = myContracts.keys
 
-    fun getSignature(info: MethodInfo): RSignatureContract? {
+    /**
+     * The contracts as they are, unlike [getSignature] which minimizes them
+     */
+    val contracts: Map<MethodInfo, SignatureContract>
+        get() = Collections.unmodifiableMap(myContracts)
+
+    fun getSignature(info: MethodInfo): SignatureContract? {
         return myContracts[info]?.let {
-            it.minimize()
+            if (it is RSignatureContract) {
+                val sizeBefore = it.estimatedSize
+                it.minimize()
+                estimatedSize += it.estimatedSize - sizeBefore
+            }
             it
         }
     }
 
+    /**
+     * Removes the contracts chosen by the [policy] until the [estimatedSize] is at most [targetSize].
+     *
+     * @return the removed contracts to be stored elsewhere
+     */
+    @JvmOverloads
+    fun evict(targetSize: Long, policy: EvictionPolicy = EvictionPolicy.LEAST_RECENTLY_UPDATED): Map<MethodInfo, SignatureContract> {
+        val result = LinkedHashMap<MethodInfo, SignatureContract>()
+        if (estimatedSize <= targetSize) {
+            return result
+        }
+
+        val candidates = when (policy) {
+            EvictionPolicy.LEAST_RECENTLY_UPDATED -> myContracts.keys.toList()
+            EvictionPolicy.LARGEST -> myContracts.entries.sortedByDescending { it.value.estimatedSize }.map { it.key }
+        }
+
+        for (info in candidates) {
+            if (estimatedSize <= targetSize) {
+                break
+            }
+            result[info] = getSignature(info)!!
+            estimatedSize -= myContracts.remove(info)!!.estimatedSize
+        }
+
+        return result
+    }
+
     fun clear() {
         myContracts.clear()
+        estimatedSize = 0
     }
-}
\ No newline at end of file
+}
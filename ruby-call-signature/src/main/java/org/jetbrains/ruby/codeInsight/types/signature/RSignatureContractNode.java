@@ -1,20 +1,38 @@
 package org.jetbrains.ruby.codeInsight.types.signature;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
 
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Nodes are only linked and counted while they are being built. Once a node is reachable from a published
+ * version of {@link RSignatureContract} it is never modified, modifications create new nodes instead.
+ */
 public class RSignatureContractNode implements SignatureNode {
 
     @NotNull
     private final Map<ContractTransition, SignatureNode> myTransitions;
 
+    @Nullable
+    private volatile ObservationCounters myCounters;
+
     public RSignatureContractNode() {
         myTransitions = new HashMap<>();
     }
 
+    /**
+     * Creates an unpublished node with the same transitions as the given one. The transitions are
+     * re-added one by one so the copy iterates them in the same order as the source.
+     */
+    RSignatureContractNode(@NotNull SignatureNode source) {
+        this();
+        source.getTransitions().forEach(myTransitions::put);
+        addObservations(source);
+    }
+
     public void addLink(final @NotNull ContractTransition transition, @NotNull SignatureNode arrivalNode) {
         myTransitions.put(transition, arrivalNode);
     }
@@ -24,4 +42,39 @@ public class RSignatureContractNode implements SignatureNode {
     public Map<ContractTransition, SignatureNode> getTransitions() {
         return myTransitions;
     }
+
+    @Override
+    public int getObservationCount(@NotNull ContractTransition transition) {
+        final ObservationCounters counters = myCounters;
+        return counters == null ? 0 : counters.get(transition);
+    }
+
+    public void addObservations(@NotNull ContractTransition transition, int count) {
+        if (count <= 0) {
+            return;
+        }
+
+        ObservationCounters counters = myCounters;
+        if (counters == null) {
+            counters = new ObservationCounters(myTransitions.size());
+            myCounters = counters;
+        }
+        counters.add(transition, count);
+    }
+
+    boolean hasObservations() {
+        return myCounters != null;
+    }
+
+    /**
+     * Adds the counts of the transitions of the given node to the counts of the same transitions of this node
+     */
+    void addObservations(@NotNull SignatureNode source) {
+        if (source instanceof RSignatureContractNode && !((RSignatureContractNode) source).hasObservations()) {
+            return;
+        }
+        for (ContractTransition transition : source.getTransitions().keySet()) {
+            addObservations(transition, source.getObservationCount(transition));
+        }
+    }
 }
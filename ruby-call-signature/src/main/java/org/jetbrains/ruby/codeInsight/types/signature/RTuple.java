@@ -1,6 +1,8 @@
 package org.jetbrains.ruby.codeInsight.types.signature;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TransitionHelper;
 
 import java.util.List;
 
@@ -16,6 +18,12 @@ public class RTuple {
     @NotNull
     private final String myReturnTypeName;
 
+    /**
+     * Transitions to be read by the contract automaton, calculated once and shared by
+     * all the contracts this tuple is checked against
+     */
+    private volatile ContractTransition[] myTransitions;
+
     public RTuple(@NotNull final MethodInfo methodInfo,
                   @NotNull final List<ParameterInfo> argsInfo,
                   @NotNull final List<String> argsTypeName,
@@ -46,6 +54,20 @@ public class RTuple {
         return myReturnTypeName;
     }
 
+    /**
+     * @return transitions for all the argument positions followed by the transition for the return type.
+     * The array is shared, callers must not modify it.
+     */
+    @NotNull
+    ContractTransition[] getTransitions() {
+        ContractTransition[] transitions = myTransitions;
+        if (transitions == null) {
+            transitions = TransitionHelper.calculateTransitions(myArgsTypes, myReturnTypeName);
+            myTransitions = transitions;
+        }
+        return transitions;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,104 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+
+/**
+ * Literal types which may be read by a contract at each position.
+ *
+ * Level `i < argsInfo.size` holds the types of the i-th argument, the last level holds the return types.
+ * Reference transitions are resolved to the types read at the referenced positions on the paths
+ * leading to the transition, so the summary contains literal type names only.
+ *
+ * The summary is immutable; contracts calculate it lazily and cache it until they are modified,
+ * see [SignatureContract.returnTypeSummary].
+ */
+class ReturnTypeSummary(levelTypes: List<Set<String>>) {
+    val levelTypes: List<Set<String>> = levelTypes.map { it.toSet() }
+
+    val allReturnTypes: Set<String>
+        get() = levelTypes.last()
+
+    /**
+     * Types which may be read at any of the argument positions
+     */
+    val allArgumentTypes: Set<String> by lazy { levelTypes.dropLast(1).flatMapTo(HashSet()) { it } }
+
+    fun getLevelTypes(level: Int): Set<String> = levelTypes[level]
+
+    companion object {
+        @JvmStatic
+        fun calculate(contract: SignatureContract): ReturnTypeSummary {
+            val levelTypes = List(contract.argsInfo.size + 1) { HashSet<String>() }
+            walk(contract) { level, _, _, types -> levelTypes[level].addAll(types) }
+            return ReturnTypeSummary(levelTypes)
+        }
+
+        /**
+         * @return the observation counts of the transitions reading each return type, empty if the contract
+         * does not count observations. A reference transition counts for every type it may resolve to.
+         */
+        @JvmStatic
+        fun calculateReturnTypeCounts(contract: SignatureContract): Map<String, Long> {
+            val returnLevel = contract.argsInfo.size
+            val counts = HashMap<String, Long>()
+            walk(contract) { level, node, transition, types ->
+                val count = node.getObservationCount(transition)
+                if (level == returnLevel && count > 0) {
+                    types.forEach { counts[it] = (counts[it] ?: 0L) + count }
+                }
+            }
+            return counts
+        }
+
+        /**
+         * Walks the contract level by level keeping for every node the types which may have been
+         * read at each previous position on the paths to it, and passes each transition along with
+         * the types it reads to the [visitor].
+         */
+        private fun walk(contract: SignatureContract,
+                         visitor: (level: Int, node: SignatureNode, transition: ContractTransition, types: Set<String>) -> Unit) {
+            val levelsCount = contract.argsInfo.size + 1
+
+            var currentLevel: Map<SignatureNode, List<Set<String>>> = mapOf(contract.startNode to emptyList())
+
+            for (level in 0 until levelsCount) {
+                val nextLevel = HashMap<SignatureNode, List<MutableSet<String>>>()
+
+                for ((node, readTypes) in currentLevel) {
+                    for ((transition, target) in node.transitions) {
+                        val types = when (transition) {
+                            is TypedContractTransition -> setOf(transition.type)
+                            is ReferenceContractTransition -> resolveReference(transition, readTypes)
+                            else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
+                        }
+                        visitor(level, node, transition, types)
+
+                        if (level + 1 < levelsCount) {
+                            val targetReadTypes = nextLevel.getOrPut(target) { List(level + 1) { HashSet<String>() } }
+                            for (i in 0 until level) {
+                                targetReadTypes[i].addAll(readTypes[i])
+                            }
+                            targetReadTypes[level].addAll(types)
+                        }
+                    }
+                }
+
+                currentLevel = nextLevel
+            }
+        }
+
+        private fun resolveReference(transition: ReferenceContractTransition, readTypes: List<Set<String>>): Set<String> {
+            var result: MutableSet<String>? = null
+            var position = transition.nextPosition(0)
+
+            while (position >= 0 && position < readTypes.size) {
+                result = result?.apply { retainAll(readTypes[position]) } ?: HashSet(readTypes[position])
+                position = transition.nextPosition(position + 1)
+            }
+
+            return result ?: emptySet()
+        }
+    }
+}
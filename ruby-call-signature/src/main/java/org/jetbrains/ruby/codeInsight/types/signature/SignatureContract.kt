@@ -1,12 +1,7 @@
 package org.jetbrains.ruby.codeInsight.types.signature
 
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
-import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
-import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TransitionHelper
-import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
 import java.util.*
-import kotlin.collections.HashMap
-import kotlin.collections.HashSet
 
 /**
  * The `SignatureContract` interface allows for checking input type sequence validity
@@ -34,139 +29,131 @@ interface SignatureContract {
     val startNode: SignatureNode
     val argsInfo: List<ParameterInfo>
 
+    /**
+     * Types read by the contract at each position. Implementations calculate the summary lazily
+     * and keep it until the set of read type tuples changes, so repeated queries are cheap.
+     */
+    val returnTypeSummary: ReturnTypeSummary
+
+    /**
+     * Positions widened to keep the contract within its [ContractBudget], in the order they were widened.
+     */
+    val wideningDecisions: List<WideningDecision>
+
+    /**
+     * Positions generalized with the type hierarchy, in the order they were generalized.
+     */
+    val generalizationDecisions: List<GeneralizationDecision>
+
+    /**
+     * Approximate heap size of the contract in bytes, see [ContractSizeEstimator]
+     */
+    val estimatedSize: Long
+
     companion object {
         fun accept(rSignatureContract: SignatureContract, signature: RTuple): Boolean {
-            var currNode = rSignatureContract.startNode
+            if (rSignatureContract is TupleTableContract) {
+                return rSignatureContract.accept(signature)
+            }
 
-            val returnType = signature.returnTypeName
+            var currNode = rSignatureContract.startNode
 
-            val argsTypes = signature.argsTypes
-            for (argIndex in argsTypes.indices) {
-                val type = argsTypes[argIndex]
+            val transitions = signature.transitions
+            val argsCount = transitions.size - 1
+            for (argIndex in 0 until argsCount) {
+                currNode = currNode.transitions[transitions[argIndex]]
+                        ?: readGeneralized(rSignatureContract, currNode, argIndex, transitions[argIndex])
+                        ?: readWidened(rSignatureContract, currNode, argIndex)
+                        ?: return false
+            }
 
-                val transition = TransitionHelper.calculateTransition(signature.argsTypes, argIndex, type)
+            return currNode.transitions.containsKey(transitions[argsCount])
+                    || readGeneralized(rSignatureContract, currNode, argsCount, transitions[argsCount]) != null
+        }
 
-                currNode = currNode.transitions[transition]
-                        ?: return false
+        /**
+         * Checks many tuples at once. Each tuple is read starting from the node where its common prefix
+         * with the previous tuple ends, so the shared prefixes of the adjacent near-identical tuples
+         * (as in a replayed trace) are walked only once. Comparing the transitions to the previous ones
+         * is cheaper than looking them up, so unrelated tuples are checked about as fast as by [accept].
+         *
+         * @return the indices of the accepted tuples, the tuples of the other arity are not accepted
+         */
+        fun acceptAll(contract: SignatureContract, tuples: List<RTuple>): BitSet {
+            val result = BitSet(tuples.size)
+            if (contract is TupleTableContract) {
+                tuples.forEachIndexed { index, tuple -> if (contract.accept(tuple)) result.set(index) }
+                return result
             }
 
-            val transition = TransitionHelper.calculateTransition(signature.argsTypes, signature.argsTypes.size, returnType)
+            val argsCount = contract.argsInfo.size
 
-            return currNode.transitions.containsKey(transition)
-        }
+            // path[i] is the node reached by the previous tuple after i transitions,
+            // the first null one is where it failed and the ones after it are stale
+            val path = arrayOfNulls<SignatureNode>(argsCount + 1)
+            path[0] = contract.startNode
+            var previous: Array<ContractTransition>? = null
 
-        fun getAllReturnTypes(rSignatureContract: SignatureContract): Set<String> {
-            val curNode = rSignatureContract.startNode
-            return forwardLook(curNode)
-        }
+            for (index in tuples.indices) {
+                val current = tuples[index].transitions
+                if (current.size != argsCount + 1) {
+                    continue
+                }
 
-        private fun getBackEdges(startNode: SignatureNode): Map<SignatureNode, Map<ContractTransition, SignatureNode>> {
-            val result = HashMap<SignatureNode, MutableMap<ContractTransition, SignatureNode>>()
-            val queue = LinkedList<SignatureNode>()
-            val visited = HashSet<SignatureNode>()
-            queue.push(startNode)
-            visited.add(startNode)
-            while (!queue.isEmpty()) {
-                val node = queue.poll()
-                for ((transition, succ) in node.transitions) {
-                    if (!visited.contains(succ)) {
-                        var nodeEntry = result[succ]
-                        if (nodeEntry == null) {
-                            nodeEntry = HashMap()
-                            result.put(succ, nodeEntry)
-                        }
-                        nodeEntry.put(transition, node)
-                        visited.add(succ)
-                        queue.push(succ)
+                var depth = 0
+                if (previous != null) {
+                    while (depth < argsCount && path[depth + 1] != null && current[depth] == previous[depth]) {
+                        depth++
                     }
                 }
-            }
-            return result
-        }
 
-        private fun forwardLook(startNode: SignatureNode): Set<String> {
-            val backEdges = getBackEdges(startNode)
-            val queue = LinkedList<SignatureNode>()
-            val visited = HashSet<SignatureNode>()
-            val level = HashMap<SignatureNode, Int>()
-            val result = HashSet<String>()
-
-            queue.push(startNode)
-            visited.add(startNode)
-            level[startNode] = 0
-
-            while (!queue.isEmpty()) {
-                val signatureNode = queue.poll()
-                for ((key, value) in signatureNode.transitions) {
-                    // is it exit node?
-                    if (value.transitions.isEmpty()) {
-                        when (key) {
-                            is TypedContractTransition -> result.add(key.type)
-                            is ReferenceContractTransition -> result.addAll(
-                                    backwardLook(signatureNode,
-                                            level[signatureNode]!! - getHighestSetBit(key.mask),
-                                            level[signatureNode]!!, backEdges))
-                            else -> throw IllegalStateException()
-                        }
-                    } else if (!visited.contains(value)) {
-                        visited.add(value)
-                        level[value] = level[signatureNode]!! + 1
-                        queue.add(value)
-                    }
+                var node = path[depth]
+                while (node != null && depth < argsCount) {
+                    node = node.transitions[current[depth]]
+                            ?: readGeneralized(contract, node, depth, current[depth])
+                            ?: readWidened(contract, node, depth)
+                    path[++depth] = node
                 }
+
+                if (node != null && (node.transitions.containsKey(current[argsCount])
+                                || readGeneralized(contract, node, argsCount, current[argsCount]) != null)) {
+                    result.set(index)
+                }
+                previous = current
             }
+
             return result
         }
 
-        private fun getHighestSetBit(mask: Int): Int {
-            var m = mask
-            var result = 0
-            while (m > 0) {
-                result++
-                m = m shr 1
+        private fun readGeneralized(contract: SignatureContract, node: SignatureNode, position: Int,
+                                    transition: ContractTransition): SignatureNode? {
+            val decisions = contract.generalizationDecisions
+            if (decisions.isEmpty()) {
+                return null
             }
-            return result
+            val generalized = GeneralizationDecision.generalize(decisions, position, transition)
+            return if (generalized !== transition) node.transitions[generalized] else null
         }
 
-        private fun backwardLook(value: SignatureNode, numOfSteps: Int, originLevel: Int,
-                                 backEdges: Map<SignatureNode, Map<ContractTransition, SignatureNode>>): Collection<String> {
-            var nodesOnCurrentLevel = HashSet<SignatureNode>()
-            nodesOnCurrentLevel.add(value)
-            var currentStep = numOfSteps;
-            while (currentStep >= 0) {
-                if (currentStep > 0 ) {
-                    val nodesOnPreviousLevel = HashSet<SignatureNode>()
-                    for (node in nodesOnCurrentLevel) {
-                        for ((_, pred) in backEdges[node]!!) {
-                            nodesOnPreviousLevel.add(pred)
-                        }
-                    }
-                    nodesOnCurrentLevel = nodesOnPreviousLevel
-                } else {
-                    val result = HashSet<String>()
-                    for (node in nodesOnCurrentLevel) {
-                        for ((transition, _) in backEdges[node]!!) {
-                            if (transition is TypedContractTransition) {
-                                result.add(transition.type)
-                            } else if (transition is ReferenceContractTransition) {
-                                val curLevel = originLevel - numOfSteps
-                                val curNumOfSteps = curLevel - getHighestSetBit(transition.mask)
-                                val res = backwardLook(node, curNumOfSteps, curLevel, backEdges)
-                                result.addAll(res)
-                            } else
-                                throw IllegalArgumentException("Cannot reach")
-
-                        }
-                    }
-                    return result
-                }
-                currentStep--;
+        private fun readWidened(contract: SignatureContract, node: SignatureNode, position: Int): SignatureNode? {
+            return if (WideningDecision.isWidened(contract.wideningDecisions, position)) {
+                node.transitions[WideningDecision.WIDENED_TRANSITION]
+            } else {
+                null
             }
-            throw IllegalArgumentException("Cannot reach")
+        }
+
+        fun getAllReturnTypes(rSignatureContract: SignatureContract): Set<String> {
+            return rSignatureContract.returnTypeSummary.allReturnTypes
         }
     }
 }
 
 interface SignatureNode {
     val transitions: Map<ContractTransition, SignatureNode>
+
+    /**
+     * @return the number of observed tuples read by the transition, 0 if the observations are not counted
+     */
+    fun getObservationCount(transition: ContractTransition): Int
 }
\ No newline at end of file
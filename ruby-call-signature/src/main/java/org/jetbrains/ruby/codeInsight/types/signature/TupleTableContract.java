@@ -0,0 +1,223 @@
+package org.jetbrains.ruby.codeInsight.types.signature;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contract reading only a few tuples, stored as a flat table of their transitions.
+ * <p>
+ * Most of the methods are called with one to three distinct type tuples, so a table scanned linearly is
+ * both smaller and faster than an automaton for them. The table is immutable: {@link #withTuple(RTuple)}
+ * returns an extended copy, and it is converted with {@link #toAutomaton()} once it grows too big.
+ * <p>
+ * The nodes of the contract are those of the equivalent minimized automaton, which is built on demand,
+ * so tables are serialized and merged exactly as automata are.
+ * <p>
+ * A table created with {@code countObservations} counts the observations of each row, the counts are
+ * passed to the automaton.
+ */
+public final class TupleTableContract implements SignatureContract {
+
+    public static final int DEFAULT_MAX_ROWS = 4;
+
+    @NotNull
+    private final List<ParameterInfo> myArgsInfo;
+
+    /**
+     * Rows of {@code myArgsInfo.size() + 1} transitions each, the last one being the transition for the return type.
+     * Equal transitions in a column are the same instance.
+     */
+    @NotNull
+    private final ContractTransition[] myCells;
+
+    /**
+     * Observation counts of the rows, {@code null} if the table does not count observations
+     */
+    @Nullable
+    private final int[] myRowCounts;
+
+    @Nullable
+    private volatile SignatureContract myAutomaton;
+
+    public TupleTableContract(@NotNull RTuple tuple) {
+        this(tuple, false);
+    }
+
+    public TupleTableContract(@NotNull RTuple tuple, boolean countObservations) {
+        this(tuple.getArgsInfo(), tuple.getTransitions().clone(), countObservations ? new int[]{1} : null);
+    }
+
+    private TupleTableContract(@NotNull List<ParameterInfo> argsInfo,
+                               @NotNull ContractTransition[] cells,
+                               @Nullable int[] rowCounts) {
+        myArgsInfo = argsInfo;
+        myCells = cells;
+        myRowCounts = rowCounts;
+    }
+
+    public int getRowCount() {
+        return myCells.length / getRowWidth();
+    }
+
+    private int getRowWidth() {
+        return myArgsInfo.size() + 1;
+    }
+
+    @NotNull
+    ContractTransition[] getRow(int index) {
+        final int width = getRowWidth();
+        return Arrays.copyOfRange(myCells, index * width, (index + 1) * width);
+    }
+
+    public boolean isCountingObservations() {
+        return myRowCounts != null;
+    }
+
+    /**
+     * @return the number of observations of the row, 0 if the table does not count observations
+     */
+    public int getObservationCount(int row) {
+        return myRowCounts == null ? 0 : myRowCounts[row];
+    }
+
+    public boolean accept(@NotNull RTuple tuple) {
+        return indexOf(tuple.getTransitions()) >= 0;
+    }
+
+    private int indexOf(@NotNull ContractTransition[] transitions) {
+        final int width = getRowWidth();
+        if (transitions.length != width) {
+            return -1;
+        }
+
+        rows:
+        for (int row = 0; row < getRowCount(); row++) {
+            final int offset = row * width;
+            for (int column = 0; column < width; column++) {
+                if (!myCells[offset + column].equals(transitions[column])) {
+                    continue rows;
+                }
+            }
+            return row;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the table with the given tuple appended, or this table if it already reads the tuple
+     * and does not count observations
+     */
+    @NotNull
+    public TupleTableContract withTuple(@NotNull RTuple tuple) {
+        final ContractTransition[] transitions = tuple.getTransitions();
+        final int index = indexOf(transitions);
+        if (index >= 0) {
+            if (myRowCounts == null) {
+                return this;
+            }
+            final int[] rowCounts = myRowCounts.clone();
+            rowCounts[index] = ObservationCounters.saturatedAdd(rowCounts[index], 1);
+            return new TupleTableContract(myArgsInfo, myCells, rowCounts);
+        }
+
+        final int width = getRowWidth();
+        final int offset = myCells.length;
+        final ContractTransition[] cells = Arrays.copyOf(myCells, offset + width);
+
+        for (int column = 0; column < width; column++) {
+            cells[offset + column] = intern(transitions[column], column);
+        }
+
+        int[] rowCounts = null;
+        if (myRowCounts != null) {
+            rowCounts = Arrays.copyOf(myRowCounts, myRowCounts.length + 1);
+            rowCounts[myRowCounts.length] = 1;
+        }
+
+        return new TupleTableContract(myArgsInfo, cells, rowCounts);
+    }
+
+    @NotNull
+    private ContractTransition intern(@NotNull ContractTransition transition, int column) {
+        for (int offset = column; offset < myCells.length; offset += getRowWidth()) {
+            if (myCells[offset].equals(transition)) {
+                return myCells[offset];
+            }
+        }
+        return transition;
+    }
+
+    /**
+     * @return a new mutable automaton reading the same tuples, counting observations if the table does
+     */
+    @NotNull
+    public RSignatureContract toAutomaton() {
+        final RSignatureContract result = new RSignatureContract(myArgsInfo);
+        result.setCountingObservations(isCountingObservations());
+        for (int row = 0; row < getRowCount(); row++) {
+            result.addTransitions(getRow(row), getObservationCount(row));
+        }
+        return result;
+    }
+
+    @NotNull
+    private SignatureContract getAutomaton() {
+        SignatureContract automaton = myAutomaton;
+        if (automaton == null) {
+            final RSignatureContract contract = toAutomaton();
+            contract.minimize();
+            automaton = contract.snapshot();
+            myAutomaton = automaton;
+        }
+        return automaton;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return getAutomaton().getNodeCount();
+    }
+
+    @NotNull
+    @Override
+    public SignatureNode getStartNode() {
+        return getAutomaton().getStartNode();
+    }
+
+    @NotNull
+    @Override
+    public List<ParameterInfo> getArgsInfo() {
+        return myArgsInfo;
+    }
+
+    @NotNull
+    @Override
+    public ReturnTypeSummary getReturnTypeSummary() {
+        return getAutomaton().getReturnTypeSummary();
+    }
+
+    /**
+     * Does not include the automaton built on demand, so the size of a table never changes
+     */
+    @Override
+    public long getEstimatedSize() {
+        return ContractSizeEstimator.estimateTable(myCells)
+                + (myRowCounts == null ? 0 : ContractSizeEstimator.estimateRowCounts(myRowCounts.length));
+    }
+
+    @NotNull
+    @Override
+    public List<WideningDecision> getWideningDecisions() {
+        return Collections.emptyList();
+    }
+
+    @NotNull
+    @Override
+    public List<GeneralizationDecision> getGeneralizationDecisions() {
+        return Collections.emptyList();
+    }
+}
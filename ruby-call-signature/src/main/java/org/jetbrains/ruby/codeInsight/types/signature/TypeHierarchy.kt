@@ -0,0 +1,68 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+/**
+ * Superclass relation of the traced types, used to replace the sibling type alternatives of a contract
+ * with their lowest common ancestor, see [RSignatureContract.generalize].
+ */
+interface TypeHierarchy {
+    /**
+     * @return the direct superclass of the type, null for a root class or a type the hierarchy does not know
+     */
+    fun getSuperclass(type: String): String?
+
+    /**
+     * Groups the types under their common ancestors until at most [maxTypes] distinct types are left
+     * or no type has a known superclass. The largest group of siblings (the types having the same
+     * superclass, along with the superclass itself if it is one of the types) is replaced with the
+     * superclass first. If every group is a single type, the deepest type is replaced with
+     * its superclass, so that it meets its relatives higher in the hierarchy.
+     *
+     * @return the ancestor replacing each of the types which are replaced
+     */
+    fun generalize(types: Set<String>, maxTypes: Int): Map<String, String> {
+        val replacements = types.associateTo(HashMap()) { it to it }
+        var current: Set<String> = HashSet(types)
+
+        // bounds the lifting in case the hierarchy is not acyclic
+        var steps = 0
+        while (current.size > maxTypes && steps++ < types.size * MAX_HIERARCHY_DEPTH) {
+            val siblings = HashMap<String, MutableList<String>>()
+            for (type in current) {
+                getSuperclass(type)?.let { siblings.getOrPut(it) { ArrayList() }.add(type) }
+            }
+            if (siblings.isEmpty()) {
+                break
+            }
+
+            val groupSize = { entry: Map.Entry<String, List<String>> -> entry.value.size + if (entry.key in current) 1 else 0 }
+            val largest = siblings.entries.maxBy(groupSize)!!
+            val (superclass, lifted) = if (groupSize(largest) > 1) {
+                largest.key to largest.value.toSet()
+            } else {
+                val deepest = siblings.values.flatten().maxBy { depth(it) }!!
+                getSuperclass(deepest)!! to setOf(deepest)
+            }
+
+            for (entry in replacements.entries) {
+                if (entry.value in lifted) {
+                    entry.setValue(superclass)
+                }
+            }
+            current = replacements.values.toHashSet()
+        }
+
+        return replacements.filter { it.key != it.value }
+    }
+
+    private fun depth(type: String): Int {
+        var depth = 0
+        var superclass = getSuperclass(type)
+        while (superclass != null && depth < MAX_HIERARCHY_DEPTH) {
+            depth++
+            superclass = getSuperclass(superclass)
+        }
+        return depth
+    }
+}
+
+private const val MAX_HIERARCHY_DEPTH = 1000
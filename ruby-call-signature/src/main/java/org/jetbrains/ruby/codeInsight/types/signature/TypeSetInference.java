@@ -0,0 +1,214 @@
+package org.jetbrains.ruby.codeInsight.types.signature;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition;
+
+import java.util.*;
+
+/**
+ * Calculates the return types of a call with possibly union argument types by reading the argument
+ * type sets with a contract.
+ * <p>
+ * Type names are interned to ids, so the type sets are {@link BitSet}s of ids. The contract is walked
+ * level by level keeping for every frontier node the types which may have been read at each previous
+ * position. These sets are shared with the previous level until two paths meet in a node,
+ * so the walk does not copy anything per step.
+ * <p>
+ * Instances keep the interned names and are not thread-safe.
+ */
+public class TypeSetInference {
+
+    @NotNull
+    private final Map<String, Integer> myTypeIds = new HashMap<>();
+    @NotNull
+    private final List<String> myTypeNames = new ArrayList<>();
+    @NotNull
+    private final List<TypedContractTransition> myTypedTransitions = new ArrayList<>();
+
+    public int intern(@NotNull String typeName) {
+        final Integer id = myTypeIds.get(typeName);
+        if (id != null) {
+            return id;
+        }
+
+        myTypeIds.put(typeName, myTypeNames.size());
+        myTypeNames.add(typeName);
+        myTypedTransitions.add(new TypedContractTransition(typeName));
+        return myTypeNames.size() - 1;
+    }
+
+    @NotNull
+    public String getTypeName(int id) {
+        return myTypeNames.get(id);
+    }
+
+    @NotNull
+    public BitSet toBitSet(@NotNull Collection<String> typeNames) {
+        final BitSet result = new BitSet();
+        typeNames.forEach(it -> result.set(intern(it)));
+        return result;
+    }
+
+    @NotNull
+    public Set<String> toTypeNames(@NotNull BitSet ids) {
+        final Set<String> result = new HashSet<>();
+        ids.stream().forEach(id -> result.add(getTypeName(id)));
+        return result;
+    }
+
+    @NotNull
+    public Set<String> inferReturnTypeNames(@NotNull SignatureContract contract,
+                                            @NotNull List<? extends Collection<String>> argumentTypeNames) {
+        final List<BitSet> argumentTypes = new ArrayList<>(argumentTypeNames.size());
+        argumentTypeNames.forEach(it -> argumentTypes.add(toBitSet(it)));
+        return toTypeNames(inferReturnTypes(contract, argumentTypes));
+    }
+
+    /**
+     * @param argumentTypes ids of the possible types for each argument position of the contract
+     * @return ids of the possible return types, empty if the contract reads none of the argument type combinations
+     */
+    @NotNull
+    public BitSet inferReturnTypes(@NotNull SignatureContract contract, @NotNull List<BitSet> argumentTypes) {
+        final int argsCount = argumentTypes.size();
+        final List<WideningDecision> wideningDecisions = contract.getWideningDecisions();
+        final List<GeneralizationDecision> generalizationDecisions = contract.getGeneralizationDecisions();
+
+        Map<SignatureNode, ReadTypes> frontier = new HashMap<>();
+        frontier.put(contract.getStartNode(), new ReadTypes(argsCount));
+
+        for (int position = 0; position < argsCount && !frontier.isEmpty(); position++) {
+            final BitSet types = argumentTypes.get(position);
+            final boolean isWidened = WideningDecision.isWidened(wideningDecisions, position);
+            final Map<SignatureNode, ReadTypes> nextFrontier = new HashMap<>();
+
+            for (Map.Entry<SignatureNode, ReadTypes> entry : frontier.entrySet()) {
+                final Map<ContractTransition, SignatureNode> transitions = entry.getKey().getTransitions();
+                final ReadTypes readTypes = entry.getValue();
+
+                for (int id = types.nextSetBit(0); id >= 0; id = types.nextSetBit(id + 1)) {
+                    final ContractTransition typedTransition = myTypedTransitions.get(id);
+                    SignatureNode target = transitions.get(typedTransition);
+                    if (target == null && !generalizationDecisions.isEmpty()) {
+                        target = transitions.get(
+                                GeneralizationDecision.generalize(generalizationDecisions, position, typedTransition));
+                    }
+                    if (target == null) {
+                        target = transitions.get(readTypes.getReference(id, position));
+                    }
+                    if (target == null && isWidened) {
+                        target = transitions.get(WideningDecision.WIDENED_TRANSITION);
+                    }
+
+                    if (target != null) {
+                        final ReadTypes targetReadTypes = nextFrontier.get(target);
+                        if (targetReadTypes == null) {
+                            nextFrontier.put(target, new ReadTypes(readTypes, position, id));
+                        } else {
+                            targetReadTypes.merge(readTypes, position, id);
+                        }
+                    }
+                }
+            }
+
+            frontier = nextFrontier;
+        }
+
+        final BitSet result = new BitSet();
+        frontier.forEach((node, readTypes) -> {
+            for (ContractTransition transition : node.getTransitions().keySet()) {
+                if (transition instanceof TypedContractTransition) {
+                    result.set(intern(((TypedContractTransition) transition).getType()));
+                } else if (transition instanceof ReferenceContractTransition) {
+                    final BitSet referenced = readTypes.resolve((ReferenceContractTransition) transition, argsCount);
+                    if (referenced != null) {
+                        result.or(referenced);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Types read at each previous position on the paths to a frontier node. The sets of the positions
+     * before the last one may be shared with the nodes of the previous level and are copied only when
+     * another path is merged in.
+     */
+    private static class ReadTypes {
+        @NotNull
+        private final BitSet[] mySets;
+        @Nullable
+        private final boolean[] myIsOwned;
+
+        ReadTypes(int argsCount) {
+            mySets = new BitSet[argsCount];
+            myIsOwned = null;
+        }
+
+        ReadTypes(@NotNull ReadTypes source, int position, int typeId) {
+            mySets = source.mySets.clone();
+            myIsOwned = new boolean[mySets.length];
+            mySets[position] = new BitSet();
+            mySets[position].set(typeId);
+            myIsOwned[position] = true;
+        }
+
+        void merge(@NotNull ReadTypes source, int position, int typeId) {
+            assert myIsOwned != null;
+            for (int i = 0; i < position; i++) {
+                if (mySets[i] == source.mySets[i]) {
+                    continue;
+                }
+                if (!myIsOwned[i]) {
+                    mySets[i] = (BitSet) mySets[i].clone();
+                    myIsOwned[i] = true;
+                }
+                mySets[i].or(source.mySets[i]);
+            }
+            mySets[position].set(typeId);
+        }
+
+        /**
+         * @return the reference transition reading the type at the position,
+         * same as {@code TransitionHelper.calculateTransition} calculates for literal types
+         */
+        @NotNull
+        ReferenceContractTransition getReference(int typeId, int position) {
+            if (position <= Long.SIZE) {
+                long mask = 0;
+                for (int i = position - 1; i >= 0; i--) {
+                    mask <<= 1;
+                    if (mySets[i].get(typeId)) {
+                        mask |= 1;
+                    }
+                }
+                return new ReferenceContractTransition(mask);
+            }
+
+            final BitSet positions = new BitSet(position);
+            for (int i = 0; i < position; i++) {
+                if (mySets[i].get(typeId)) {
+                    positions.set(i);
+                }
+            }
+            return ReferenceContractTransition.fromBitSet(positions);
+        }
+
+        @Nullable
+        BitSet resolve(@NotNull ReferenceContractTransition transition, int argsCount) {
+            BitSet result = null;
+            for (int i = transition.nextPosition(0); i >= 0 && i < argsCount; i = transition.nextPosition(i + 1)) {
+                if (result == null) {
+                    result = (BitSet) mySets[i].clone();
+                } else {
+                    result.and(mySets[i]);
+                }
+            }
+            return result;
+        }
+    }
+}
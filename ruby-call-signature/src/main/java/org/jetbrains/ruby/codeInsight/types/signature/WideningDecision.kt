@@ -0,0 +1,26 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+
+/**
+ * Records that the literal types read by a contract at argument [position] were collapsed
+ * into the single [WIDENED_TRANSITION] to keep the contract within its [ContractBudget].
+ *
+ * Reference transitions at the position are kept, so the equalities to the previous arguments are still known.
+ * Any type at a widened position is read by the widened transition unless it is read explicitly.
+ */
+data class WideningDecision(val position: Int,
+                            val collapsedTypesCount: Int,
+                            val nodeCountBefore: Int,
+                            val nodeCountAfter: Int) {
+    companion object {
+        const val WIDENED_TYPE = "Object"
+
+        @JvmField
+        val WIDENED_TRANSITION: ContractTransition = TypedContractTransition(WIDENED_TYPE)
+
+        @JvmStatic
+        fun isWidened(decisions: List<WideningDecision>, position: Int) = decisions.any { it.position == position }
+    }
+}
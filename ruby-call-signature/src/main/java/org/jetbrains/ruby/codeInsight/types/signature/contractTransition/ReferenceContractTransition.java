@@ -1,47 +1,151 @@
 package org.jetbrains.ruby.codeInsight.types.signature.contractTransition;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+/**
+ * Transition reading the type of the previous arguments at the positions set in the mask.
+ * <p>
+ * Positions below {@link Long#SIZE} are kept in a single {@code long}, the mask is extended with
+ * more words only for the methods having more arguments. The hash code of a mask of the first
+ * {@link Integer#SIZE} positions is the {@code int} value of the mask.
+ */
 public class ReferenceContractTransition implements ContractTransition {
 
-    private final int myMask;
+    private final long myMask;
 
+    /**
+     * Words of the mask after the first one without the trailing zero words, {@code null} if there are none
+     */
+    @Nullable
+    private final long[] myHighWords;
+
+    /**
+     * @param mask the mask of the first {@link Integer#SIZE} positions, the sign bit being position 31
+     */
     public ReferenceContractTransition(int mask) {
+        this(mask & 0xFFFFFFFFL);
+    }
+
+    public ReferenceContractTransition(long mask) {
+        this(mask, null);
+    }
+
+    private ReferenceContractTransition(long mask, @Nullable long[] highWords) {
         myMask = mask;
+        myHighWords = highWords;
+    }
+
+    /**
+     * @param words the mask as returned by {@link BitSet#toLongArray()}
+     */
+    @NotNull
+    public static ReferenceContractTransition fromWords(@NotNull long[] words) {
+        int length = words.length;
+        while (length > 1 && words[length - 1] == 0) {
+            length--;
+        }
+
+        if (length <= 1) {
+            return new ReferenceContractTransition(length == 0 ? 0 : words[0]);
+        }
+        return new ReferenceContractTransition(words[0], Arrays.copyOfRange(words, 1, length));
+    }
+
+    @NotNull
+    public static ReferenceContractTransition fromBitSet(@NotNull BitSet positions) {
+        return fromWords(positions.toLongArray());
     }
 
     @NotNull
     @Override
     public Set<String> getValue(@NotNull List<Set<String>> readTypes) {
-        int tmpMask = myMask;
-        int cnt = 0;
-
         Set<String> ans = null;
 
-        while (tmpMask > 0) {
-            if (tmpMask % 2 == 1) {
-                if (ans == null) {
-                    ans = new HashSet<>(readTypes.get(cnt));
-                } else {
-                    ans.retainAll(readTypes.get(cnt));
-                }
+        for (int position = nextPosition(0); position >= 0 && position < readTypes.size(); position = nextPosition(position + 1)) {
+            if (ans == null) {
+                ans = new HashSet<>(readTypes.get(position));
+            } else {
+                ans.retainAll(readTypes.get(position));
             }
-
-            tmpMask /= 2;
-            cnt++;
         }
 
         return ans;
     }
 
-    public int getMask() {
+    /**
+     * @return the first position at or after {@code fromPosition} set in the mask, -1 if there is none.
+     * Iterating the positions with this method does not allocate anything.
+     */
+    public int nextPosition(int fromPosition) {
+        int wordIndex = fromPosition / Long.SIZE;
+        if (wordIndex == 0) {
+            final long word = myMask & (-1L << fromPosition);
+            if (word != 0) {
+                return Long.numberOfTrailingZeros(word);
+            }
+            wordIndex = 1;
+            fromPosition = Long.SIZE;
+        }
+
+        if (myHighWords == null) {
+            return -1;
+        }
+
+        long word = wordIndex - 1 < myHighWords.length ? myHighWords[wordIndex - 1] & (-1L << fromPosition) : 0;
+        while (true) {
+            if (word != 0) {
+                return wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex - 1 >= myHighWords.length) {
+                return -1;
+            }
+            word = myHighWords[wordIndex - 1];
+        }
+    }
+
+    public boolean isSet(int position) {
+        if (position < Long.SIZE) {
+            return (myMask & (1L << position)) != 0;
+        }
+        final int wordIndex = position / Long.SIZE - 1;
+        return myHighWords != null && wordIndex < myHighWords.length && (myHighWords[wordIndex] & (1L << position)) != 0;
+    }
+
+    /**
+     * @return the mask of the first {@link Long#SIZE} positions
+     */
+    public long getMask() {
         return myMask;
     }
 
+    /**
+     * @return true if the mask refers to the positions beyond the first {@link Long#SIZE} ones
+     */
+    public boolean isWide() {
+        return myHighWords != null;
+    }
+
+    /**
+     * @return the mask words, the first one being {@link #getMask()}
+     */
+    @NotNull
+    public long[] toWords() {
+        if (myHighWords == null) {
+            return new long[]{myMask};
+        }
+        final long[] result = new long[myHighWords.length + 1];
+        result[0] = myMask;
+        System.arraycopy(myHighWords, 0, result, 1, myHighWords.length);
+        return result;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -49,11 +153,12 @@ public class ReferenceContractTransition implements ContractTransition {
 
         ReferenceContractTransition that = (ReferenceContractTransition) o;
 
-        return myMask == that.myMask;
+        return myMask == that.myMask && Arrays.equals(myHighWords, that.myHighWords);
     }
 
     @Override
     public int hashCode() {
-        return myMask;
+        final int result = Long.hashCode(myMask);
+        return myHighWords == null ? result : 31 * result + Arrays.hashCode(myHighWords);
     }
-}
\ No newline at end of file
+}
@@ -2,7 +2,10 @@ package org.jetbrains.ruby.codeInsight.types.signature.contractTransition;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class TransitionHelper {
     private TransitionHelper() {
@@ -10,25 +13,80 @@ public class TransitionHelper {
 
     @NotNull
     public static ContractTransition calculateTransition(@NotNull List<String> argTypes, int argIndex, @NotNull String type) {
-        final int mask = getNewMask(argTypes, argIndex, type);
+        final BitSet positions = new BitSet(argIndex);
+        for (int i = 0; i < argIndex; i++) {
+            if (argTypes.get(i).equals(type)) {
+                positions.set(i);
+            }
+        }
 
-        if (mask > 0)
-            return new ReferenceContractTransition(mask);
+        if (!positions.isEmpty())
+            return ReferenceContractTransition.fromBitSet(positions);
         else
             return new TypedContractTransition(type);
     }
 
-    private static int getNewMask(@NotNull List<String> argsTypes, int argIndex, @NotNull String type) {
-        int tempMask = 0;
+    /**
+     * Calculates transitions for all the positions of the tuple at once: the i-th element is
+     * the same as {@code calculateTransition(argTypes, i, argTypes[i])} and the last one is
+     * the transition for the return type.
+     * <p>
+     * Each distinct type of the tuple is looked up only once, the equality masks are accumulated
+     * along the way instead of rescanning all the previous arguments for every position.
+     * Masks of the tuples having more than {@link Long#SIZE} arguments are accumulated in bit sets.
+     */
+    @NotNull
+    public static ContractTransition[] calculateTransitions(@NotNull List<String> argTypes, @NotNull String returnType) {
+        return argTypes.size() <= Long.SIZE
+                ? calculateNarrowTransitions(argTypes, returnType)
+                : calculateWideTransitions(argTypes, returnType);
+    }
 
-        for (int i = argIndex - 1; i >= 0; i--) {
-            tempMask <<= 1;
+    @NotNull
+    private static ContractTransition[] calculateNarrowTransitions(@NotNull List<String> argTypes, @NotNull String returnType) {
+        final int size = argTypes.size();
+        final ContractTransition[] result = new ContractTransition[size + 1];
+        final Map<String, Long> type2mask = new HashMap<>(size * 2 + 2);
 
-            if (argsTypes.get(i).equals(type)) {
-                tempMask |= 1;
+        for (int i = 0; i <= size; i++) {
+            final String type = i < size ? argTypes.get(i) : returnType;
+            final Long mask = type2mask.get(type);
+
+            if (mask != null) {
+                result[i] = new ReferenceContractTransition(mask.longValue());
+            } else {
+                result[i] = new TypedContractTransition(type);
+            }
+
+            if (i < size) {
+                type2mask.put(type, (mask == null ? 0 : mask) | (1L << i));
             }
         }
 
-        return tempMask;
+        return result;
+    }
+
+    @NotNull
+    private static ContractTransition[] calculateWideTransitions(@NotNull List<String> argTypes, @NotNull String returnType) {
+        final int size = argTypes.size();
+        final ContractTransition[] result = new ContractTransition[size + 1];
+        final Map<String, BitSet> type2positions = new HashMap<>(size * 2 + 2);
+
+        for (int i = 0; i <= size; i++) {
+            final String type = i < size ? argTypes.get(i) : returnType;
+            BitSet positions = type2positions.get(type);
+
+            if (positions != null) {
+                result[i] = ReferenceContractTransition.fromBitSet(positions);
+            } else {
+                result[i] = new TypedContractTransition(type);
+                positions = new BitSet(size);
+                type2positions.put(type, positions);
+            }
+
+            positions.set(i);
+        }
+
+        return result;
     }
 }
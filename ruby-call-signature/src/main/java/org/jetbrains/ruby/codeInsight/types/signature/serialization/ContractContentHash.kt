@@ -0,0 +1,91 @@
+package org.jetbrains.ruby.codeInsight.types.signature.serialization
+
+import org.jetbrains.ruby.codeInsight.types.signature.RSignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureNode
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import java.io.DataOutputStream
+import java.io.OutputStream
+import java.security.MessageDigest
+
+/**
+ * Length of [contentHash] in characters
+ */
+const val CONTENT_HASH_LENGTH = 64
+
+/**
+ * Typed transitions go first in the order of their types, then the reference ones in the order of their masks
+ */
+private val CANONICAL_TRANSITION_ORDER = Comparator<ContractTransition> { first, second ->
+    when {
+        first is TypedContractTransition && second is TypedContractTransition -> first.type.compareTo(second.type)
+        first is TypedContractTransition -> -1
+        second is TypedContractTransition -> 1
+        else -> {
+            val firstWords = (first as ReferenceContractTransition).toWords()
+            val secondWords = (second as ReferenceContractTransition).toWords()
+            (0 until Math.min(firstWords.size, secondWords.size))
+                    .map { firstWords[it].compareTo(secondWords[it]) }
+                    .firstOrNull { it != 0 }
+                    ?: firstWords.size.compareTo(secondWords.size)
+        }
+    }
+}
+
+/**
+ * SHA-256 of the canonical form of the contract as a hex string of [CONTENT_HASH_LENGTH] characters.
+ *
+ * The canonical form does not depend on the order the transitions were added in nor on the format the contract
+ * was read from: the nodes are numbered in the breadth-first order visiting the transitions of every node in
+ * the [CANONICAL_TRANSITION_ORDER]. Equal contracts, i.e. the ones with the same arguments, widening and
+ * generalization decisions, transitions and observation counts, have equal hashes. The decisions are stated by
+ * the first byte along with the presence of the counts, so the contracts without generalizations keep their hashes.
+ */
+fun SignatureContract.contentHash(): String {
+    (this as? RSignatureContract)?.let { return it.snapshot().contentHash() }
+
+    val digest = MessageDigest.getInstance("SHA-256")
+    val stream = DataOutputStream(object : OutputStream() {
+        override fun write(b: Int) = digest.update(b.toByte())
+
+        override fun write(b: ByteArray, off: Int, len: Int) = digest.update(b, off, len)
+    })
+
+    val hasObservations = startNode.hasObservations()
+    val hasGeneralizations = generalizationDecisions.isNotEmpty()
+    stream.writeByte((if (hasObservations) 1 else 0) or (if (hasGeneralizations) 2 else 0))
+    stream.writeInt(wideningDecisions.size)
+    wideningDecisions.forEach { it.serialize(stream) }
+    if (hasGeneralizations) {
+        stream.writeInt(generalizationDecisions.size)
+        generalizationDecisions.forEach { it.serialize(stream) }
+    }
+    stream.writeInt(argsInfo.size)
+    argsInfo.forEach { it.serialize(stream) }
+
+    val order = ArrayList<SignatureNode>(nodeCount)
+    val ids = HashMap<SignatureNode, Int>()
+    ids[startNode] = 0
+    order.add(startNode)
+    var index = 0
+    while (index < order.size) {
+        val node = order[index++]
+        val transitions = node.transitions.entries.sortedWith(compareBy(CANONICAL_TRANSITION_ORDER) { it.key })
+        stream.writeInt(transitions.size)
+        for ((transition, target) in transitions) {
+            if (ids.putIfAbsent(target, order.size) == null) {
+                order.add(target)
+            }
+            transition.serialize(stream, wideMasks = true)
+            stream.writeInt(ids[target]!!)
+            if (hasObservations) {
+                stream.writeInt(node.getObservationCount(transition))
+            }
+        }
+    }
+    stream.flush()
+
+    return digest.digest().joinToString("") { String.format("%02x", it) }
+}
@@ -0,0 +1,358 @@
+package org.jetbrains.ruby.codeInsight.types.signature.serialization
+
+import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import java.io.*
+import java.nio.ByteBuffer
+import java.util.TreeSet
+import kotlin.collections.ArrayList
+import kotlin.collections.HashMap
+import kotlin.collections.LinkedHashMap
+import kotlin.collections.LinkedHashSet
+
+/**
+ * Header byte of the indexed format, see [serializeIndexed]
+ */
+const val INDEXED_FORMAT_HEADER: Byte = 3
+
+private const val SIZE_OFFSET = 1
+private const val FLAGS_OFFSET = 5
+private const val ARGS_COUNT_OFFSET = 9
+private const val NODE_COUNT_OFFSET = 13
+private const val TYPE_COUNT_OFFSET = 17
+private const val TYPE_TABLE_OFFSET = 21
+private const val NODE_TABLE_OFFSET = 25
+private const val FIXED_HEADER_SIZE = 29
+
+private const val TRANSITION_SIZE = 8
+private const val INDEXED_KNOWN_FLAGS = WIDENING_DECISIONS_FLAG or OBSERVATION_COUNTS_FLAG or GENERALIZATION_DECISIONS_FLAG
+
+/**
+ * Writes the contract in the indexed format, which is read in place by [IndexedSignatureContract].
+ * All the numbers are ints, the offsets are counted from the header byte:
+ *  * the header, the size of the contract in bytes, the flags, the arguments count, the node count, the type count,
+ *    the offset of the type table and the offset of the node table;
+ *  * the widening and the generalization decisions (if any) and the arguments as in the original format;
+ *  * the type table holding the offset of every type name, followed by the names in the sorted order;
+ *  * the reference masks: the word count followed by the words;
+ *  * the node table holding the offset of every node, the nodes being in the breadth-first order;
+ *  * the nodes: the transitions count followed by the transitions sorted by their codes, the code and the target
+ *    index of each, followed by the observation counts of the transitions if they are counted. A typed transition
+ *    is coded as twice the index of its type, a reference one as twice the offset of its mask plus one.
+ */
+fun SignatureContract.serializeIndexed(stream: DataOutput) {
+    (this as? RSignatureContract)?.let { return it.snapshot().serializeIndexed(stream) }
+
+    val hasObservations = startNode.hasObservations()
+    val flags = (if (wideningDecisions.isNotEmpty()) WIDENING_DECISIONS_FLAG else 0) or
+            (if (hasObservations) OBSERVATION_COUNTS_FLAG else 0) or
+            (if (generalizationDecisions.isNotEmpty()) GENERALIZATION_DECISIONS_FLAG else 0)
+
+    val order = ArrayList<SignatureNode>(nodeCount)
+    val ids = HashMap<SignatureNode, Int>()
+    val types = TreeSet<String>()
+    val maskOffsets = LinkedHashMap<ReferenceContractTransition, Int>()
+    var masksSize = 0
+    ids[startNode] = 0
+    order.add(startNode)
+    var index = 0
+    while (index < order.size) {
+        for ((transition, target) in order[index++].transitions) {
+            if (ids.putIfAbsent(target, order.size) == null) {
+                order.add(target)
+            }
+            when (transition) {
+                is TypedContractTransition -> types.add(transition.type)
+                is ReferenceContractTransition -> if (transition !in maskOffsets) {
+                    maskOffsets[transition] = masksSize
+                    masksSize += 4 + 8 * transition.toWords().size
+                }
+            }
+        }
+    }
+
+    val prefix = ByteArrayOutputStream()
+    DataOutputStream(prefix).let { out ->
+        if (flags and WIDENING_DECISIONS_FLAG != 0) {
+            out.writeInt(wideningDecisions.size)
+            wideningDecisions.forEach { it.serialize(out) }
+        }
+        if (flags and GENERALIZATION_DECISIONS_FLAG != 0) {
+            out.writeInt(generalizationDecisions.size)
+            generalizationDecisions.forEach { it.serialize(out) }
+        }
+        argsInfo.forEach { it.serialize(out) }
+    }
+
+    val names = ByteArrayOutputStream()
+    val nameOffsets = IntArray(types.size)
+    DataOutputStream(names).let { out ->
+        types.forEachIndexed { i, type ->
+            nameOffsets[i] = out.size()
+            out.writeUTF(type)
+        }
+    }
+
+    val typeTable = FIXED_HEADER_SIZE + prefix.size()
+    val namesStart = typeTable + 4 * types.size
+    val masksStart = namesStart + names.size()
+    val nodeTable = masksStart + masksSize
+    val nodeOffsets = IntArray(order.size)
+    var size = nodeTable + 4L * order.size
+    val transitionSize = TRANSITION_SIZE + if (hasObservations) 4 else 0
+    order.forEachIndexed { i, node ->
+        nodeOffsets[i] = size.toInt()
+        size += 4 + transitionSize.toLong() * node.transitions.size
+    }
+    // the codes of the references hold the mask offsets shifted by one bit
+    if (size > Int.MAX_VALUE || nodeTable > Int.MAX_VALUE shr 1) {
+        throw IllegalStateException("Contract of $size bytes does not fit into the indexed format")
+    }
+
+    val typeIds = HashMap<String, Int>()
+    types.forEach { typeIds[it] = typeIds.size }
+    val code = { transition: ContractTransition ->
+        when (transition) {
+            is TypedContractTransition -> typeIds[transition.type]!! shl 1
+            is ReferenceContractTransition -> (masksStart + maskOffsets[transition]!!) shl 1 or 1
+            else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
+        }
+    }
+
+    stream.writeByte(INDEXED_FORMAT_HEADER.toInt())
+    stream.writeInt(size.toInt())
+    stream.writeInt(flags)
+    stream.writeInt(argsInfo.size)
+    stream.writeInt(order.size)
+    stream.writeInt(types.size)
+    stream.writeInt(typeTable)
+    stream.writeInt(nodeTable)
+    stream.write(prefix.toByteArray())
+    nameOffsets.forEach { stream.writeInt(namesStart + it) }
+    stream.write(names.toByteArray())
+    maskOffsets.keys.forEach { mask ->
+        val words = mask.toWords()
+        stream.writeInt(words.size)
+        words.forEach { stream.writeLong(it) }
+    }
+    nodeOffsets.forEach { stream.writeInt(it) }
+    for (node in order) {
+        val transitions = node.transitions.keys.sortedBy(code)
+        stream.writeInt(transitions.size)
+        transitions.forEach {
+            stream.writeInt(code(it))
+            stream.writeInt(ids[node.transitions[it]!!]!!)
+        }
+        if (hasObservations) {
+            transitions.forEach { stream.writeInt(node.getObservationCount(it)) }
+        }
+    }
+}
+
+internal fun readIndexedContract(stream: DataInput): SignatureContract {
+    val size = stream.readInt()
+    if (size < FIXED_HEADER_SIZE) {
+        throw IOException("Cannot deserialize SignatureContract: indexed contract of $size bytes")
+    }
+    val buffer = ByteBuffer.allocate(size)
+    buffer.put(INDEXED_FORMAT_HEADER)
+    buffer.putInt(size)
+    stream.readFully(buffer.array(), FLAGS_OFFSET, size - FLAGS_OFFSET)
+    buffer.clear()
+    return IndexedSignatureContract(buffer)
+}
+
+/**
+ * Read-only contract over a buffer holding it in the indexed format, see [serializeIndexed].
+ *
+ * Only the header, the arguments and the decisions are decoded when the view is created. The nodes
+ * and their transitions are decoded while they are traversed and are not kept, the type names are decoded
+ * once they are looked up. A transition is found by a binary search over the type names and then over
+ * the transitions of the node, so checking a tuple does not read the rest of the contract.
+ *
+ * The buffer, which may be memory-mapped, is only read with the absolute methods, so the view may be shared
+ * between threads. Its nodes are equal if they have the same index, so the view can be merged into
+ * an [RSignatureContract] and serialized as any other contract.
+ */
+class IndexedSignatureContract(buffer: ByteBuffer) : SignatureContract {
+
+    private val myBuffer: ByteBuffer = buffer.slice()
+
+    private val myHasObservations: Boolean
+    private val myTypeTable: Int
+    private val myNodeTable: Int
+
+    /**
+     * Typed transitions of the decoded type names, by their indices
+     */
+    private val myTypes: Array<TypedContractTransition?>
+
+    @Volatile
+    private var myReturnTypeSummary: ReturnTypeSummary? = null
+
+    override val nodeCount: Int
+    override val argsInfo: List<ParameterInfo>
+    override val wideningDecisions: List<WideningDecision>
+    override val generalizationDecisions: List<GeneralizationDecision>
+
+    init {
+        if (myBuffer.remaining() < FIXED_HEADER_SIZE || myBuffer.get(0) != INDEXED_FORMAT_HEADER) {
+            throw IOException("Cannot read SignatureContract: the buffer does not start with an indexed contract")
+        }
+        val size = myBuffer.getInt(SIZE_OFFSET)
+        if (size > myBuffer.remaining()) {
+            throw IOException("Cannot read SignatureContract: $size bytes expected, ${myBuffer.remaining()} found")
+        }
+        val flags = myBuffer.getInt(FLAGS_OFFSET)
+        if (flags and INDEXED_KNOWN_FLAGS.inv() != 0) {
+            throw IOException("Cannot read SignatureContract: unknown format flags $flags")
+        }
+
+        myHasObservations = flags and OBSERVATION_COUNTS_FLAG != 0
+        myTypeTable = myBuffer.getInt(TYPE_TABLE_OFFSET)
+        myNodeTable = myBuffer.getInt(NODE_TABLE_OFFSET)
+        myTypes = arrayOfNulls(myBuffer.getInt(TYPE_COUNT_OFFSET))
+        nodeCount = myBuffer.getInt(NODE_COUNT_OFFSET)
+
+        val stream = DataInputStream(ByteArrayInputStream(getBytes(FIXED_HEADER_SIZE, myTypeTable - FIXED_HEADER_SIZE)))
+        wideningDecisions = if (flags and WIDENING_DECISIONS_FLAG != 0) {
+            List(stream.readInt()) { WideningDecision(stream) }
+        } else {
+            emptyList()
+        }
+        generalizationDecisions = if (flags and GENERALIZATION_DECISIONS_FLAG != 0) {
+            List(stream.readInt()) { GeneralizationDecision(stream) }
+        } else {
+            emptyList()
+        }
+        argsInfo = List(myBuffer.getInt(ARGS_COUNT_OFFSET)) { ParameterInfo(stream) }
+    }
+
+    override val startNode: SignatureNode
+        get() = Node(0)
+
+    override val returnTypeSummary: ReturnTypeSummary
+        get() = myReturnTypeSummary ?: ReturnTypeSummary.calculate(this).also { myReturnTypeSummary = it }
+
+    override val estimatedSize: Long
+        get() = ContractSizeEstimator.estimateBufferView(myTypes.size)
+
+    private fun getBytes(offset: Int, length: Int) = ByteArray(length) { myBuffer.get(offset + it) }
+
+    private fun getType(index: Int): TypedContractTransition {
+        myTypes[index]?.let { return it }
+
+        val offset = myBuffer.getInt(myTypeTable + 4 * index)
+        val length = 2 + (myBuffer.getShort(offset).toInt() and 0xFFFF)
+        return TypedContractTransition(DataInputStream(ByteArrayInputStream(getBytes(offset, length))).readUTF())
+                .also { myTypes[index] = it }
+    }
+
+    /**
+     * @return the index of the type name, -1 if the contract does not read it
+     */
+    private fun findType(type: String): Int {
+        var low = 0
+        var high = myTypes.size - 1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val comparison = getType(middle).type.compareTo(type)
+            when {
+                comparison < 0 -> low = middle + 1
+                comparison > 0 -> high = middle - 1
+                else -> return middle
+            }
+        }
+        return -1
+    }
+
+    private fun decode(code: Int): ContractTransition {
+        if (code and 1 == 0) {
+            return getType(code ushr 1)
+        }
+        val offset = code ushr 1
+        return ReferenceContractTransition.fromWords(LongArray(myBuffer.getInt(offset)) { myBuffer.getLong(offset + 4 + 8 * it) })
+    }
+
+    private fun isMask(code: Int, words: LongArray): Boolean {
+        val offset = code ushr 1
+        if (code and 1 == 0 || myBuffer.getInt(offset) != words.size) {
+            return false
+        }
+        return words.indices.all { myBuffer.getLong(offset + 4 + 8 * it) == words[it] }
+    }
+
+    private inner class Node(val index: Int) : SignatureNode {
+        private val myOffset = myBuffer.getInt(myNodeTable + 4 * index)
+
+        private val owner: IndexedSignatureContract
+            get() = this@IndexedSignatureContract
+
+        private val transitionsCount: Int
+            get() = myBuffer.getInt(myOffset)
+
+        override val transitions: Map<ContractTransition, SignatureNode> = object : AbstractMap<ContractTransition, SignatureNode>() {
+            override val size: Int
+                get() = transitionsCount
+
+            override fun containsKey(key: ContractTransition) = indexOf(key) >= 0
+
+            override fun get(key: ContractTransition): SignatureNode? {
+                val index = indexOf(key)
+                return if (index >= 0) Node(getTarget(index)) else null
+            }
+
+            override val entries: Set<Map.Entry<ContractTransition, SignatureNode>>
+                get() = (0 until transitionsCount).mapTo(LinkedHashSet()) {
+                    java.util.AbstractMap.SimpleImmutableEntry<ContractTransition, SignatureNode>(decode(getCode(it)), Node(getTarget(it)))
+                }
+        }
+
+        private fun getCode(index: Int) = myBuffer.getInt(myOffset + 4 + TRANSITION_SIZE * index)
+
+        private fun getTarget(index: Int) = myBuffer.getInt(myOffset + 8 + TRANSITION_SIZE * index)
+
+        private fun indexOf(transition: ContractTransition): Int {
+            when (transition) {
+                is TypedContractTransition -> {
+                    val type = findType(transition.type)
+                    if (type < 0) {
+                        return -1
+                    }
+                    val code = type shl 1
+                    var low = 0
+                    var high = transitionsCount - 1
+                    while (low <= high) {
+                        val middle = (low + high) ushr 1
+                        val current = getCode(middle)
+                        when {
+                            current < code -> low = middle + 1
+                            current > code -> high = middle - 1
+                            else -> return middle
+                        }
+                    }
+                    return -1
+                }
+                is ReferenceContractTransition -> {
+                    val words = transition.toWords()
+                    return (0 until transitionsCount).firstOrNull { isMask(getCode(it), words) } ?: -1
+                }
+                else -> return -1
+            }
+        }
+
+        override fun getObservationCount(transition: ContractTransition): Int {
+            if (!myHasObservations) {
+                return 0
+            }
+            val index = indexOf(transition)
+            return if (index >= 0) myBuffer.getInt(myOffset + 4 + TRANSITION_SIZE * transitionsCount + 4 * index) else 0
+        }
+
+        override fun equals(other: Any?) = other is Node && other.owner === owner && other.index == index
+
+        override fun hashCode() = index
+    }
+}
@@ -62,60 +62,158 @@ fun Location(stream: DataInput): Location {
 
 object SignatureInfoSerialization {
 
-    private val PROTOCOL_VERSION = 1
+    /**
+     * Version 2 stores [ReturnTypeSummary] after each contract, version 3 writes the contracts
+     * in the compact format (see [serializeCompact]). Version 4 is written incrementally by [Writer]:
+     * every gem and class is defined by a record of its own before the first signature referring to it,
+     * and the stream ends with [RECORD_END]. Older streams are still readable.
+     */
+    private val PROTOCOL_VERSION = 4
+    private val FIRST_PROTOCOL_VERSION_WITH_SUMMARIES = 2
+    private val FIRST_PROTOCOL_VERSION_WITH_COMPACT_CONTRACTS = 3
+    private val FIRST_PROTOCOL_VERSION_WITH_RECORDS = 4
 
-    fun serialize(signatureInfos: List<SignatureInfo>, stream: DataOutput) {
-        writeProtocolVersion(stream)
+    private const val RECORD_END = 0
+    private const val RECORD_GEM = 1
+    private const val RECORD_CLASS = 2
+    private const val RECORD_SIGNATURE = 3
+
+    /**
+     * Id of the classes which do not belong to a gem
+     */
+    private const val NO_GEM_ID = -1
 
-        val (classInfo2Id, gemInfo2Id) = collectClassInfoAndGemInfo(signatureInfos)
-        serializeGemInfos(gemInfo2Id, stream)
-        serializeClassInfos(stream, classInfo2Id, gemInfo2Id)
-        serializeSignatureInfos(stream, signatureInfos, classInfo2Id)
+    fun serialize(signatureInfos: List<SignatureInfo>, stream: DataOutput) {
+        writer(stream).apply { signatureInfos.forEach { write(it) } }.finish()
     }
 
-    fun deserialize(stream: DataInput): List<SignatureInfo> {
-        checkProtocolVersion(stream)
+    fun deserialize(stream: DataInput): List<SignatureInfo> = read(stream).toList()
+
+    /**
+     * @return the writer of the signatures to the stream, the protocol version is written immediately
+     */
+    fun writer(stream: DataOutput) = Writer(stream)
+
+    /**
+     * Reads the signatures lazily: a signature is read from the stream when the sequence is iterated up to it,
+     * so the sequence can be iterated only once. The protocol version is checked immediately.
+     */
+    fun read(stream: DataInput): Sequence<SignatureInfo> {
+        val version = checkProtocolVersion(stream)
+        val withSummaries = version >= FIRST_PROTOCOL_VERSION_WITH_SUMMARIES
+        val compactContracts = version >= FIRST_PROTOCOL_VERSION_WITH_COMPACT_CONTRACTS
 
-        val id2GemInfo = deserializeGemInfo(stream)
-        val id2ClassInfo = deserializeClassInfo(stream, id2GemInfo)
-        return deserializeSignatureInfos(stream, id2ClassInfo)
+        if (version < FIRST_PROTOCOL_VERSION_WITH_RECORDS) {
+            val id2GemInfo = deserializeGemInfo(stream)
+            val id2ClassInfo = deserializeClassInfo(stream, id2GemInfo)
+            var remaining = stream.readInt()
+            return generateSequence {
+                if (remaining-- > 0) {
+                    deserializeSignatureInfo(stream, { id2ClassInfo.getValue(it) }, withSummaries, compactContracts)
+                } else {
+                    null
+                }
+            }.constrainOnce()
+        }
+
+        val gemInfos = ArrayList<GemInfo>()
+        val classInfos = ArrayList<ClassInfo>()
+        return generateSequence { readRecords(stream, gemInfos, classInfos, withSummaries, compactContracts) }.constrainOnce()
     }
 
-    private fun writeProtocolVersion(stream: DataOutput) {
-        stream.writeInt(PROTOCOL_VERSION)
+    /**
+     * Reads the gem and class records up to the next signature record
+     *
+     * @return the signature, null if the stream is over
+     */
+    private fun readRecords(stream: DataInput,
+                            gemInfos: MutableList<GemInfo>,
+                            classInfos: MutableList<ClassInfo>,
+                            withSummaries: Boolean,
+                            compactContracts: Boolean): SignatureInfo? {
+        while (true) {
+            val record = stream.readByte().toInt()
+            when (record) {
+                RECORD_GEM -> gemInfos.add(GemInfo(stream) ?: GemInfo.NONE)
+                RECORD_CLASS -> {
+                    val fqn = stream.readUTF()
+                    val gemId = stream.readInt()
+                    classInfos.add(ClassInfo(if (gemId == NO_GEM_ID) GemInfo.NONE else gemInfos[gemId], fqn))
+                }
+                RECORD_SIGNATURE -> return deserializeSignatureInfo(stream, { classInfos[it] }, withSummaries, compactContracts)
+                RECORD_END -> return null
+                else -> throw IOException("Cannot deserialize SignatureInfos: unknown record $record")
+            }
+        }
     }
 
+    /**
+     * Writes the signatures one by one. Only the ids of the gems and the classes written so far are kept,
+     * so the memory taken by the writer does not depend on the number of the signatures.
+     * The stream is complete once [finish] is called.
+     */
+    class Writer internal constructor(private val stream: DataOutput) {
+        private val gemInfo2Id = HashMap<GemInfo, Int>()
+        private val classInfo2Id = HashMap<ClassInfo, Int>()
+        private var finished = false
 
-    private fun checkProtocolVersion(stream: DataInput) {
-        val version = stream.readInt()
-        if (version != PROTOCOL_VERSION) {
-            throw IOException("Cannot deserialize SignatureInfos: protocol version mismatch. Expected:" +
-                    " $PROTOCOL_VERSION but got: $version")
+        init {
+            stream.writeInt(PROTOCOL_VERSION)
+        }
+
+        fun write(signatureInfo: SignatureInfo) {
+            if (finished) {
+                throw IllegalStateException("The stream is already finished")
+            }
+
+            val methodInfo = signatureInfo.methodInfo
+            val classId = getClassId(methodInfo.classInfo)
+            stream.writeByte(RECORD_SIGNATURE)
+            stream.writeUTF(methodInfo.name)
+            stream.writeByte(methodInfo.visibility.ordinal)
+            stream.writeBoolean(methodInfo.location != null)
+            methodInfo.location?.serialize(stream)
+            stream.writeInt(classId)
+            signatureInfo.contract.serializeCompact(stream)
+            signatureInfo.contract.returnTypeSummary.serialize(stream)
         }
-    }
 
-    private fun collectClassInfoAndGemInfo(signatureInfos: List<SignatureInfo>) :
-            Pair<LinkedHashMap<ClassInfo, Int>, LinkedHashMap<GemInfo, Int>>{
-        val gemInfo2Id = LinkedHashMap<GemInfo, Int>()
-        val classInfo2Id = LinkedHashMap<ClassInfo, Int>()
-        signatureInfos.forEach {
-            val classInfo = it.methodInfo.classInfo
-            val gemInfo = classInfo.gemInfo
-            classInfo2Id.putIfAbsent(classInfo, classInfo2Id.size)
-            gemInfo?.let {
-                gemInfo2Id.putIfAbsent(gemInfo, gemInfo2Id.size)
+        fun finish() {
+            if (!finished) {
+                stream.writeByte(RECORD_END)
+                finished = true
             }
         }
-        return Pair(classInfo2Id, gemInfo2Id)
+
+        private fun getClassId(classInfo: ClassInfo): Int {
+            classInfo2Id[classInfo]?.let { return it }
+
+            val gemId = getGemId(classInfo.gemInfo)
+            stream.writeByte(RECORD_CLASS)
+            stream.writeUTF(classInfo.classFQN)
+            stream.writeInt(gemId)
+            return classInfo2Id.size.also { classInfo2Id[classInfo] = it }
+        }
+
+        private fun getGemId(gemInfo: GemInfo?): Int {
+            if (gemInfo == null || gemInfo == GemInfo.NONE) {
+                return NO_GEM_ID
+            }
+            gemInfo2Id[gemInfo]?.let { return it }
+
+            stream.writeByte(RECORD_GEM)
+            gemInfo.serialize(stream)
+            return gemInfo2Id.size.also { gemInfo2Id[gemInfo] = it }
+        }
     }
 
-    private fun serializeGemInfos(gemInfo2Id: LinkedHashMap<GemInfo, Int>, stream: DataOutput) {
-        stream.writeInt(gemInfo2Id.size)
-        var iter = 0
-        gemInfo2Id.forEach {
-            assert(iter++ == it.value)
-            it.key.serialize(stream)
+    private fun checkProtocolVersion(stream: DataInput): Int {
+        val version = stream.readInt()
+        if (version < 1 || version > PROTOCOL_VERSION) {
+            throw IOException("Cannot deserialize SignatureInfos: protocol version mismatch. Expected:" +
+                    " $PROTOCOL_VERSION or lower but got: $version")
         }
+        return version
     }
 
     private fun deserializeGemInfo(stream: DataInput): LinkedHashMap<Int, GemInfo> {
@@ -125,21 +223,10 @@ object SignatureInfoSerialization {
             val gemInfo = GemInfo(stream)!!
             id2GemInfo.put(i - 1, gemInfo)
         }
-        id2GemInfo.put(-1, GemInfo.NONE)
+        id2GemInfo.put(NO_GEM_ID, GemInfo.NONE)
         return id2GemInfo
     }
 
-    private fun serializeClassInfos(stream: DataOutput, classInfo2Id: LinkedHashMap<ClassInfo, Int>, gemInfo2Id: LinkedHashMap<GemInfo, Int>) {
-        gemInfo2Id.put(GemInfo.NONE, -1)
-        var iter = 0
-        stream.writeInt(classInfo2Id.size)
-        classInfo2Id.forEach {
-            assert(iter++ == it.value)
-            stream.writeUTF(it.key.classFQN)
-            stream.writeInt(gemInfo2Id.getValue(it.key.gemInfo ?: GemInfo.NONE))
-        }
-    }
-
     private fun deserializeClassInfo(stream: DataInput,
                                      id2GemInfo: LinkedHashMap<Int, GemInfo>): LinkedHashMap<Int, ClassInfo> {
         val id2ClassInfo = LinkedHashMap<Int, ClassInfo>()
@@ -152,33 +239,21 @@ object SignatureInfoSerialization {
         return id2ClassInfo
     }
 
-    private fun serializeSignatureInfos(stream: DataOutput, signatureInfos: List<SignatureInfo>, classInfo2Id: LinkedHashMap<ClassInfo, Int>) {
-        stream.writeInt(signatureInfos.size)
-        signatureInfos.forEach {
-            val methodInfo = it.methodInfo
-            stream.writeUTF(methodInfo.name)
-            stream.writeByte(methodInfo.visibility.ordinal)
-            stream.writeBoolean(methodInfo.location != null)
-            methodInfo.location?.serialize(stream)
-            stream.writeInt(classInfo2Id.getValue(methodInfo.classInfo))
-            it.contract.serialize(stream)
-        }
-    }
-
-    private fun deserializeSignatureInfos(stream: DataInput,
-                                          id2ClassInfo: LinkedHashMap<Int, ClassInfo>) : List<SignatureInfo> {
-        val result = ArrayList<SignatureInfo>()
-        val signatureInfoSize = stream.readInt()
-        for (i in 1..signatureInfoSize) {
-            val name = stream.readUTF()
-            val visibility = RVisibility.values()[stream.readByte().toInt()]
-            val isLocationPresent = stream.readBoolean()
-            val location = if (isLocationPresent) Location(stream) else null
-            val classInfo = id2ClassInfo.getValue(stream.readInt())
-            val methodInfo = MethodInfo.Impl(classInfo, name, visibility, location)
-            val contract = SignatureContract(stream)
-            result.add(SignatureInfo(methodInfo, contract))
+    private fun deserializeSignatureInfo(stream: DataInput,
+                                         id2ClassInfo: (Int) -> ClassInfo,
+                                         withSummaries: Boolean,
+                                         compactContracts: Boolean): SignatureInfo {
+        val name = stream.readUTF()
+        val visibility = RVisibility.values()[stream.readByte().toInt()]
+        val isLocationPresent = stream.readBoolean()
+        val location = if (isLocationPresent) Location(stream) else null
+        val classInfo = id2ClassInfo(stream.readInt())
+        val methodInfo = MethodInfo.Impl(classInfo, name, visibility, location)
+        val contract = if (compactContracts) readSignatureContract(stream) else SignatureContract(stream)
+        if (withSummaries) {
+            val summary = ReturnTypeSummary(stream)
+            (contract as? RSignatureContract)?.primeReturnTypeSummary(summary)
         }
-        return result
+        return SignatureInfo(methodInfo, contract)
     }
 }
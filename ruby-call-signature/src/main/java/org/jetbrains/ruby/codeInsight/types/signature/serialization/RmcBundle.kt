@@ -0,0 +1,300 @@
+package org.jetbrains.ruby.codeInsight.types.signature.serialization
+
+import org.jetbrains.ruby.codeInsight.types.signature.MethodInfo
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Signatures of a gem stored so that a single method can be read without reading the rest of them.
+ *
+ * The methods are sorted by the class FQN and the method name and are written one by one into blocks of about
+ * [BLOCK_SIZE] bytes, each block is compressed separately. A method is written as [MethodInfo.serialize] followed by
+ * the contract in the indexed format (see [serializeIndexed]), which is read in place from the decompressed block
+ * by [IndexedSignatureContract]; the contracts written in the other formats by the older versions are read
+ * by [readSignatureContract]. The blocks are followed by the uncompressed index:
+ *  * the block count and the offset, the compressed size and the size of every block;
+ *  * the method count and the key offset, the block and the offset in the block of every method in the sorted order;
+ *  * the keys, i.e. the class FQN and the method name of every method.
+ *
+ * The file starts with [MAGIC] and the version and ends with the offset of the index and [MAGIC] again.
+ * The key offsets are counted from the start of the index.
+ *
+ * The bundle is read from a buffer which is usually the memory-mapped file, see [open].
+ * Looking a method up takes a binary search over the index and the decompression of its block.
+ */
+class RmcBundle(buffer: ByteBuffer) {
+
+    private val myBuffer: ByteBuffer = buffer.slice()
+    private val myBlockTable: Int
+    private val myBlockCount: Int
+    private val myEntryTable: Int
+    private val myIndex: Int
+
+    /**
+     * The number of the methods in the bundle
+     */
+    val size: Int
+
+    init {
+        val limit = myBuffer.limit()
+        if (limit < HEADER_SIZE + TRAILER_SIZE || myBuffer.getInt(0) != MAGIC || myBuffer.getInt(limit - 4) != MAGIC) {
+            throw IOException("Cannot read RMC bundle: magic number expected")
+        }
+        val version = myBuffer.getInt(4)
+        if (version != VERSION) {
+            throw IOException("Cannot read RMC bundle: version $VERSION expected but got $version")
+        }
+
+        myIndex = myBuffer.getLong(limit - TRAILER_SIZE).toInt()
+        myBlockCount = myBuffer.getInt(myIndex)
+        myBlockTable = myIndex + 4
+        size = myBuffer.getInt(myBlockTable + BLOCK_RECORD_SIZE * myBlockCount)
+        myEntryTable = myBlockTable + BLOCK_RECORD_SIZE * myBlockCount + 4
+    }
+
+    /**
+     * @return the signature of the method, null if the bundle does not have it
+     */
+    fun lookup(classFQN: String, methodName: String): SignatureInfo? {
+        var low = 0
+        var high = size - 1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val comparison = compareKey(middle, classFQN, methodName)
+            when {
+                comparison < 0 -> low = middle + 1
+                comparison > 0 -> high = middle - 1
+                else -> {
+                    val entry = myEntryTable + ENTRY_RECORD_SIZE * middle
+                    // the contract gets its own copy, so that it does not keep the rest of the block
+                    return readSignature(readBlock(myBuffer.getInt(entry + 4)), myBuffer.getInt(entry + 8), false)
+                }
+            }
+        }
+        return null
+    }
+
+    /**
+     * @return all the signatures of the bundle in the order of their keys
+     */
+    fun readAll(): List<SignatureInfo> {
+        val result = ArrayList<SignatureInfo>(size)
+        var block = -1
+        var bytes = ByteArray(0)
+        for (index in 0 until size) {
+            val entry = myEntryTable + ENTRY_RECORD_SIZE * index
+            if (myBuffer.getInt(entry + 4) != block) {
+                block = myBuffer.getInt(entry + 4)
+                bytes = readBlock(block)
+            }
+            result.add(readSignature(bytes, myBuffer.getInt(entry + 8), true))
+        }
+        return result
+    }
+
+    private fun compareKey(index: Int, classFQN: String, methodName: String): Int {
+        val key = myIndex + myBuffer.getInt(myEntryTable + ENTRY_RECORD_SIZE * index)
+        val keyClassFQN = readUTF(key)
+        val comparison = keyClassFQN.compareTo(classFQN)
+        if (comparison != 0) {
+            return comparison
+        }
+        return readUTF(key + 2 + (myBuffer.getShort(key).toInt() and 0xFFFF)).compareTo(methodName)
+    }
+
+    private fun readUTF(offset: Int): String {
+        val bytes = ByteArray(2 + (myBuffer.getShort(offset).toInt() and 0xFFFF)) { myBuffer.get(offset + it) }
+        return DataInputStream(ByteArrayInputStream(bytes)).readUTF()
+    }
+
+    private fun readBlock(block: Int): ByteArray {
+        val record = myBlockTable + BLOCK_RECORD_SIZE * block
+        val offset = myBuffer.getLong(record).toInt()
+        val compressed = ByteArray(myBuffer.getInt(record + 8)) { myBuffer.get(offset + it) }
+        val result = ByteArray(myBuffer.getInt(record + 12))
+
+        val inflater = Inflater()
+        try {
+            inflater.setInput(compressed)
+            var length = 0
+            while (length < result.size && !inflater.finished()) {
+                val inflated = inflater.inflate(result, length, result.size - length)
+                if (inflated == 0 && inflater.needsInput()) {
+                    break
+                }
+                length += inflated
+            }
+            if (length != result.size) {
+                throw IOException("Cannot read RMC bundle: block $block is truncated")
+            }
+        } catch (e: DataFormatException) {
+            throw IOException("Cannot read RMC bundle: block $block is corrupted", e)
+        } finally {
+            inflater.end()
+        }
+        return result
+    }
+
+    /**
+     * @param shareBlock whether an indexed contract may be read over the block itself rather than over a copy of it
+     */
+    private fun readSignature(block: ByteArray, offset: Int, shareBlock: Boolean): SignatureInfo {
+        val bytes = ByteArrayInputStream(block, offset, block.size - offset)
+        val input = DataInputStream(bytes)
+        val methodInfo = MethodInfo(input)
+
+        val start = block.size - bytes.available()
+        if (start + 5 > block.size || block[start] != INDEXED_FORMAT_HEADER) {
+            return SignatureInfo(methodInfo, readSignatureContract(input))
+        }
+        val size = ByteBuffer.wrap(block).getInt(start + 1)
+        if (size < 0 || size > block.size - start) {
+            throw IOException("Cannot read RMC bundle: contract of $size bytes exceeds its block")
+        }
+        val buffer = if (shareBlock) {
+            ByteBuffer.wrap(block, start, size)
+        } else {
+            ByteBuffer.wrap(block.copyOfRange(start, start + size))
+        }
+        return SignatureInfo(methodInfo, IndexedSignatureContract(buffer))
+    }
+
+    companion object {
+        const val MAGIC = 0x524D4342
+        const val VERSION = 1
+
+        /**
+         * Uncompressed size after which a block is closed, a single method may take more
+         */
+        const val BLOCK_SIZE = 1 shl 14
+
+        private const val HEADER_SIZE = 8
+        private const val TRAILER_SIZE = 12
+        private const val BLOCK_RECORD_SIZE = 16
+        private const val ENTRY_RECORD_SIZE = 12
+
+        fun write(signatures: Collection<SignatureInfo>, stream: OutputStream) {
+            val sorted = signatures.sortedWith(compareBy({ it.methodInfo.classInfo.classFQN }, { it.methodInfo.name }))
+            val output = DataOutputStream(stream)
+            output.writeInt(MAGIC)
+            output.writeInt(VERSION)
+
+            // offset, compressed size and size of every block
+            val blocks = ArrayList<Triple<Long, Int, Int>>()
+            val entryBlocks = IntArray(sorted.size)
+            val entryOffsets = IntArray(sorted.size)
+            val block = ByteArrayOutputStream(BLOCK_SIZE)
+            val blockOutput = DataOutputStream(block)
+            val deflater = Deflater()
+            val buffer = ByteArray(BLOCK_SIZE)
+
+            val flush = {
+                val bytes = block.toByteArray()
+                deflater.reset()
+                deflater.setInput(bytes)
+                deflater.finish()
+                val offset = output.size().toLong()
+                var compressedSize = 0
+                while (!deflater.finished()) {
+                    val length = deflater.deflate(buffer)
+                    output.write(buffer, 0, length)
+                    compressedSize += length
+                }
+                blocks.add(Triple(offset, compressedSize, bytes.size))
+                block.reset()
+            }
+
+            try {
+                sorted.forEachIndexed { index, signature ->
+                    entryBlocks[index] = blocks.size
+                    entryOffsets[index] = block.size()
+                    signature.methodInfo.serialize(blockOutput)
+                    signature.contract.serializeIndexed(blockOutput)
+                    if (block.size() >= BLOCK_SIZE) {
+                        flush()
+                    }
+                }
+                if (block.size() > 0) {
+                    flush()
+                }
+            } finally {
+                deflater.end()
+            }
+
+            val keys = ByteArrayOutputStream()
+            val keysOutput = DataOutputStream(keys)
+            val keysStart = 4 + BLOCK_RECORD_SIZE * blocks.size + 4 + ENTRY_RECORD_SIZE * sorted.size
+            val indexOffset = output.size().toLong()
+            if (indexOffset + keysStart > Int.MAX_VALUE) {
+                throw IOException("RMC bundle of $indexOffset bytes is too big")
+            }
+
+            output.writeInt(blocks.size)
+            blocks.forEach { (offset, compressedSize, size) ->
+                output.writeLong(offset)
+                output.writeInt(compressedSize)
+                output.writeInt(size)
+            }
+            output.writeInt(sorted.size)
+            sorted.forEachIndexed { index, signature ->
+                output.writeInt(keysStart + keys.size())
+                output.writeInt(entryBlocks[index])
+                output.writeInt(entryOffsets[index])
+                keysOutput.writeUTF(signature.methodInfo.classInfo.classFQN)
+                keysOutput.writeUTF(signature.methodInfo.name)
+            }
+            keys.writeTo(output)
+
+            output.writeLong(indexOffset)
+            output.writeInt(MAGIC)
+            output.flush()
+        }
+
+        /**
+         * Whether [open] maps the files. Windows does not let a mapped file be replaced nor deleted until
+         * the mapping is garbage collected, so the files are read into heap buffers there.
+         */
+        @JvmField
+        val MAPS_FILES = !System.getProperty("os.name").startsWith("Windows")
+
+        /**
+         * Maps the file into memory (or reads it, see [MAPS_FILES]), the mapping stays valid until the bundle
+         * is garbage collected
+         */
+        @JvmOverloads
+        fun open(file: File, mapped: Boolean = MAPS_FILES): RmcBundle {
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use {
+                if (it.size() > Int.MAX_VALUE) {
+                    throw IOException("RMC bundle of ${it.size()} bytes is too big: $file")
+                }
+                if (mapped) {
+                    return RmcBundle(it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()))
+                }
+
+                val buffer = ByteBuffer.allocate(it.size().toInt())
+                while (buffer.hasRemaining()) {
+                    if (it.read(buffer) < 0) {
+                        throw EOFException("RMC bundle is shorter than ${buffer.capacity()} bytes: $file")
+                    }
+                }
+                buffer.flip()
+                return RmcBundle(buffer)
+            }
+        }
+
+        /**
+         * @return whether the file starts as a bundle, as opposed to the gzip-compressed [SignatureInfoSerialization] stream
+         */
+        fun isBundle(file: File): Boolean {
+            DataInputStream(FileInputStream(file)).use {
+                return file.length() >= HEADER_SIZE + TRAILER_SIZE && it.readInt() == MAGIC
+            }
+        }
+    }
+}
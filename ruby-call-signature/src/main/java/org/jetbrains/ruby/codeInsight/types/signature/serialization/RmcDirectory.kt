@@ -3,19 +3,32 @@ package org.jetbrains.ruby.codeInsight.types.signature.serialization
 import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
 import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
 import java.util.zip.GZIPInputStream
-import java.util.zip.GZIPOutputStream
 
 interface RmcDirectory {
-    fun save(gemInfo: GemInfo, signatures: List<SignatureInfo>)
+    fun save(gemInfo: GemInfo, signatures: Collection<SignatureInfo>)
 
     fun listGems() : List<GemInfo>
 
     fun load(gemInfo: GemInfo): List<SignatureInfo>
 
+    /**
+     * @return the signature of the method of the gem, null if the directory does not have it
+     */
+    fun lookup(gemInfo: GemInfo, classFQN: String, methodName: String): SignatureInfo?
 }
 
+/**
+ * Stores every gem as an [RmcBundle], the files written as a single gzip-compressed [SignatureInfoSerialization]
+ * stream by the previous versions are still read. The bundles are memory-mapped on the first lookup and kept
+ * until the file is changed, except on Windows where they are read into memory, see [RmcBundle.MAPS_FILES].
+ */
 class RmcDirectoryImpl(private val directory: File) : RmcDirectory {
+    private val bundles = ConcurrentHashMap<File, Pair<Long, RmcBundle>>()
+
     init {
         if (!directory.exists() || !directory.isDirectory) {
             throw IOException("Existing directory excepted")
@@ -24,6 +37,7 @@ class RmcDirectoryImpl(private val directory: File) : RmcDirectory {
 
     override fun load(gemInfo: GemInfo): List<SignatureInfo> {
         val inputFile = File(directory, gemInfo2Filename(gemInfo))
+        getBundle(inputFile)?.let { return it.readAll() }
         FileInputStream(inputFile).use {
             GZIPInputStream(it).use {
                 DataInputStream(it).use {
@@ -33,15 +47,48 @@ class RmcDirectoryImpl(private val directory: File) : RmcDirectory {
         }
     }
 
-    override fun save(gemInfo: GemInfo, signatures: List<SignatureInfo>) {
+    override fun save(gemInfo: GemInfo, signatures: Collection<SignatureInfo>) {
         val outputFile = File(directory, gemInfo2Filename(gemInfo))
-        FileOutputStream(outputFile).use {
-            GZIPOutputStream(it).use {
-                DataOutputStream(it).use {
-                    SignatureInfoSerialization.serialize(signatures, it)
-                }
+        // the file is replaced rather than overwritten, so the signatures read from a mapping of the old one
+        // (which the cache no longer returns) keep reading it: the mapping of a replaced file stays valid on
+        // the systems where the files are mapped at all
+        bundles.remove(outputFile)
+        val tempFile = File.createTempFile(outputFile.name, ".tmp", directory)
+        try {
+            BufferedOutputStream(FileOutputStream(tempFile)).use {
+                RmcBundle.write(signatures, it)
             }
+            Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            tempFile.delete()
+        }
+        // a lookup racing with the save may have cached the old bundle
+        bundles.remove(outputFile)
+    }
+
+    override fun lookup(gemInfo: GemInfo, classFQN: String, methodName: String): SignatureInfo? {
+        val inputFile = File(directory, gemInfo2Filename(gemInfo))
+        if (!inputFile.exists()) {
+            return null
+        }
+        getBundle(inputFile)?.let { return it.lookup(classFQN, methodName) }
+        return load(gemInfo).firstOrNull { it.methodInfo.classInfo.classFQN == classFQN && it.methodInfo.name == methodName }
+    }
+
+    /**
+     * @return the bundle stored in the file, null if the file is written in the previous format
+     */
+    private fun getBundle(file: File): RmcBundle? {
+        val lastModified = file.lastModified()
+        bundles[file]?.let { (modified, bundle) ->
+            if (modified == lastModified) {
+                return bundle
+            }
+        }
+        if (!RmcBundle.isBundle(file)) {
+            return null
         }
+        return RmcBundle.open(file).also { bundles[file] = lastModified to it }
     }
 
     override fun listGems(): List<GemInfo> = directory.listFiles().mapNotNull { file2GemInfo(it) }
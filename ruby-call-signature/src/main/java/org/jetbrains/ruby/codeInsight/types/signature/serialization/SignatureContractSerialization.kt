@@ -6,23 +6,43 @@ import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.Referen
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
 import java.io.DataInput
 import java.io.DataOutput
+import java.io.IOException
 import java.util.*
 import kotlin.collections.ArrayList
 import kotlin.collections.HashMap
 
-fun ContractTransition.serialize(stream: DataOutput) {
+/**
+ * @param wideMasks whether reference masks are written as words of any length rather than as single ints,
+ * the latter is only possible for the contracts of at most [Integer.SIZE] arguments
+ */
+@JvmOverloads
+fun ContractTransition.serialize(stream: DataOutput, wideMasks: Boolean = false) {
     stream.writeBoolean(this is ReferenceContractTransition)
     when (this) {
-        is ReferenceContractTransition -> stream.writeInt(mask)
+        is ReferenceContractTransition -> if (wideMasks) {
+            val words = toWords()
+            stream.writeInt(words.size)
+            words.forEach { stream.writeLong(it) }
+        } else {
+            if (isWide || mask ushr Integer.SIZE != 0L) {
+                throw IllegalStateException("Mask does not fit into int: ${toWords().joinToString()}")
+            }
+            stream.writeInt(mask.toInt())
+        }
         is TypedContractTransition -> stream.writeUTF(type)
         else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
     }
 }
 
-fun ContractTransition(stream: DataInput): ContractTransition {
+@JvmOverloads
+fun ContractTransition(stream: DataInput, wideMasks: Boolean = false): ContractTransition {
     val type = stream.readBoolean()
     return when (type) {
-        true -> ReferenceContractTransition(stream.readInt())
+        true -> if (wideMasks) {
+            ReferenceContractTransition.fromWords(LongArray(stream.readInt()) { stream.readLong() })
+        } else {
+            ReferenceContractTransition(stream.readInt())
+        }
         false -> TypedContractTransition(stream.readUTF())
     }
 }
@@ -36,7 +56,52 @@ fun ParameterInfo(stream: DataInput): ParameterInfo {
     return ParameterInfo(stream.readUTF(), ParameterInfo.Type.values()[stream.readByte().toInt()])
 }
 
+/**
+ * Contracts carrying data beyond the automaton are written in the extended format: [EXTENDED_FORMAT_MARKER]
+ * in place of the arguments count followed by the flags of the present sections and the sections themselves.
+ * Other contracts are written in the original format.
+ *
+ * The observation counts ([OBSERVATION_COUNTS_FLAG]) follow the automaton: one count per transition
+ * in the order the transitions are written. The contracts of more than [Integer.SIZE] arguments
+ * write their reference masks as words ([WIDE_MASKS_FLAG]). The generalization decisions
+ * ([GENERALIZATION_DECISIONS_FLAG]) follow the widening ones.
+ */
+private const val EXTENDED_FORMAT_MARKER = -1
+internal const val WIDENING_DECISIONS_FLAG = 1
+internal const val OBSERVATION_COUNTS_FLAG = 2
+private const val WIDE_MASKS_FLAG = 4
+internal const val GENERALIZATION_DECISIONS_FLAG = 8
+private const val KNOWN_FLAGS = WIDENING_DECISIONS_FLAG or OBSERVATION_COUNTS_FLAG or WIDE_MASKS_FLAG or
+        GENERALIZATION_DECISIONS_FLAG
+
+internal fun SignatureNode.hasObservations() = transitions.keys.any { getObservationCount(it) > 0 }
+
 fun SignatureContract.serialize(stream: DataOutput) {
+    // the node count and the nodes must be taken from the same version
+    (this as? RSignatureContract)?.let { return it.snapshot().serialize(stream) }
+
+    // every counted tuple is counted by the start node
+    val hasObservations = startNode.hasObservations()
+    // masks refer to the argument positions only
+    val wideMasks = argsInfo.size > Integer.SIZE
+    val flags = (if (wideningDecisions.isNotEmpty()) WIDENING_DECISIONS_FLAG else 0) or
+            (if (hasObservations) OBSERVATION_COUNTS_FLAG else 0) or
+            (if (wideMasks) WIDE_MASKS_FLAG else 0) or
+            (if (generalizationDecisions.isNotEmpty()) GENERALIZATION_DECISIONS_FLAG else 0)
+
+    if (flags != 0) {
+        stream.writeInt(EXTENDED_FORMAT_MARKER)
+        stream.writeInt(flags)
+    }
+    if (flags and WIDENING_DECISIONS_FLAG != 0) {
+        stream.writeInt(wideningDecisions.size)
+        wideningDecisions.forEach { it.serialize(stream) }
+    }
+    if (flags and GENERALIZATION_DECISIONS_FLAG != 0) {
+        stream.writeInt(generalizationDecisions.size)
+        generalizationDecisions.forEach { it.serialize(stream) }
+    }
+
     stream.writeInt(argsInfo.size)
     argsInfo.forEach { it.serialize(stream) }
 
@@ -44,12 +109,14 @@ fun SignatureContract.serialize(stream: DataOutput) {
 
     val visited = HashMap<SignatureNode, Int>()
     val q = ArrayDeque<SignatureNode>()
+    val order = ArrayList<SignatureNode>(nodeCount)
 
     visited[startNode] = 0
     q.push(startNode)
 
     while (q.isNotEmpty()) {
         val v = q.poll()
+        order.add(v)
         for (it in v.transitions.values) {
             if (!visited.containsKey(it)) {
                 visited[it] = visited.size
@@ -60,13 +127,43 @@ fun SignatureContract.serialize(stream: DataOutput) {
         stream.writeInt(v.transitions.size)
         v.transitions.forEach { transition, u ->
             stream.writeInt(visited[u]!!)
-            transition.serialize(stream)
+            transition.serialize(stream, wideMasks)
         }
     }
+
+    if (hasObservations) {
+        order.forEach { v -> v.transitions.keys.forEach { stream.writeInt(v.getObservationCount(it)) } }
+    }
 }
 
-fun SignatureContract(stream: DataInput): SignatureContract {
-    val argsSize = stream.readInt()
+/**
+ * Reads a contract written by [serialize], see [readSignatureContract] for the streams which may be compact as well
+ */
+fun SignatureContract(stream: DataInput): SignatureContract = readContract(stream, stream.readInt())
+
+private fun readContract(stream: DataInput, firstInt: Int): SignatureContract {
+    var argsSize = firstInt
+    var wideningDecisions = emptyList<WideningDecision>()
+    var generalizationDecisions = emptyList<GeneralizationDecision>()
+    var hasObservations = false
+    var wideMasks = false
+
+    if (argsSize == EXTENDED_FORMAT_MARKER) {
+        val flags = stream.readInt()
+        if (flags and KNOWN_FLAGS.inv() != 0) {
+            throw IOException("Cannot deserialize SignatureContract: unknown format flags $flags")
+        }
+        if (flags and WIDENING_DECISIONS_FLAG != 0) {
+            wideningDecisions = List(stream.readInt()) { WideningDecision(stream) }
+        }
+        if (flags and GENERALIZATION_DECISIONS_FLAG != 0) {
+            generalizationDecisions = List(stream.readInt()) { GeneralizationDecision(stream) }
+        }
+        hasObservations = flags and OBSERVATION_COUNTS_FLAG != 0
+        wideMasks = flags and WIDE_MASKS_FLAG != 0
+        argsSize = stream.readInt()
+    }
+
     val argsInfo = List(argsSize) { ParameterInfo(stream) }
 
     val nodesSize = stream.readInt()
@@ -74,6 +171,7 @@ fun SignatureContract(stream: DataInput): SignatureContract {
     val nodes = List(nodesSize) { RSignatureContractNode() }
 
     val distance = IntArray(nodesSize, { 0 })
+    val transitions = if (hasObservations) ArrayList<Pair<Int, ContractTransition>>() else null
 
     repeat(nodesSize) { currentNodeIndex ->
         val transitionsN = stream.readInt()
@@ -81,17 +179,278 @@ fun SignatureContract(stream: DataInput): SignatureContract {
         repeat(transitionsN) {
             val toIndex = stream.readInt()
             distance[toIndex] = distance[currentNodeIndex] + 1
-            val transition = ContractTransition(stream)
+            val transition = ContractTransition(stream, wideMasks)
             // todo replace with constructor (iterate from the end)
             nodes[currentNodeIndex].addLink(transition, nodes[toIndex])
+            transitions?.add(currentNodeIndex to transition)
         }
     }
 
-    val levels = List(argsSize + 2) { ArrayList<RSignatureContractNode>() }
+    transitions?.forEach { (nodeIndex, transition) -> nodes[nodeIndex].addObservations(transition, stream.readInt()) }
+
+    return createContract(argsInfo, nodes, distance, wideningDecisions, generalizationDecisions, hasObservations)
+}
+
+private fun createContract(argsInfo: List<ParameterInfo>,
+                           nodes: List<RSignatureContractNode>,
+                           distance: IntArray,
+                           wideningDecisions: List<WideningDecision>,
+                           generalizationDecisions: List<GeneralizationDecision>,
+                           hasObservations: Boolean): RSignatureContract {
+    val levels = List(argsInfo.size + 2) { ArrayList<RSignatureContractNode>() }
     nodes.indices.forEach {
         levels[distance[it]].add(nodes[it])
     }
 
-    return RSignatureContract(argsInfo, nodes.first(), nodes.last(), levels)
+    return RSignatureContract(argsInfo, nodes.first(), nodes.last(), levels, wideningDecisions,
+            generalizationDecisions).also {
+        it.isCountingObservations = hasObservations
+    }
+}
+
+/**
+ * Header byte of the compact format. The original format starts with an int which is either a small
+ * arguments count or [EXTENDED_FORMAT_MARKER], so its first byte is always 0 or -1.
+ *
+ * The compact format writes all the numbers as varints (see [writeVarInt]) and the type names once
+ * per contract: the header, the flags, the widening and the generalization decisions, the arguments, the dictionary of the type
+ * names, the node count and the nodes in the breadth-first order, i.e. level by level. The dictionary is
+ * sorted and every name is written as the length of the prefix shared with the previous one followed by
+ * the rest of the name, so the names of the same namespace do not repeat it. A typed transition
+ * is written as twice its index in the dictionary, a reference one as twice its word count plus one
+ * followed by the mask words. The target of a transition is written as the distance back from the first
+ * node not reached yet, so the targets discovered by the transitions take a single zero byte.
+ * The observation counts follow the nodes as in the original format.
+ */
+const val COMPACT_FORMAT_HEADER: Byte = 2
+private const val COMPACT_KNOWN_FLAGS = WIDENING_DECISIONS_FLAG or OBSERVATION_COUNTS_FLAG or GENERALIZATION_DECISIONS_FLAG
+
+fun SignatureContract.serializeCompact(stream: DataOutput) {
+    (this as? RSignatureContract)?.let { return it.snapshot().serializeCompact(stream) }
+
+    val hasObservations = startNode.hasObservations()
+    val flags = (if (wideningDecisions.isNotEmpty()) WIDENING_DECISIONS_FLAG else 0) or
+            (if (hasObservations) OBSERVATION_COUNTS_FLAG else 0) or
+            (if (generalizationDecisions.isNotEmpty()) GENERALIZATION_DECISIONS_FLAG else 0)
+
+    stream.writeByte(COMPACT_FORMAT_HEADER.toInt())
+    stream.writeVarInt(flags)
+    if (flags and WIDENING_DECISIONS_FLAG != 0) {
+        stream.writeVarInt(wideningDecisions.size)
+        wideningDecisions.forEach {
+            stream.writeVarInt(it.position)
+            stream.writeVarInt(it.collapsedTypesCount)
+            stream.writeVarInt(it.nodeCountBefore)
+            stream.writeVarInt(it.nodeCountAfter)
+        }
+    }
+    if (flags and GENERALIZATION_DECISIONS_FLAG != 0) {
+        stream.writeVarInt(generalizationDecisions.size)
+        generalizationDecisions.forEach { decision ->
+            stream.writeVarInt(decision.position)
+            stream.writeVarInt(decision.replacements.size)
+            decision.replacements.toSortedMap().forEach { type, ancestor ->
+                stream.writeUTF(type)
+                stream.writeUTF(ancestor)
+            }
+        }
+    }
+
+    stream.writeVarInt(argsInfo.size)
+    argsInfo.forEach { it.serialize(stream) }
+
+    val order = ArrayList<SignatureNode>(nodeCount)
+    val ids = HashMap<SignatureNode, Int>()
+    val types = TreeSet<String>()
+    ids[startNode] = 0
+    order.add(startNode)
+    var index = 0
+    while (index < order.size) {
+        for ((transition, target) in order[index++].transitions) {
+            if (ids.putIfAbsent(target, order.size) == null) {
+                order.add(target)
+            }
+            if (transition is TypedContractTransition) {
+                types.add(transition.type)
+            }
+        }
+    }
+
+    val typeIds = HashMap<String, Int>()
+    stream.writeVarInt(types.size)
+    var previous = ""
+    for (type in types) {
+        val prefixLength = commonPrefixLength(previous, type)
+        stream.writeVarInt(prefixLength)
+        stream.writeUTF(type.substring(prefixLength))
+        typeIds[type] = typeIds.size
+        previous = type
+    }
+
+    stream.writeVarInt(order.size)
+    var reached = 1
+    for (node in order) {
+        stream.writeVarInt(node.transitions.size)
+        for ((transition, target) in node.transitions) {
+            val id = ids[target]!!
+            if (id == reached) {
+                stream.writeVarInt(0)
+                reached++
+            } else {
+                stream.writeVarInt(reached - id)
+            }
+            when (transition) {
+                is TypedContractTransition -> stream.writeVarInt(typeIds[transition.type]!! shl 1)
+                is ReferenceContractTransition -> {
+                    val words = transition.toWords()
+                    stream.writeVarInt(words.size shl 1 or 1)
+                    words.forEach { stream.writeVarLong(it) }
+                }
+                else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
+            }
+        }
+    }
+
+    if (hasObservations) {
+        order.forEach { v -> v.transitions.keys.forEach { stream.writeVarInt(v.getObservationCount(it)) } }
+    }
+}
+
+private fun readCompactContract(stream: DataInput): SignatureContract {
+    val flags = stream.readVarInt()
+    if (flags and COMPACT_KNOWN_FLAGS.inv() != 0) {
+        throw IOException("Cannot deserialize SignatureContract: unknown format flags $flags")
+    }
+    val wideningDecisions = if (flags and WIDENING_DECISIONS_FLAG != 0) {
+        List(stream.readVarInt()) {
+            WideningDecision(stream.readVarInt(), stream.readVarInt(), stream.readVarInt(), stream.readVarInt())
+        }
+    } else {
+        emptyList()
+    }
+    val generalizationDecisions = if (flags and GENERALIZATION_DECISIONS_FLAG != 0) {
+        List(stream.readVarInt()) {
+            val position = stream.readVarInt()
+            GeneralizationDecision(position, readReplacements(stream, stream.readVarInt()))
+        }
+    } else {
+        emptyList()
+    }
+    val hasObservations = flags and OBSERVATION_COUNTS_FLAG != 0
+
+    val argsInfo = List(stream.readVarInt()) { ParameterInfo(stream) }
+    var previous = ""
+    val types = Array<ContractTransition>(stream.readVarInt()) {
+        val prefixLength = stream.readVarInt()
+        previous = previous.substring(0, prefixLength) + stream.readUTF()
+        TypedContractTransition(previous)
+    }
+
+    val nodesSize = stream.readVarInt()
+    val nodes = List(nodesSize) { RSignatureContractNode() }
+    val distance = IntArray(nodesSize)
+    val transitions = if (hasObservations) ArrayList<Pair<Int, ContractTransition>>() else null
+
+    var reached = 1
+    for (currentNodeIndex in 0 until nodesSize) {
+        repeat(stream.readVarInt()) {
+            val back = stream.readVarInt()
+            val toIndex = if (back == 0) reached++ else reached - back
+            distance[toIndex] = distance[currentNodeIndex] + 1
+
+            val code = stream.readVarInt()
+            val transition = if (code and 1 == 0) {
+                types[code ushr 1]
+            } else {
+                ReferenceContractTransition.fromWords(LongArray(code ushr 1) { stream.readVarLong() })
+            }
+            nodes[currentNodeIndex].addLink(transition, nodes[toIndex])
+            transitions?.add(currentNodeIndex to transition)
+        }
+    }
+
+    transitions?.forEach { (nodeIndex, transition) -> nodes[nodeIndex].addObservations(transition, stream.readVarInt()) }
+
+    return createContract(argsInfo, nodes, distance, wideningDecisions, generalizationDecisions, hasObservations)
+}
 
+private fun commonPrefixLength(first: String, second: String): Int {
+    val maxLength = Math.min(first.length, second.length)
+    var length = 0
+    while (length < maxLength && first[length] == second[length]) {
+        length++
+    }
+    return length
+}
+
+/**
+ * Reads a contract written to a binary stream by [serialize], [serializeCompact] or [serializeIndexed].
+ * An indexed contract is read into a heap buffer and its nodes are decoded on demand, see [IndexedSignatureContract].
+ */
+fun readSignatureContract(stream: DataInput): SignatureContract {
+    val header = stream.readByte()
+    if (header == COMPACT_FORMAT_HEADER) {
+        return readCompactContract(stream)
+    }
+    if (header == INDEXED_FORMAT_HEADER) {
+        return readIndexedContract(stream)
+    }
+    if (header != 0.toByte() && header != (-1).toByte()) {
+        throw IOException("Cannot deserialize SignatureContract: unknown header $header")
+    }
+    return readContract(stream, header.toInt() shl 24 or (stream.readUnsignedByte() shl 16) or
+            (stream.readUnsignedByte() shl 8) or stream.readUnsignedByte())
+}
+
+fun ReturnTypeSummary.serialize(stream: DataOutput) {
+    stream.writeInt(levelTypes.size)
+    levelTypes.forEach { types ->
+        stream.writeInt(types.size)
+        types.forEach { stream.writeUTF(it) }
+    }
+}
+
+fun ReturnTypeSummary(stream: DataInput): ReturnTypeSummary {
+    val levelsSize = stream.readInt()
+    return ReturnTypeSummary(List(levelsSize) {
+        val typesSize = stream.readInt()
+        List(typesSize) { stream.readUTF() }.toSet()
+    })
+}
+
+fun WideningDecision.serialize(stream: DataOutput) {
+    stream.writeInt(position)
+    stream.writeInt(collapsedTypesCount)
+    stream.writeInt(nodeCountBefore)
+    stream.writeInt(nodeCountAfter)
+}
+
+fun WideningDecision(stream: DataInput): WideningDecision {
+    return WideningDecision(stream.readInt(), stream.readInt(), stream.readInt(), stream.readInt())
+}
+
+/**
+ * Writes the replacements in the order of the replaced types, so that equal decisions are written the same way
+ */
+fun GeneralizationDecision.serialize(stream: DataOutput) {
+    stream.writeInt(position)
+    stream.writeInt(replacements.size)
+    replacements.toSortedMap().forEach { type, ancestor ->
+        stream.writeUTF(type)
+        stream.writeUTF(ancestor)
+    }
+}
+
+fun GeneralizationDecision(stream: DataInput): GeneralizationDecision {
+    val position = stream.readInt()
+    return GeneralizationDecision(position, readReplacements(stream, stream.readInt()))
+}
+
+private fun readReplacements(stream: DataInput, size: Int): Map<String, String> {
+    val replacements = HashMap<String, String>(size)
+    repeat(size) {
+        val type = stream.readUTF()
+        replacements[type] = stream.readUTF()
+    }
+    return replacements
 }
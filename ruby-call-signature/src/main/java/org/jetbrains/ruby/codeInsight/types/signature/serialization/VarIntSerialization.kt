@@ -0,0 +1,55 @@
+package org.jetbrains.ruby.codeInsight.types.signature.serialization
+
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+
+/**
+ * LEB128 encoding: seven bits per byte starting from the lowest ones, the high bit is set in all bytes but the last.
+ * Negative values take the maximal number of bytes.
+ */
+fun DataOutput.writeVarInt(value: Int) {
+    var rest = value
+    while (rest and 0x7F.inv() != 0) {
+        writeByte((rest and 0x7F or 0x80).toByte().toInt())
+        rest = rest ushr 7
+    }
+    writeByte(rest)
+}
+
+fun DataInput.readVarInt(): Int {
+    var result = 0
+    var shift = 0
+    while (shift < Integer.SIZE) {
+        val byte = readByte().toInt()
+        result = result or (byte and 0x7F shl shift)
+        if (byte and 0x80 == 0) {
+            return result
+        }
+        shift += 7
+    }
+    throw IOException("Malformed varint")
+}
+
+fun DataOutput.writeVarLong(value: Long) {
+    var rest = value
+    while (rest and 0x7FL.inv() != 0L) {
+        writeByte((rest and 0x7FL or 0x80L).toByte().toInt())
+        rest = rest ushr 7
+    }
+    writeByte(rest.toInt())
+}
+
+fun DataInput.readVarLong(): Long {
+    var result = 0L
+    var shift = 0
+    while (shift < java.lang.Long.SIZE) {
+        val byte = readByte().toLong()
+        result = result or (byte and 0x7FL shl shift)
+        if (byte and 0x80L == 0L) {
+            return result
+        }
+        shift += 7
+    }
+    throw IOException("Malformed varint")
+}
@@ -0,0 +1,65 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+import java.util.*
+
+class BatchAcceptTest : SignatureContractTestBase() {
+
+    private val random = Random(42)
+
+    private fun checkSameAsAccept(contract: SignatureContract, tuples: List<RTuple>) {
+        val accepted = SignatureContract.acceptAll(contract, tuples)
+        tuples.forEachIndexed { index, tuple ->
+            assertEquals("tuple #$index", SignatureContract.accept(contract, tuple), accepted[index])
+        }
+    }
+
+    @Test
+    fun testSameAsAccept() {
+        val contract = RSignatureContract(generateRTuple(listOf("T0", "T0", "T0"), "R0"))
+        generateRandomTuples(random, 30, 3).forEach { contract.addRTuple(it) }
+        contract.minimize()
+
+        checkSameAsAccept(contract, generateRandomTuples(random, 200, 3))
+    }
+
+    @Test
+    fun testWidenedContract() {
+        val contract = RSignatureContract(generateRTuple(listOf("T0", "T0"), "R0"))
+        contract.budget = ContractBudget(4, Int.MAX_VALUE)
+        generateRandomTuples(random, 30, 2).forEach { contract.addRTuple(it) }
+        assertFalse(contract.wideningDecisions.isEmpty())
+
+        checkSameAsAccept(contract, generateRandomTuples(random, 100, 2) + generateRTuple(listOf("Unknown", "T1"), "R1"))
+    }
+
+    @Test
+    fun testTable() {
+        val tuples = generateRandomTuples(random, 3, 2)
+        val table = tuples.drop(1).fold(TupleTableContract(tuples[0])) { table, tuple -> table.withTuple(tuple) }
+
+        checkSameAsAccept(table, generateRandomTuples(random, 50, 2))
+    }
+
+    @Test
+    fun testOtherArityIsNotAccepted() {
+        val contract = RSignatureContract(generateRTuple(listOf("T0", "T1"), "R0"))
+        val accepted = SignatureContract.acceptAll(contract, listOf(
+                generateRTuple(listOf("T0"), "R0"),
+                generateRTuple(listOf("T0", "T1"), "R0")))
+
+        assertEquals(BitSet().apply { set(1) }, accepted)
+    }
+
+    @Test
+    fun testContainerAcceptTuples() {
+        val container = RSignatureContractContainer()
+        val known = generateRandomTuples(random, 10, 2)
+        known.forEach { container.offer(it) }
+        val tuples = known + generateRandomTuples(random, 40, 2)
+
+        val accepted = container.acceptTuples(tuples)
+        tuples.forEachIndexed { index, tuple -> assertEquals(container.acceptTuple(tuple), accepted[index]) }
+        assertTrue((0 until known.size).all { accepted[it] })
+    }
+}
@@ -0,0 +1,80 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class ConcurrentRSignatureContractContainerTest : SignatureContractTestBase() {
+
+    private val methods = List(8) { MethodInfo(ClassInfo("Klass$it"), "method", RVisibility.PUBLIC) }
+
+    @Test
+    fun testOffer() {
+        val container = ConcurrentRSignatureContractContainer()
+        val tuple = generateTuples(methods[0].classInfo.classFQN, 20)[0]
+
+        assertTrue(container.offer(tuple))
+        assertFalse(container.offer(tuple))
+        assertTrue(container.acceptTuple(tuple))
+    }
+
+    @Test
+    fun testOfferCountsKnownTuples() {
+        val container = ConcurrentRSignatureContractContainer(countObservations = true)
+        val tuple = generateTuples(methods[0].classInfo.classFQN, 20)[0]
+
+        assertTrue(container.offer(tuple))
+        assertTrue(container.offer(tuple))
+        assertEquals(mapOf("R0" to 2L),
+                ReturnTypeSummary.calculateReturnTypeCounts(container.getSignature(methods[0])!!))
+    }
+
+    @Test
+    fun testConcurrentOffers() {
+        val container = ConcurrentRSignatureContractContainer(shardCount = 2)
+        val start = CountDownLatch(1)
+
+        val threads = methods.flatMap { methodInfo ->
+            val tuples = generateTuples(methodInfo.classInfo.classFQN, 20)
+            (0 until 4).map { part ->
+                thread {
+                    start.await()
+                    tuples.filterIndexed { i, _ -> i % 4 == part }.forEach { container.offer(it) }
+                }
+            }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+
+        assertEquals(methods.toSet(), container.registeredMethods)
+        methods.flatMap { generateTuples(it.classInfo.classFQN, 20) }.forEach { assertTrue(container.acceptTuple(it)) }
+    }
+
+    @Test
+    fun testDrainKeepsConcurrentlyAddedTuples() {
+        val container = ConcurrentRSignatureContractContainer(shardCount = 2)
+        val drained = HashMap<MethodInfo, MutableList<SignatureContract>>()
+        val tuples = methods.flatMap { generateTuples(it.classInfo.classFQN, 20) }
+
+        val writer = thread { tuples.forEach { container.offer(it) } }
+        while (writer.isAlive) {
+            container.drain { methodInfo, contract -> drained.getOrPut(methodInfo) { ArrayList() }.add(contract) }
+        }
+        container.drain { methodInfo, contract -> drained.getOrPut(methodInfo) { ArrayList() }.add(contract) }
+
+        assertTrue(container.registeredMethods.isEmpty())
+        tuples.forEach { tuple ->
+            assertTrue(drained[tuple.methodInfo]!!.any { SignatureContract.accept(it, tuple) })
+        }
+    }
+
+    @Test
+    fun testClear() {
+        val container = ConcurrentRSignatureContractContainer()
+        generateTuples(methods[0].classInfo.classFQN, 20).forEach { container.offer(it) }
+        container.clear()
+
+        assertTrue(container.registeredMethods.isEmpty())
+        assertNull(container.getSignature(methods[0]))
+    }
+}
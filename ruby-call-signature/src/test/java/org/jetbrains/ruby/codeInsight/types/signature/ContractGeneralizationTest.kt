@@ -0,0 +1,133 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.readSignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serializeCompact
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serializeIndexed
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+class ContractGeneralizationTest : SignatureContractTestBase() {
+
+    private val hierarchy = object : TypeHierarchy {
+        private val superclasses = mapOf(
+                "User" to "ApplicationRecord",
+                "Post" to "ApplicationRecord",
+                "Comment" to "ApplicationRecord",
+                "Admin" to "User",
+                "ApplicationRecord" to "ActiveRecord::Base",
+                "ActiveRecord::Base" to "Object",
+                "String" to "Object")
+
+        override fun getSuperclass(type: String) = superclasses[type]
+    }
+
+    @Test
+    fun testSiblingsAreReplacedWithSuperclass() {
+        val replacements = hierarchy.generalize(setOf("User", "Post", "Comment", "String"), 2)
+
+        assertEquals(mapOf("User" to "ApplicationRecord", "Post" to "ApplicationRecord", "Comment" to "ApplicationRecord"),
+                replacements)
+    }
+
+    @Test
+    fun testDeeperTypeMeetsItsRelatives() {
+        val replacements = hierarchy.generalize(setOf("Admin", "Post", "String"), 2)
+
+        assertEquals(mapOf("Admin" to "ApplicationRecord", "Post" to "ApplicationRecord"), replacements)
+    }
+
+    @Test
+    fun testUnknownTypesAreKept() {
+        assertTrue(hierarchy.generalize(setOf("Foo", "Bar", "Baz"), 1).isEmpty())
+    }
+
+    @Test
+    fun testContractIsGeneralized() {
+        val contract = RSignatureContract(generateRTuple(listOf("String"), "User"))
+        contract.isCountingObservations = true
+        listOf("User", "Post", "Comment", "Admin").forEach { contract.addRTuple(generateRTuple(listOf("String"), it)) }
+        contract.addRTuple(generateRTuple(listOf("User"), "String"))
+
+        assertTrue(contract.generalize(hierarchy, 2))
+
+        assertEquals(setOf("ApplicationRecord"), SignatureContract.getAllReturnTypes(contract.snapshot()).filter {
+            SignatureContract.accept(contract, generateRTuple(listOf("String"), it))
+        }.toSet())
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("User"), "String")))
+        assertEquals(mapOf("ApplicationRecord" to 4L, "String" to 1L), ReturnTypeSummary.calculateReturnTypeCounts(contract))
+        assertFalse(contract.generalize(hierarchy, 2))
+    }
+
+    @Test
+    fun testWithinThresholdIsNotChanged() {
+        val contract = RSignatureContract(generateRTuple(listOf("User"), "Post"))
+        contract.addRTuple(generateRTuple(listOf("Post"), "User"))
+
+        assertFalse(contract.generalize(hierarchy, 2))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("Post"), "User")))
+    }
+
+    private fun generateGeneralizedContract(): RSignatureContract {
+        val contract = RSignatureContract(generateRTuple(listOf("User"), "String"))
+        listOf("Post", "Comment", "Admin").forEach { contract.addRTuple(generateRTuple(listOf(it), "String")) }
+        assertTrue(contract.generalize(hierarchy, 1))
+        return contract
+    }
+
+    @Test
+    fun testGeneralizedContractAcceptsSourceTuples() {
+        val contract = generateGeneralizedContract()
+
+        assertEquals(listOf(GeneralizationDecision(0, mapOf("User" to "ApplicationRecord", "Post" to "ApplicationRecord",
+                "Comment" to "ApplicationRecord", "Admin" to "ApplicationRecord"))), contract.generalizationDecisions)
+        listOf("User", "Post", "Comment", "Admin", "ApplicationRecord").forEach {
+            assertTrue(it, SignatureContract.accept(contract, generateRTuple(listOf(it), "String")))
+        }
+        assertFalse(SignatureContract.accept(contract, generateRTuple(listOf("String"), "String")))
+        assertEquals(setOf("String"), TypeSetInference().inferReturnTypeNames(contract, listOf(setOf("Post"))))
+    }
+
+    @Test
+    fun testLaterTuplesAreGeneralized() {
+        val contract = generateGeneralizedContract()
+        val nodeCount = contract.nodeCount
+
+        contract.addRTuple(generateRTuple(listOf("User"), "String"))
+        assertEquals(nodeCount, contract.nodeCount)
+
+        contract.addRTuple(generateRTuple(listOf("Post"), "Integer"))
+        assertEquals(setOf("String", "Integer"), TypeSetInference().inferReturnTypeNames(contract, listOf(setOf("Comment"))))
+    }
+
+    @Test
+    fun testMergeAdoptsDecisions() {
+        val contract = RSignatureContract(generateRTuple(listOf("User"), "Post"))
+        contract.mergeWith(generateGeneralizedContract())
+
+        assertEquals(1, contract.generalizationDecisions.size)
+        assertEquals(setOf("Post", "String"), TypeSetInference().inferReturnTypeNames(contract, listOf(setOf("User"))))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("Admin"), "Post")))
+    }
+
+    @Test
+    fun testDecisionsAreSerialized() {
+        val contract = generateGeneralizedContract()
+        val writers = listOf<(SignatureContract, DataOutputStream) -> Unit>(
+                { it, stream -> it.serialize(stream) },
+                { it, stream -> it.serializeCompact(stream) },
+                { it, stream -> it.serializeIndexed(stream) })
+
+        for (write in writers) {
+            val bytes = ByteArrayOutputStream().apply { write(contract, DataOutputStream(this)) }.toByteArray()
+            val deserialized = readSignatureContract(DataInputStream(ByteArrayInputStream(bytes)))
+
+            assertEquals(contract.generalizationDecisions, deserialized.generalizationDecisions)
+            assertTrue(SignatureContract.accept(deserialized, generateRTuple(listOf("Admin"), "String")))
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+
+class ContractSizeEstimatorTest : SignatureContractTestBase() {
+
+    @Test
+    fun testIncrementalSizeMatchesGraph() {
+        val tuples = generateTuples("Klass", 10)
+        val contract = RSignatureContract(tuples[0])
+
+        tuples.forEach {
+            contract.addRTuple(it)
+            assertEquals(ContractSizeEstimator.estimateGraph(contract.startNode), contract.estimatedSize)
+        }
+
+        contract.minimize()
+        assertEquals(ContractSizeEstimator.estimateGraph(contract.startNode), contract.estimatedSize)
+    }
+
+    @Test
+    fun testContainerTracksSize() {
+        val container = RSignatureContractContainer(ContractBudget.UNLIMITED, 2)
+        val tuples = generateTuples("Klass", 5) + generateTuples("Other", 1)
+        tuples.forEach { container.offer(it) }
+
+        val expected = container.registeredMethods.map { container.getSignature(it)!!.estimatedSize }.sum()
+        assertEquals(expected, container.estimatedSize)
+    }
+
+    @Test
+    fun testEvictLeastRecentlyUpdated() {
+        val container = RSignatureContractContainer(ContractBudget.UNLIMITED, 2)
+        val first = generateTuples("First", 3)
+        val second = generateTuples("Second", 3)
+        container.offer(first[0])
+        container.offer(second[0])
+        container.offer(first[1])
+
+        val evicted = container.evict(container.estimatedSize - 1)
+
+        assertEquals(setOf(second[0].methodInfo), evicted.keys)
+        assertEquals(setOf(first[0].methodInfo), container.registeredMethods)
+        assertEquals(container.getSignature(first[0].methodInfo)!!.estimatedSize, container.estimatedSize)
+    }
+
+    @Test
+    fun testEvictLargest() {
+        val container = RSignatureContractContainer(ContractBudget.UNLIMITED, 2)
+        val small = generateTuples("Small", 1)
+        val large = generateTuples("Large", 8)
+        large.forEach { container.offer(it) }
+        small.forEach { container.offer(it) }
+
+        val evicted = container.evict(container.estimatedSize - 1, RSignatureContractContainer.EvictionPolicy.LARGEST)
+
+        assertEquals(setOf(large[0].methodInfo), evicted.keys)
+        assertTrue(SignatureContract.accept(evicted[large[0].methodInfo]!!, large[7]))
+    }
+
+    @Test
+    fun testConcurrentContainerEvictsToTarget() {
+        val container = ConcurrentRSignatureContractContainer(ContractBudget.UNLIMITED, 2, false, 4)
+        List(16) { generateTuples("Klass$it", 4) }.flatten().forEach { container.offer(it) }
+        val evicted = HashMap<MethodInfo, SignatureContract>()
+
+        container.evict(container.estimatedSize / 2) { methodInfo, contract -> evicted[methodInfo] = contract }
+
+        assertFalse(evicted.isEmpty())
+        assertTrue(evicted.keys.none { it in container.registeredMethods })
+        assertEquals(16, evicted.size + container.registeredMethods.size)
+    }
+}
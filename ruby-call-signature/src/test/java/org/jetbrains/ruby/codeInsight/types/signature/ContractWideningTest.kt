@@ -0,0 +1,80 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+class ContractWideningTest : SignatureContractTestBase() {
+
+    private fun generateMegamorphicContract(budget: ContractBudget): RSignatureContract {
+        val contract = RSignatureContract(generateRTuple(listOf("T0", "S0"), "R"))
+        contract.budget = budget
+        for (i in 1 until 10) {
+            contract.addRTuple(generateRTuple(listOf("T$i", "S${i % 2}"), "R"))
+        }
+        return contract
+    }
+
+    @Test
+    fun testNoWideningWithinBudget() {
+        val contract = generateMegamorphicContract(ContractBudget.UNLIMITED)
+        contract.minimize()
+
+        assertTrue(contract.wideningDecisions.isEmpty())
+        assertFalse(SignatureContract.accept(contract, generateRTuple(listOf("T42", "S1"), "R")))
+    }
+
+    @Test
+    fun testMostPolymorphicPositionIsWidened() {
+        val contract = generateMegamorphicContract(ContractBudget(Int.MAX_VALUE, 8))
+
+        // the budget is exceeded once the sixth type is read at the first position
+        assertEquals(listOf(WideningDecision(0, 6, 5, 4)), contract.wideningDecisions)
+        assertEquals(4, contract.nodeCount)
+
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("T3", "S1"), "R")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("T42", "S1"), "R")))
+        assertFalse(SignatureContract.accept(contract, generateRTuple(listOf("T1", "S2"), "R")))
+        assertEquals(listOf(setOf("Object"), setOf("S0", "S1"), setOf("R")), contract.returnTypeSummary.levelTypes)
+    }
+
+    @Test
+    fun testReferencesAreKeptAtWidenedPosition() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "A"), "B"))
+        contract.addRTuple(generateRTuple(listOf("A", "C"), "B"))
+        contract.addRTuple(generateRTuple(listOf("A", "D"), "B"))
+        contract.budget = ContractBudget(Int.MAX_VALUE, 4)
+
+        assertEquals(1, contract.wideningDecisions.single().position)
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("A", "A"), "B")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("A", "E"), "B")))
+        assertFalse(SignatureContract.accept(contract, generateRTuple(listOf("E", "E"), "B")))
+    }
+
+    @Test
+    fun testDecisionsAreSerialized() {
+        val contract = generateMegamorphicContract(ContractBudget(Int.MAX_VALUE, 8))
+
+        val bytes = ByteArrayOutputStream().apply { contract.serialize(DataOutputStream(this)) }.toByteArray()
+        val deserialized = SignatureContract(DataInputStream(ByteArrayInputStream(bytes)))
+
+        assertEquals(contract.wideningDecisions, deserialized.wideningDecisions)
+        assertEquals(contract.nodeCount, deserialized.nodeCount)
+        assertTrue(SignatureContract.accept(deserialized, generateRTuple(listOf("T42", "S0"), "R")))
+    }
+
+    @Test
+    fun testMergeAdoptsDecisions() {
+        val contract = RSignatureContract(generateRTuple(listOf("X", "S3"), "R"))
+        contract.mergeWith(generateMegamorphicContract(ContractBudget(Int.MAX_VALUE, 8)))
+
+        assertEquals(0, contract.wideningDecisions.single().position)
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("T42", "S3"), "R")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("T42", "S1"), "R")))
+        assertEquals(setOf("Object"), contract.returnTypeSummary.getLevelTypes(0))
+    }
+}
@@ -0,0 +1,129 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+class ObservationCountsTest : SignatureContractTestBase() {
+
+    private val ab = generateRTuple(listOf("A", "B"), "A")
+    private val ac = generateRTuple(listOf("A", "C"), "D")
+    private val ee = generateRTuple(listOf("E", "E"), "E")
+
+    private fun generateCountingContract(vararg tuples: RTuple): RSignatureContract {
+        val contract = TupleTableContract(tuples[0], true).toAutomaton()
+        tuples.drop(1).forEach { contract.addRTuple(it) }
+        return contract
+    }
+
+    private fun roundTrip(contract: SignatureContract): SignatureContract {
+        val bytes = ByteArrayOutputStream().apply { contract.serialize(DataOutputStream(this)) }.toByteArray()
+        return SignatureContract(DataInputStream(ByteArrayInputStream(bytes)))
+    }
+
+    @Test
+    fun testKnownTuplesAreCounted() {
+        val contract = generateCountingContract(ab, ac, ab, ab, ee)
+        contract.minimize()
+
+        assertEquals(4, contract.startNode.getObservationCount(TypedContractTransition("A")))
+        assertEquals(1, contract.startNode.getObservationCount(TypedContractTransition("E")))
+        assertEquals(mapOf("A" to 3L, "D" to 1L, "E" to 1L), ReturnTypeSummary.calculateReturnTypeCounts(contract))
+    }
+
+    @Test
+    fun testNotCountedByDefault() {
+        val contract = RSignatureContract(ab)
+        contract.addRTuple(ab)
+        contract.addRTuple(ac)
+
+        assertEquals(0, contract.startNode.getObservationCount(TypedContractTransition("A")))
+        assertTrue(ReturnTypeSummary.calculateReturnTypeCounts(contract).isEmpty())
+    }
+
+    @Test
+    fun testMergeSumsCounts() {
+        val contract = generateCountingContract(ab, ab, ac)
+        contract.mergeWith(generateCountingContract(ab, ee, ee))
+
+        assertEquals(mapOf("A" to 3L, "D" to 1L, "E" to 2L), ReturnTypeSummary.calculateReturnTypeCounts(contract))
+    }
+
+    @Test
+    fun testMergeOfUncountedContractKeepsCounts() {
+        val contract = generateCountingContract(ab, ab)
+        contract.mergeWith(RSignatureContract(ac))
+
+        assertEquals(mapOf("A" to 2L), ReturnTypeSummary.calculateReturnTypeCounts(contract))
+        assertTrue(SignatureContract.accept(contract, ac))
+    }
+
+    @Test
+    fun testSnapshotCountsDoNotChange() {
+        val cb = generateRTuple(listOf("C", "B"), "A")
+        val contract = generateCountingContract(ab, cb)
+        val snapshot = contract.snapshot()
+        val counts = mapOf("A" to 2L)
+        assertEquals(counts, ReturnTypeSummary.calculateReturnTypeCounts(snapshot))
+
+        // merges the suffixes of both tuples
+        contract.minimize()
+        contract.addRTuple(ab)
+        contract.addRTuple(cb)
+
+        assertEquals(counts, ReturnTypeSummary.calculateReturnTypeCounts(snapshot))
+        assertEquals(1, snapshot.startNode.getObservationCount(TypedContractTransition("A")))
+        assertEquals(mapOf("A" to 4L), ReturnTypeSummary.calculateReturnTypeCounts(contract))
+        assertEquals(2, contract.startNode.getObservationCount(TypedContractTransition("A")))
+    }
+
+    @Test
+    fun testCountersSaturate() {
+        val node = RSignatureContractNode()
+        val transition = TypedContractTransition("A")
+        node.addObservations(transition, Int.MAX_VALUE - 1)
+        node.addObservations(transition, 5)
+
+        assertEquals(Int.MAX_VALUE, node.getObservationCount(transition))
+    }
+
+    @Test
+    fun testCountsAreSerialized() {
+        val contract = generateCountingContract(ab, ac, ab, ee)
+        contract.minimize()
+        val deserialized = roundTrip(contract)
+
+        assertTrue((deserialized as RSignatureContract).isCountingObservations)
+        assertEquals(ReturnTypeSummary.calculateReturnTypeCounts(contract),
+                ReturnTypeSummary.calculateReturnTypeCounts(deserialized))
+        listOf(ab, ac, ee).forEach { assertTrue(SignatureContract.accept(deserialized, it)) }
+    }
+
+    @Test
+    fun testUncountedContractIsReadUncounted() {
+        val contract = RSignatureContract(ab)
+        contract.addRTuple(ac)
+
+        assertFalse((roundTrip(contract) as RSignatureContract).isCountingObservations)
+    }
+
+    @Test
+    fun testTableCountsArePromoted() {
+        val container = RSignatureContractContainer(ContractBudget.UNLIMITED, 2, true)
+        val methodInfo = ab.methodInfo
+
+        listOf(ab, ab, ac).forEach { container.addTuple(it) }
+        val table = container.getSignature(methodInfo) as TupleTableContract
+        assertEquals(2, table.getObservationCount(0))
+        assertEquals(mapOf("A" to 2L, "D" to 1L), ReturnTypeSummary.calculateReturnTypeCounts(table))
+
+        listOf(ee, ab).forEach { container.addTuple(it) }
+        val automaton = container.getSignature(methodInfo) as RSignatureContract
+        assertEquals(mapOf("A" to 3L, "D" to 1L, "E" to 1L), ReturnTypeSummary.calculateReturnTypeCounts(automaton))
+    }
+}
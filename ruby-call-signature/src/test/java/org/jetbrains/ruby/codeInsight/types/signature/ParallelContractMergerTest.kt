@@ -0,0 +1,49 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+import java.util.concurrent.ForkJoinPool
+
+class ParallelContractMergerTest : SignatureContractTestBase() {
+
+    private fun contractOf(tuples: List<RTuple>) = RSignatureContract(tuples[0]).apply { tuples.forEach { addRTuple(it) } }
+
+    @Test
+    fun testWriterOrderIsPreserved() {
+        val contracts = List(20) { index ->
+            val tuples = generateTuples("Klass$index", 1 + (index * 7) % 13)
+            tuples[0].methodInfo to contractOf(tuples) as SignatureContract
+        }
+        val written = ArrayList<MethodInfo>()
+
+        ParallelContractMerger(ForkJoinPool(4)).merge(contracts, { null }) { methodInfo, _ -> written.add(methodInfo) }
+
+        assertEquals(contracts.map { it.first }, written)
+    }
+
+    @Test
+    fun testMergesIntoStored() {
+        val stored = generateTuples("Klass", 5)
+        val added = generateTuples("Klass", 5, 5)
+        val storedContract = contractOf(stored)
+        val result = HashMap<MethodInfo, SignatureContract>()
+
+        ParallelContractMerger().merge(listOf(added[0].methodInfo to contractOf(added) as SignatureContract),
+                { storedContract }) { methodInfo, contract -> result[methodInfo] = contract }
+
+        val merged = result[added[0].methodInfo]!!
+        assertTrue((stored + added).all { SignatureContract.accept(merged, it) })
+    }
+
+    @Test
+    fun testNewContractIsMinimized() {
+        val tuples = generateTuples("Klass", 9)
+        val expected = contractOf(tuples).apply { minimize() }
+        var result: SignatureContract? = null
+
+        ParallelContractMerger().merge(listOf(tuples[0].methodInfo to contractOf(tuples) as SignatureContract),
+                { null }) { _, contract -> result = contract }
+
+        assertEquals(expected.estimatedSize, result!!.estimatedSize)
+        assertTrue(tuples.all { SignatureContract.accept(result!!, it) })
+    }
+}
@@ -0,0 +1,49 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import org.junit.Test
+
+class RSignatureContractSnapshotTest : SignatureContractTestBase() {
+
+    @Test
+    fun testSnapshotIsNotAffectedByModifications() {
+        val contract = RSignatureContract(generateRTuple(listOf("a1", "b1"), "c1"))
+        val snapshot = contract.snapshot()
+        val nodeCount = snapshot.nodeCount
+
+        contract.addRTuple(generateRTuple(listOf("a1", "b2"), "c2"))
+        contract.mergeWith(RSignatureContract(generateRTuple(listOf("a3", "b3"), "c3")))
+
+        assertEquals(nodeCount, snapshot.nodeCount)
+        assertTrue(SignatureContract.accept(snapshot, generateRTuple(listOf("a1", "b1"), "c1")))
+        assertFalse(SignatureContract.accept(snapshot, generateRTuple(listOf("a1", "b2"), "c2")))
+        assertFalse(SignatureContract.accept(snapshot, generateRTuple(listOf("a3", "b3"), "c3")))
+
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("a1", "b2"), "c2")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("a3", "b3"), "c3")))
+    }
+
+    @Test
+    fun testUnchangedSubgraphsAreShared() {
+        val contract = RSignatureContract(generateRTuple(listOf("a1", "b1"), "c1"))
+        contract.addRTuple(generateRTuple(listOf("a2", "b2"), "c2"))
+        val before = contract.snapshot().startNode.transitions
+
+        contract.addRTuple(generateRTuple(listOf("a2", "b3"), "c3"))
+        val after = contract.snapshot().startNode.transitions
+
+        val a1 = TypedContractTransition("a1")
+        val a2 = TypedContractTransition("a2")
+        assertSame(before[a1], after[a1])
+        assertNotSame(before[a2], after[a2])
+    }
+
+    @Test
+    fun testAddingReadTupleKeepsVersion() {
+        val contract = RSignatureContract(generateRTuple(listOf("a1", "b1"), "c1"))
+        val snapshot = contract.snapshot()
+
+        contract.addRTuple(generateRTuple(listOf("a1", "b1"), "c1"))
+        assertSame(snapshot, contract.snapshot())
+    }
+}
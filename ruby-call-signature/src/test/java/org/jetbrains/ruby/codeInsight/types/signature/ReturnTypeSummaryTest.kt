@@ -0,0 +1,39 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+
+class ReturnTypeSummaryTest : SignatureContractTestBase() {
+
+    @Test
+    fun testReferenceReturnTypes() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "B"), "A"))
+        contract.addRTuple(generateRTuple(listOf("C", "B"), "C"))
+        contract.minimize()
+
+        assertEquals(setOf("A", "C"), SignatureContract.getAllReturnTypes(contract))
+        assertEquals(listOf(setOf("A", "C"), setOf("B"), setOf("A", "C")), contract.returnTypeSummary.levelTypes)
+        assertEquals(setOf("A", "B", "C"), contract.returnTypeSummary.allArgumentTypes)
+    }
+
+    @Test
+    fun testSummaryIsRecalculatedAfterModification() {
+        val contract = generateMultipleReturnTypeContract()
+        assertEquals(setOf("b2", "c2", "d2"), SignatureContract.getAllReturnTypes(contract))
+
+        contract.addRTuple(generateRTuple(listOf("a1"), "e2"))
+        assertEquals(setOf("b2", "c2", "d2", "e2"), SignatureContract.getAllReturnTypes(contract))
+
+        contract.mergeWith(RSignatureContract(generateRTuple(listOf("f1"), "f1")))
+        assertEquals(setOf("b2", "c2", "d2", "e2", "f1"), SignatureContract.getAllReturnTypes(contract))
+        assertEquals(setOf("a1", "f1"), contract.returnTypeSummary.getLevelTypes(0))
+    }
+
+    @Test
+    fun testSnapshotKeepsSummary() {
+        val contract = generateComplicatedContract()
+        val summary = contract.returnTypeSummary
+
+        assertEquals(setOf("a5", "e5"), summary.allReturnTypes)
+        assertSame(summary, contract.snapshot().returnTypeSummary)
+    }
+}
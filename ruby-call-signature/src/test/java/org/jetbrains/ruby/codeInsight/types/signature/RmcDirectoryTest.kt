@@ -0,0 +1,148 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.IndexedSignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.RmcBundle
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.RmcDirectoryImpl
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureInfoSerialization
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.contentHash
+import org.junit.Test
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.util.zip.GZIPOutputStream
+
+class RmcDirectoryTest : SignatureContractTestBase() {
+
+    private val gem = GemInfo("gem", "1.2.3")
+
+    private lateinit var directory: File
+
+    override fun setUp() {
+        super.setUp()
+        directory = createTempDir("rmc")
+    }
+
+    override fun tearDown() {
+        directory.deleteRecursively()
+        super.tearDown()
+    }
+
+    private fun generateSignatures(classCount: Int): List<SignatureInfo> {
+        val contracts = listOf(generateSimpleContract(), generateComplicatedContract(),
+                generateMultipleReturnTypeContract(), generateAddContract())
+        return List(classCount) { i -> ClassInfo(gem, "Module${i % 7}::Klass$i") }.flatMap { classInfo ->
+            listOf("foo", "bar", "baz").mapIndexed { j, name ->
+                SignatureInfo(MethodInfo(classInfo, name, RVisibility.PUBLIC, Location("lib/klass.rb", j)),
+                        contracts[(classInfo.classFQN.length + j) % contracts.size])
+            }
+        }
+    }
+
+    private fun assertSameSignature(expected: SignatureInfo, actual: SignatureInfo?) {
+        assertNotNull(actual)
+        assertEquals(expected.methodInfo, actual!!.methodInfo)
+        assertEquals(expected.methodInfo.location, actual.methodInfo.location)
+        assertEquals(expected.contract.returnTypeSummary.levelTypes, actual.contract.returnTypeSummary.levelTypes)
+    }
+
+    @Test
+    fun testLookup() {
+        val signatures = generateSignatures(2000)
+        val rmcDirectory = RmcDirectoryImpl(directory)
+        rmcDirectory.save(gem, signatures)
+
+        signatures.forEach {
+            assertSameSignature(it, rmcDirectory.lookup(gem, it.methodInfo.classInfo.classFQN, it.methodInfo.name))
+        }
+        assertNull(rmcDirectory.lookup(gem, "Module0::Klass0", "qux"))
+        assertNull(rmcDirectory.lookup(gem, "Klass", "foo"))
+        assertNull(rmcDirectory.lookup(GemInfo("gem", "1.0"), "Module0::Klass0", "foo"))
+        assertEquals(listOf(gem), rmcDirectory.listGems())
+    }
+
+    @Test
+    fun testLoad() {
+        val signatures = generateSignatures(2000)
+        val rmcDirectory = RmcDirectoryImpl(directory)
+        rmcDirectory.save(gem, signatures)
+
+        val loaded = rmcDirectory.load(gem)
+
+        assertEquals(signatures.size, loaded.size)
+        val byMethod = loaded.associateBy { it.methodInfo }
+        signatures.forEach { assertSameSignature(it, byMethod[it.methodInfo]) }
+    }
+
+    @Test
+    fun testManyBlocks() {
+        val file = File(directory, "bundle.rmc")
+        val signatures = generateSignatures(5000)
+        FileOutputStream(file).use { RmcBundle.write(signatures, it) }
+
+        val bundle = RmcBundle.open(file)
+
+        assertEquals(signatures.size, bundle.size)
+        listOf(0, 2500, 4999).forEach { i ->
+            assertSameSignature(signatures[3 * i + 2], bundle.lookup("Module${i % 7}::Klass$i", "baz"))
+        }
+    }
+
+    @Test
+    fun testReadIntoHeap() {
+        val file = File(directory, "bundle.rmc")
+        val signatures = generateSignatures(500)
+        FileOutputStream(file).use { RmcBundle.write(signatures, it) }
+
+        val bundle = RmcBundle.open(file, false)
+        // the file is not held by the bundle
+        assertTrue(file.delete())
+
+        assertEquals(signatures.size, bundle.size)
+        assertSameSignature(signatures[3 * 250 + 1], bundle.lookup("Module${250 % 7}::Klass250", "bar"))
+        assertEquals(signatures.size, bundle.readAll().size)
+    }
+
+    @Test
+    fun testContractsReadInPlace() {
+        val file = File(directory, "bundle.rmc")
+        val signatures = generateSignatures(1000)
+        FileOutputStream(file).use { RmcBundle.write(signatures, it) }
+
+        val bundle = RmcBundle.open(file)
+
+        val looked = bundle.lookup("Module${700 % 7}::Klass700", "foo")!!.contract
+        assertTrue(looked is IndexedSignatureContract)
+        assertEquals(signatures[3 * 700].contract.contentHash(), looked.contentHash())
+        bundle.readAll().zip(signatures.sortedWith(compareBy({ it.methodInfo.classInfo.classFQN }, { it.methodInfo.name })))
+                .forEach { (read, written) ->
+                    assertTrue(read.contract is IndexedSignatureContract)
+                    assertEquals(written.contract.contentHash(), read.contract.contentHash())
+                }
+    }
+
+    @Test
+    fun testSavedAgain() {
+        val rmcDirectory = RmcDirectoryImpl(directory)
+        rmcDirectory.save(gem, generateSignatures(10))
+        assertNotNull(rmcDirectory.lookup(gem, "Module2::Klass9", "foo"))
+
+        rmcDirectory.save(gem, generateSignatures(5))
+
+        assertNull(rmcDirectory.lookup(gem, "Module2::Klass9", "foo"))
+        assertNotNull(rmcDirectory.lookup(gem, "Module4::Klass4", "foo"))
+        assertEquals(listOf(gem), rmcDirectory.listGems())
+    }
+
+    @Test
+    fun testGzipStreamIsRead() {
+        val signatures = generateSignatures(20)
+        FileOutputStream(File(directory, "gem-1.2.3.rmc")).use {
+            GZIPOutputStream(it).use { DataOutputStream(it).use { SignatureInfoSerialization.serialize(signatures, it) } }
+        }
+        val rmcDirectory = RmcDirectoryImpl(directory)
+
+        assertEquals(signatures.map { it.methodInfo }, rmcDirectory.load(gem).map { it.methodInfo })
+        assertSameSignature(signatures[7], rmcDirectory.lookup(gem, signatures[7].methodInfo.classInfo.classFQN,
+                signatures[7].methodInfo.name))
+    }
+}
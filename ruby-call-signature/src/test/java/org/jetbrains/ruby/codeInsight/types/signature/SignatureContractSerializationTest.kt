@@ -1,11 +1,13 @@
 package org.jetbrains.ruby.codeInsight.types.signature
 
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.*
 import org.junit.Test
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.nio.ByteBuffer
 import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
 
@@ -90,5 +92,262 @@ class SignatureContractSerializationTest : SignatureContractTestBase() {
             }
         }
     }
-}
 
+    @Test
+    fun testWideArity() {
+        listOf(40, 100).forEach { arity ->
+            val tuples = List(3) { i -> generateRTuple(List(arity) { if (it == 0 || it == arity - 1) "Same" else "T${(it + i) % 5}" }, "Same") }
+            val contract = RSignatureContract(tuples[0])
+            tuples.drop(1).forEach { contract.addRTuple(it) }
+
+            val bytes = ByteArrayOutputStream().apply { contract.serialize(DataOutputStream(this)) }.toByteArray()
+            val deserialized = SignatureContract(DataInputStream(ByteArrayInputStream(bytes)))
+
+            tuples.forEach { assertTrue(SignatureContract.accept(deserialized, it)) }
+            assertEquals(setOf("Same"), SignatureContract.getAllReturnTypes(deserialized))
+        }
+    }
+
+    private fun toText(contract: SignatureContract) = StringDataOutput().let {
+        contract.serialize(it)
+        it.result.toString()
+    }
+
+    private fun serializeCompact(contract: SignatureContract) =
+            ByteArrayOutputStream().apply { contract.serializeCompact(DataOutputStream(this)) }.toByteArray()
+
+    private fun read(bytes: ByteArray) = readSignatureContract(DataInputStream(ByteArrayInputStream(bytes)))
+
+    private fun generateRealisticContract(): RSignatureContract {
+        val random = java.util.Random(42)
+        val models = listOf("User", "Post", "Comment", "Attachment", "Notification", "Subscription")
+        val options = listOf("Hash", "ActiveSupport::HashWithIndifferentAccess", "ActionController::Parameters")
+        val tuples = List(200) {
+            val model = "ApplicationRecord::Models::" + models[random.nextInt(models.size)]
+            generateRTuple(listOf(model, options[random.nextInt(options.size)],
+                    if (random.nextBoolean()) model else "NilClass", models[random.nextInt(models.size)]),
+                    "ActiveRecord::Relation::" + models[random.nextInt(models.size)])
+        }
+        val contract = RSignatureContract(tuples[0])
+        tuples.forEach { contract.addRTuple(it) }
+        contract.minimize()
+        return contract
+    }
+
+    @Test
+    fun testCompactRoundTrip() {
+        val counted = generateRealisticContract().apply { isCountingObservations = true }
+        counted.addRTuple(generateRTuple(listOf("Hash", "Hash", "Hash", "Hash"), "Hash"))
+        val widened = RSignatureContract(generateRTuple(listOf("T0", "S0"), "R")).apply {
+            budget = ContractBudget(Int.MAX_VALUE, 8)
+            for (i in 1 until 10) addRTuple(generateRTuple(listOf("T$i", "S${i % 2}"), "R"))
+        }
+
+        listOf(generateSimpleContract(), generateComplicatedContract(), generateMultipleReturnTypeContract(),
+                generateAddContract(), generateRealisticContract(), counted, widened).forEach {
+            assertEquals(toText(it), toText(read(serializeCompact(it))))
+        }
+    }
+
+    @Test
+    fun testCompactWideArity() {
+        val arity = 100
+        val tuples = List(3) { i -> generateRTuple(List(arity) { if (it == 0 || it == arity - 1) "Same" else "T${(it + i) % 5}" }, "Same") }
+        val contract = RSignatureContract(tuples[0])
+        tuples.drop(1).forEach { contract.addRTuple(it) }
+
+        val deserialized = read(serializeCompact(contract))
+
+        tuples.forEach { assertTrue(SignatureContract.accept(deserialized, it)) }
+        assertEquals(setOf("Same"), SignatureContract.getAllReturnTypes(deserialized))
+    }
+
+    @Test
+    fun testOriginalFormatIsDetected() {
+        val counted = generateComplicatedContract().apply { isCountingObservations = true }
+        counted.addRTuple(generateRTuple(listOf("a1", "c2", "a3", "a4"), "e5"))
+
+        listOf(generateComplicatedContract(), counted).forEach {
+            val bytes = ByteArrayOutputStream().apply { it.serialize(DataOutputStream(this)) }.toByteArray()
+            assertEquals(toText(it), toText(read(bytes)))
+        }
+    }
+
+    @Test
+    fun testCompactIsSmaller() {
+        val contract = generateRealisticContract()
+        val original = ByteArrayOutputStream().apply { contract.serialize(DataOutputStream(this)) }.toByteArray()
+
+        assertTrue("${original.size} vs ${serializeCompact(contract).size}", original.size >= 3 * serializeCompact(contract).size)
+    }
+
+    /**
+     * The view lists the transitions in the order of their codes, so it is compared by the paths rather than by the text
+     */
+    private fun paths(contract: SignatureContract): Map<List<ContractTransition>, Int> {
+        val result = HashMap<List<ContractTransition>, Int>()
+        fun walk(node: SignatureNode, path: List<ContractTransition>) {
+            node.transitions.forEach { transition, target ->
+                if (target.transitions.isEmpty()) {
+                    result[path + transition] = node.getObservationCount(transition)
+                } else {
+                    walk(target, path + transition)
+                }
+            }
+        }
+        walk(contract.startNode, emptyList())
+        return result
+    }
+
+    private fun serializeIndexed(contract: SignatureContract) =
+            ByteArrayOutputStream().apply { contract.serializeIndexed(DataOutputStream(this)) }.toByteArray()
+
+    @Test
+    fun testIndexedRoundTrip() {
+        val counted = generateRealisticContract().apply { isCountingObservations = true }
+        counted.addRTuple(generateRTuple(listOf("Hash", "Hash", "Hash", "Hash"), "Hash"))
+        val widened = RSignatureContract(generateRTuple(listOf("T0", "S0"), "R")).apply {
+            budget = ContractBudget(Int.MAX_VALUE, 8)
+            for (i in 1 until 10) addRTuple(generateRTuple(listOf("T$i", "S${i % 2}"), "R"))
+        }
+        val arity = 40
+        val wide = RSignatureContract(generateRTuple(List(arity) { if (it == 0 || it == arity - 1) "Same" else "T$it" }, "Same"))
+
+        listOf(generateSimpleContract(), generateComplicatedContract(), generateMultipleReturnTypeContract(),
+                generateAddContract(), generateRealisticContract(), counted, widened, wide).forEach {
+            val bytes = serializeIndexed(it)
+            listOf(IndexedSignatureContract(ByteBuffer.wrap(bytes)), read(bytes)).forEach { view ->
+                assertEquals(it.argsInfo, view.argsInfo)
+                assertEquals(it.wideningDecisions, view.wideningDecisions)
+                assertEquals(it.nodeCount, view.nodeCount)
+                assertEquals(paths(it), paths(view))
+            }
+        }
+    }
+
+    @Test
+    fun testIndexedViewReadsInPlace() {
+        val contract = generateRealisticContract().apply { isCountingObservations = true }
+        val tuples = List(50) { i ->
+            generateRTuple(listOf("ApplicationRecord::Models::User", "Hash", if (i % 2 == 0) "NilClass" else "Hash",
+                    "Post"), "ActiveRecord::Relation::" + listOf("User", "Post", "Comment")[i % 3])
+        }
+        tuples.take(5).forEach { contract.addRTuple(it) }
+
+        val bytes = serializeIndexed(contract)
+        val buffer = ByteBuffer.allocateDirect(bytes.size + 7)
+        buffer.position(7)
+        buffer.put(bytes)
+        buffer.position(7)
+        val view = IndexedSignatureContract(buffer)
+
+        tuples.forEach { assertEquals(SignatureContract.accept(contract, it), SignatureContract.accept(view, it)) }
+        assertEquals(SignatureContract.acceptAll(contract, tuples), SignatureContract.acceptAll(view, tuples))
+        assertEquals(contract.returnTypeSummary.levelTypes, view.returnTypeSummary.levelTypes)
+        assertEquals(ReturnTypeSummary.calculateReturnTypeCounts(contract), ReturnTypeSummary.calculateReturnTypeCounts(view))
+        assertEquals(contract.nodeCount, view.nodeCount)
+        assertTrue(view.estimatedSize < bytes.size)
+    }
+
+    @Test
+    fun testIndexedViewIsMerged() {
+        val stored = generateRealisticContract().apply { isCountingObservations = true }
+        stored.addRTuple(generateRTuple(listOf("A", "B", "C", "D"), "E"))
+        val view = IndexedSignatureContract(ByteBuffer.wrap(serializeIndexed(stored)))
+        val tuple = generateRTuple(listOf("A", "B", "C", "X"), "E")
+        val added = RSignatureContract(tuple).apply {
+            isCountingObservations = true
+            addRTuple(tuple)
+        }
+
+        val merged = RSignatureContract.mergeMutably(view, added)
+
+        assertTrue(SignatureContract.accept(merged, generateRTuple(listOf("A", "B", "C", "D"), "E")))
+        assertTrue(SignatureContract.accept(merged, generateRTuple(listOf("A", "B", "C", "X"), "E")))
+        assertEquals(2L, ReturnTypeSummary.calculateReturnTypeCounts(merged)["E"])
+        assertEquals(stored.returnTypeSummary.levelTypes[0], merged.returnTypeSummary.levelTypes[0])
+    }
+
+    @Test
+    fun testContentHash() {
+        val tuples = listOf(listOf("a", "b"), listOf("a", "c"), listOf("b", "b"), listOf("c", "a")).map { generateRTuple(it, "r") }
+        val forward = RSignatureContract(tuples.first()).apply { tuples.forEach { addRTuple(it) } }
+        val backward = RSignatureContract(tuples.last()).apply { tuples.reversed().forEach { addRTuple(it) } }
+        val counted = RSignatureContract(tuples.first()).apply {
+            isCountingObservations = true
+            tuples.forEach { addRTuple(it) }
+        }
+
+        assertEquals(CONTENT_HASH_LENGTH, forward.contentHash().length)
+        assertEquals(forward.contentHash(), backward.contentHash())
+        assertEquals(forward.contentHash(), read(serializeCompact(backward)).contentHash())
+        assertEquals(counted.contentHash(), read(serializeIndexed(counted)).contentHash())
+        assertFalse(forward.contentHash() == counted.contentHash())
+        assertFalse(forward.contentHash() == generateComplicatedContract().contentHash())
+
+        val realistic = generateRealisticContract()
+        assertEquals(realistic.contentHash(), read(serializeIndexed(read(serializeCompact(realistic)))).contentHash())
+    }
+
+    @Test
+    fun testStreamedSignatures() {
+        val (contractsTestData, signatures) = generateSignatures()
+        val bytes = ByteArrayOutputStream().apply {
+            val writer = SignatureInfoSerialization.writer(DataOutputStream(this))
+            signatures.forEach { writer.write(it) }
+            writer.finish()
+        }.toByteArray()
+
+        val newSignatures = SignatureInfoSerialization.read(DataInputStream(ByteArrayInputStream(bytes))).toList()
+
+        checkSignaturesSerialization(signatures, newSignatures, contractsTestData)
+        assertEquals(signatures.map { it.methodInfo.classInfo.gemInfo }, newSignatures.map { it.methodInfo.classInfo.gemInfo })
+    }
+
+    @Test
+    fun testSignaturesAreReadLazily() {
+        val (_, signatures) = generateSignatures()
+        val bytes = ByteArrayOutputStream().apply {
+            val writer = SignatureInfoSerialization.writer(DataOutputStream(this))
+            signatures.forEach { writer.write(it) }
+        }.toByteArray()
+
+        // the stream is neither finished nor complete, the signatures before the cut are still read
+        val truncated = DataInputStream(ByteArrayInputStream(bytes, 0, bytes.size / 2))
+        val read = SignatureInfoSerialization.read(truncated).take(3).toList()
+
+        assertEquals(signatures.take(3).map { it.methodInfo }, read.map { it.methodInfo })
+    }
+
+    @Test
+    fun testVersion3IsRead() {
+        val gem = GemInfo("gem", "1.2.3")
+        val contract = generateComplicatedContract()
+        val bytes = ByteArrayOutputStream().apply {
+            DataOutputStream(this).let {
+                it.writeInt(3)
+                it.writeInt(1)
+                gem.serialize(it)
+                it.writeInt(2)
+                it.writeUTF("A::B")
+                it.writeInt(0)
+                it.writeUTF("C")
+                it.writeInt(-1)
+                it.writeInt(2)
+                listOf(1, 0).forEach { classId ->
+                    it.writeUTF("foo")
+                    it.writeByte(RVisibility.PUBLIC.ordinal)
+                    it.writeBoolean(false)
+                    it.writeInt(classId)
+                    contract.serializeCompact(it)
+                    contract.returnTypeSummary.serialize(it)
+                }
+            }
+        }.toByteArray()
+
+        val signatures = SignatureInfoSerialization.deserialize(DataInputStream(ByteArrayInputStream(bytes)))
+
+        assertEquals(listOf(ClassInfo(GemInfo.NONE, "C"), ClassInfo(gem, "A::B")), signatures.map { it.methodInfo.classInfo })
+        signatures.forEach { checkSerialization(it.contract, MergeTestData.testComplicatedMerge) }
+    }
+}
@@ -3,6 +3,7 @@ package org.jetbrains.ruby.codeInsight.types.signature
 import junit.framework.TestCase
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.StringDataOutput
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import java.util.*
 
 abstract class SignatureContractTestBase : TestCase() {
 
@@ -135,6 +136,23 @@ abstract class SignatureContractTestBase : TestCase() {
         return RTuple(methodInfo, params, args, returnType)
     }
 
+    /**
+     * @return tuples of the method "method" of the class, the i-th one reads A<(i + offset) % 3> and B<i + offset>
+     * and returns R<i % 2>, so that no two of them are the same
+     */
+    protected fun generateTuples(className: String, count: Int, offset: Int = 0): List<RTuple> {
+        val methodInfo = MethodInfo(ClassInfo(className), "method", RVisibility.PUBLIC)
+        val params = listOf(ParameterInfo("a", ParameterInfo.Type.REQ), ParameterInfo("b", ParameterInfo.Type.REQ))
+        return List(count) { RTuple(methodInfo, params, listOf("A${(it + offset) % 3}", "B${it + offset}"), "R${it % 2}") }
+    }
+
+    /**
+     * @return tuples of [generateRTuple] reading and returning types picked at random out of three
+     */
+    protected fun generateRandomTuples(random: Random, count: Int, arity: Int) = List(count) {
+        generateRTuple(List(arity) { "T${random.nextInt(3)}" }, "R${random.nextInt(3)}")
+    }
+
     object SignatureTestData {
         val simpleContract = """
 1 arg 0
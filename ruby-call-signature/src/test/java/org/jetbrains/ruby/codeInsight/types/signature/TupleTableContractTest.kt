@@ -0,0 +1,69 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.StringDataOutput
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import org.junit.Test
+
+class TupleTableContractTest : SignatureContractTestBase() {
+
+    private val tuples = listOf(
+            generateRTuple(listOf("A", "B"), "A"),
+            generateRTuple(listOf("A", "C"), "D"),
+            generateRTuple(listOf("E", "E"), "E"))
+
+    private fun serialize(contract: SignatureContract) = StringDataOutput().let {
+        contract.serialize(it)
+        it.result.toString()
+    }
+
+    @Test
+    fun testAccept() {
+        val table = tuples.drop(1).fold(TupleTableContract(tuples[0])) { table, tuple -> table.withTuple(tuple) }
+
+        assertEquals(3, table.rowCount)
+        assertSame(table, table.withTuple(generateRTuple(listOf("A", "C"), "D")))
+        tuples.forEach { assertTrue(SignatureContract.accept(table, it)) }
+        assertFalse(SignatureContract.accept(table, generateRTuple(listOf("A", "B"), "D")))
+        assertEquals(setOf("A", "D", "E"), SignatureContract.getAllReturnTypes(table))
+    }
+
+    @Test
+    fun testSerializedAsAutomaton() {
+        val table = tuples.drop(1).fold(TupleTableContract(tuples[0])) { table, tuple -> table.withTuple(tuple) }
+        val automaton = RSignatureContract(tuples[0])
+        tuples.drop(1).forEach { automaton.addRTuple(it) }
+        automaton.minimize()
+
+        assertEquals(serialize(automaton), serialize(table))
+        assertEquals(automaton.nodeCount, table.nodeCount)
+    }
+
+    @Test
+    fun testMerge() {
+        val table = TupleTableContract(tuples[0]).withTuple(tuples[1])
+        val automaton = RSignatureContract(tuples[2])
+
+        val tableIntoAutomaton = RSignatureContract.mergeMutably(automaton, table)
+        val automatonIntoTable = RSignatureContract.mergeMutably(table, RSignatureContract(tuples[2]))
+
+        tuples.forEach {
+            assertTrue(SignatureContract.accept(tableIntoAutomaton, it))
+            assertTrue(SignatureContract.accept(automatonIntoTable, it))
+        }
+        assertEquals(serialize(tableIntoAutomaton), serialize(automatonIntoTable))
+    }
+
+    @Test
+    fun testContainerPromotesBigTables() {
+        val container = RSignatureContractContainer(ContractBudget.UNLIMITED, 2)
+        val methodInfo = tuples[0].methodInfo
+
+        container.addTuple(tuples[0])
+        container.addTuple(tuples[1])
+        assertTrue(container.getSignature(methodInfo) is TupleTableContract)
+
+        container.addTuple(tuples[2])
+        assertTrue(container.getSignature(methodInfo) is RSignatureContract)
+        tuples.forEach { assertTrue(container.acceptTuple(it)) }
+    }
+}
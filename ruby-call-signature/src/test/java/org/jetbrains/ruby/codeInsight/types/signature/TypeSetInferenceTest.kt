@@ -0,0 +1,62 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+
+class TypeSetInferenceTest : SignatureContractTestBase() {
+
+    private fun infer(contract: SignatureContract, vararg argumentTypes: Set<String>) =
+            TypeSetInference().inferReturnTypeNames(contract, argumentTypes.toList())
+
+    @Test
+    fun testLiteralTypes() {
+        val contract = generateMultipleReturnTypeContract()
+        contract.minimize()
+
+        assertEquals(setOf("b2", "c2", "d2"), infer(contract, setOf("a1")))
+        assertEquals(emptySet<String>(), infer(contract, setOf("x1")))
+    }
+
+    @Test
+    fun testUnionArgumentTypes() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "B"), "R1"))
+        contract.addRTuple(generateRTuple(listOf("C", "D"), "R2"))
+        contract.addRTuple(generateRTuple(listOf("C", "B"), "R3"))
+        contract.minimize()
+
+        assertEquals(setOf("R1", "R3"), infer(contract, setOf("A", "C"), setOf("B")))
+        assertEquals(setOf("R2", "R3"), infer(contract, setOf("C"), setOf("B", "D")))
+        assertEquals(setOf("R1", "R2", "R3"), infer(contract, setOf("A", "C", "X"), setOf("B", "D")))
+    }
+
+    @Test
+    fun testReferenceTypes() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "A"), "A"))
+        contract.addRTuple(generateRTuple(listOf("B", "C"), "B"))
+        contract.minimize()
+
+        assertEquals(setOf("A"), infer(contract, setOf("A"), setOf("A")))
+        assertEquals(setOf("B"), infer(contract, setOf("B"), setOf("C")))
+        assertEquals(setOf("A", "B"), infer(contract, setOf("A", "B"), setOf("A", "C")))
+        assertEquals(emptySet<String>(), infer(contract, setOf("A"), setOf("C")))
+    }
+
+    @Test
+    fun testWidenedPositions() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "B"), "R"))
+        contract.addRTuple(generateRTuple(listOf("C", "B"), "R"))
+        contract.addRTuple(generateRTuple(listOf("D", "B"), "R"))
+        contract.budget = ContractBudget(Int.MAX_VALUE, 3)
+
+        assertEquals(0, contract.wideningDecisions.single().position)
+        assertEquals(setOf("R"), infer(contract, setOf("X"), setOf("B")))
+    }
+
+    @Test
+    fun testInternedIds() {
+        val inference = TypeSetInference()
+        val ids = inference.toBitSet(listOf("A", "B"))
+
+        assertEquals(inference.intern("B"), ids.nextSetBit(inference.intern("A") + 1))
+        assertEquals(setOf("A", "B"), inference.toTypeNames(ids))
+    }
+}
@@ -0,0 +1,49 @@
+package org.jetbrains.ruby.codeInsight.types.signature.contractTransition
+
+import junit.framework.TestCase
+import org.junit.Test
+import java.util.*
+
+class ReferenceContractTransitionTest : TestCase() {
+
+    @Test
+    fun testIntMaskHashCode() {
+        listOf(1, 5, Int.MAX_VALUE, Int.MIN_VALUE, -1).forEach {
+            val transition = ReferenceContractTransition(it)
+            assertEquals(it, transition.hashCode())
+            assertEquals(transition, ReferenceContractTransition(it.toLong() and 0xFFFFFFFFL))
+        }
+    }
+
+    @Test
+    fun testWideMask() {
+        val positions = BitSet().apply { set(3); set(63); set(64); set(200) }
+        val transition = ReferenceContractTransition.fromBitSet(positions)
+
+        assertTrue(transition.isWide)
+        assertEquals(listOf(3, 63, 64, 200), listOf(0, 4, 64, 65).map { transition.nextPosition(it) })
+        assertEquals(-1, transition.nextPosition(201))
+        assertTrue(transition.isSet(200))
+        assertFalse(transition.isSet(199))
+        assertEquals(transition, ReferenceContractTransition.fromWords(transition.toWords()))
+        assertEquals(transition.hashCode(), ReferenceContractTransition.fromBitSet(positions).hashCode())
+    }
+
+    @Test
+    fun testTrailingZeroWordsAreTrimmed() {
+        val transition = ReferenceContractTransition.fromWords(longArrayOf(6, 0, 0))
+
+        assertFalse(transition.isWide)
+        assertEquals(ReferenceContractTransition(6L), transition)
+        assertEquals(6, transition.hashCode())
+    }
+
+    @Test
+    fun testGetValue() {
+        val readTypes = List(70) { setOf("A", "B$it") }
+        val transition = ReferenceContractTransition.fromBitSet(BitSet().apply { set(2); set(66) })
+
+        assertEquals(setOf("A"), transition.getValue(readTypes))
+        assertEquals(setOf("A", "B66"), ReferenceContractTransition.fromBitSet(BitSet().apply { set(66) }).getValue(readTypes))
+    }
+}
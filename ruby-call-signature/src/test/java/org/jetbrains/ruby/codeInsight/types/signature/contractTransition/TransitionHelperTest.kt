@@ -0,0 +1,50 @@
+package org.jetbrains.ruby.codeInsight.types.signature.contractTransition
+
+import junit.framework.TestCase
+import org.junit.Test
+
+class TransitionHelperTest : TestCase() {
+    private fun doTest(args: List<String>, returnType: String) {
+        val transitions = TransitionHelper.calculateTransitions(args, returnType)
+
+        assertEquals(args.size + 1, transitions.size)
+        args.forEachIndexed { index, type ->
+            assertEquals(TransitionHelper.calculateTransition(args, index, type), transitions[index])
+        }
+        assertEquals(TransitionHelper.calculateTransition(args, args.size, returnType), transitions[args.size])
+    }
+
+    @Test
+    fun testDistinctTypes() {
+        doTest(listOf("String", "Integer", "Symbol"), "Array")
+    }
+
+    @Test
+    fun testRepeatedTypes() {
+        doTest(listOf("String", "Integer", "String", "String", "Integer"), "String")
+    }
+
+    @Test
+    fun testWideArity() {
+        doTest(List(40) { "T${it % 7}" }, "T3")
+        doTest(List(100) { "T${it % 7}" }, "T3")
+    }
+
+    @Test
+    fun testReferenceBeyondLongMask() {
+        val args = List(100) { if (it == 1 || it == 90) "Same" else "T$it" }
+        val transitions = TransitionHelper.calculateTransitions(args, "Same")
+
+        val reference = transitions[100] as ReferenceContractTransition
+        assertTrue(reference.isWide)
+        assertEquals(listOf(1, 90), generateSequence(reference.nextPosition(0)) {
+            reference.nextPosition(it + 1).takeIf { it >= 0 }
+        }.toList())
+        assertEquals(ReferenceContractTransition(1L shl 1), transitions[90])
+    }
+
+    @Test
+    fun testNoArgs() {
+        doTest(emptyList(), "NilClass")
+    }
+}
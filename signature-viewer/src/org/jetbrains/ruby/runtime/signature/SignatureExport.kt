@@ -1,42 +1,68 @@
 package org.jetbrains.ruby.runtime.signature
 
-import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.RmcDirectoryImpl
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
 import org.jetbrains.ruby.codeInsight.types.storage.server.StorageException
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.RSignatureProviderImpl
 import java.io.File
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 
 fun main(arg : Array<String>) {
     DatabaseProvider.connect()
 
-    val outputDir = File(parseCommandLine(arg))
+    val (outputPath, threads) = parseCommandLine(arg)
+    val outputDir = File(outputPath)
 
     if (!outputDir.exists()) {
         outputDir.mkdirs()
     }
     val rmcDirectory = RmcDirectoryImpl(outputDir)
 
-
     val provider = RSignatureProviderImpl()
+    val start = System.currentTimeMillis()
+    // every gem is read by a single query in its own transaction and compressed on the same thread
+    val executor = Executors.newFixedThreadPool(threads)
     try {
-        for (gem in provider.registeredGems) {
-            val signatureInfos = ArrayList<SignatureInfo>()
-            for (clazz in provider.getRegisteredClasses(gem)) {
-                provider.getRegisteredMethods(clazz).mapNotNullTo(signatureInfos) { provider.getSignature(it) }
+        val gems = provider.registeredGems
+        gems.map { gem ->
+            executor.submit {
+                val gemStart = System.currentTimeMillis()
+                val signatureInfos = provider.getRegisteredSignatures(gem)
+                rmcDirectory.save(gem, signatureInfos)
+                println("${gem.name}-${gem.version}: ${signatureInfos.size} signatures " +
+                        "in ${System.currentTimeMillis() - gemStart} ms")
             }
-            rmcDirectory.save(gem, signatureInfos)
-        }
+        }.forEach { it.get() }
+        println("Exported ${gems.size} gems in ${System.currentTimeMillis() - start} ms using $threads threads")
     } catch (e: StorageException) {
         e.printStackTrace()
+    } catch (e: ExecutionException) {
+        e.cause?.printStackTrace()
+    } finally {
+        executor.shutdownNow()
     }
 
 }
 
-fun parseCommandLine(arg: Array<String>): String {
-    if (arg.size != 1) {
-        println("Usage: <path-to-output-dir>")
+/**
+ * @return the directory and the number of threads given as `[--threads N] <path-to-dir>`
+ */
+fun parseCommandLine(arg: Array<String>): Pair<String, Int> {
+    var threads = Runtime.getRuntime().availableProcessors()
+    val paths = ArrayList<String>()
+    var i = 0
+    while (i < arg.size) {
+        if (arg[i] == "--threads" && i + 1 < arg.size) {
+            threads = arg[++i].toIntOrNull() ?: 0
+        } else {
+            paths.add(arg[i])
+        }
+        i++
+    }
+    if (paths.size != 1 || threads <= 0) {
+        println("Usage: [--threads <count>] <path-to-dir>")
         System.exit(-1)
     }
-    return arg[0]
+    return Pair(paths[0], threads)
 }
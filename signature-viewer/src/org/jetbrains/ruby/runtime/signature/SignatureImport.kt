@@ -1,15 +1,21 @@
 package org.jetbrains.ruby.runtime.signature
 
+import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.RmcDirectoryImpl
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
 import org.jetbrains.ruby.codeInsight.types.storage.server.StorageException
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.RSignatureProviderImpl
 import java.io.File
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
 
 fun main(arg : Array<String>) {
     DatabaseProvider.connect()
 
-    val inputDirectory = File(parseCommandLine(arg))
+    val (inputPath, threads) = parseCommandLine(arg)
+    val inputDirectory = File(inputPath)
 
     if (!inputDirectory.exists()) {
         inputDirectory.mkdirs()
@@ -17,13 +23,41 @@ fun main(arg : Array<String>) {
     val rmcDirectory = RmcDirectoryImpl(inputDirectory)
 
     val provider = RSignatureProviderImpl()
+    val start = System.currentTimeMillis()
+    // gems are decompressed by the pool while this thread alone writes them, one transaction per gem;
+    // at most 2 * threads loaded gems are kept in memory
+    val executor = Executors.newFixedThreadPool(threads)
+    val completionService = ExecutorCompletionService<Pair<GemInfo, List<SignatureInfo>>>(executor)
     try {
-        rmcDirectory.listGems()
-                .map { rmcDirectory.load(it) }
-                .forEach { signatureInfos -> signatureInfos.forEach { provider.putSignature(it) } }
+        val gems = rmcDirectory.listGems()
+        val pending = gems.iterator()
+        var inFlight = 0
+        while (inFlight < 2 * threads && pending.hasNext()) {
+            val gem = pending.next()
+            completionService.submit { Pair(gem, rmcDirectory.load(gem)) }
+            inFlight++
+        }
+        while (inFlight > 0) {
+            val (gem, signatureInfos) = completionService.take().get()
+            inFlight--
+            if (pending.hasNext()) {
+                val next = pending.next()
+                completionService.submit { Pair(next, rmcDirectory.load(next)) }
+                inFlight++
+            }
+
+            val gemStart = System.currentTimeMillis()
+            provider.putSignatures(signatureInfos)
+            println("${gem.name}-${gem.version}: ${signatureInfos.size} signatures " +
+                    "in ${System.currentTimeMillis() - gemStart} ms")
+        }
+        println("Imported ${gems.size} gems in ${System.currentTimeMillis() - start} ms using $threads threads")
     } catch (e: StorageException) {
         e.printStackTrace()
+    } catch (e: ExecutionException) {
+        e.cause?.printStackTrace()
+    } finally {
+        executor.shutdownNow()
     }
 
 }
-
@@ -3,6 +3,7 @@ package org.jetbrains.ruby.runtime.signature
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureContract
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureProvider
 import org.jetbrains.ruby.codeInsight.types.storage.server.StorageException
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.RSignatureProviderImpl
 
@@ -47,8 +48,19 @@ fun main(args : Array<String>) {
         }
         println("All loaded")
 
+        // "accepts <type>" and "returns <type>" list the methods from the type index, anything else is a method name
         while (true) {
-            val line = readLine()
+            val line = readLine() ?: break
+            val role = when {
+                line.startsWith("accepts ") -> RSignatureProvider.TypeRole.ARGUMENT
+                line.startsWith("returns ") -> RSignatureProvider.TypeRole.RETURN
+                else -> null
+            }
+            if (role != null) {
+                provider.getMethodsByType(line.substringAfter(' ').trim(), role)
+                        .forEach { println(it.classInfo.classFQN + "#" + it.name) }
+                continue
+            }
             map[line]?.let { it.forEach { dumpSignatureInfo(it)} }
         }
     } catch (e: StorageException) {
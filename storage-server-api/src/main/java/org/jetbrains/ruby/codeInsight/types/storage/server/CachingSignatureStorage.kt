@@ -0,0 +1,265 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server
+
+import org.jetbrains.ruby.codeInsight.types.signature.ClassInfo
+import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
+import org.jetbrains.ruby.codeInsight.types.signature.MethodInfo
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
+import org.jetbrains.exposed.sql.transactions.transaction
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Consumer
+
+/**
+ * Read-through cache of the signatures, the methods of the classes and the classes of the FQNs read from the storage,
+ * so that only the first lookup of a key reads the database. The lookups finding nothing are cached too.
+ *
+ * The entries are evicted in the least recently used order once their total weight exceeds [maxWeight]; the weight
+ * of a signature is the [estimated size][org.jetbrains.ruby.codeInsight.types.signature.SignatureContract.estimatedSize]
+ * of its contract, the weight of a collection grows with its size.
+ *
+ * The entries are invalidated by the writes made through this storage, the ones made around it (e.g. by another
+ * instance of the storage) are not seen until [invalidateAll] is called. The writes made in an enclosing transaction
+ * are only visible to the other threads once it is committed, so such a transaction should be run by [inTransaction],
+ * which invalidates the written entries again after the commit.
+ */
+class CachingSignatureStorage<T : RSignatureStorage.Packet> @JvmOverloads constructor(
+        private val delegate: RSignatureStorage<T>,
+        private val maxWeight: Long = DEFAULT_MAX_WEIGHT
+) : RSignatureStorage<T> {
+
+    private class Entry(val value: Any?, val weight: Long)
+
+    private data class ClassKey(val gemName: String?, val gemVersion: String?, val classFQN: String)
+
+    private data class MethodKey(val classKey: ClassKey, val name: String)
+
+    private data class FqnKey(val classFQN: String)
+
+    /**
+     * Guards itself, [loadingTokens] and [weight]
+     */
+    private val entries = LinkedHashMap<Any, Entry>(16, 0.75f, true)
+
+    /**
+     * Token of the last load started for every key being loaded, the load stores its result only if its token
+     * is not replaced nor removed by an invalidation in the meantime
+     */
+    private val loadingTokens = HashMap<Any, Any>()
+    private var weight = 0L
+
+    /**
+     * The entries written by the transaction of the current thread run by [inTransaction]
+     */
+    private val pendingInvalidation = ThreadLocal<PendingInvalidation?>()
+
+    private class PendingInvalidation {
+        val keys = HashSet<Any>()
+        var all = false
+
+        fun contains(key: Any) = all || key in keys
+    }
+
+    private val hits = AtomicLong(0)
+    private val misses = AtomicLong(0)
+    private val evictions = AtomicLong(0)
+
+    val stats: Stats
+        get() = synchronized(entries) { Stats(hits.get(), misses.get(), evictions.get(), entries.size, weight) }
+
+    class Stats(val hitCount: Long, val missCount: Long, val evictionCount: Long, val size: Int, val weight: Long) {
+        val hitRate: Double
+            get() = if (hitCount + missCount == 0L) 0.0 else hitCount.toDouble() / (hitCount + missCount)
+
+        override fun toString() = "hits: $hitCount, misses: $missCount, evictions: $evictionCount, " +
+                "entries: $size, weight: $weight"
+    }
+
+    fun invalidateAll() {
+        pendingInvalidation.get()?.all = true
+        synchronized(entries) {
+            entries.clear()
+            loadingTokens.clear()
+            weight = 0
+        }
+    }
+
+    /**
+     * Runs the statement in a transaction and invalidates the entries written in it once more after the transaction
+     * ends, so that the loads of the other threads made before the commit are not kept. The entries written
+     * in the transaction are not cached for the current thread until then, as they may be rolled back.
+     */
+    fun <R> inTransaction(statement: () -> R): R {
+        if (pendingInvalidation.get() != null) {
+            return statement()
+        }
+
+        val pending = PendingInvalidation()
+        pendingInvalidation.set(pending)
+        try {
+            return transaction { statement() }
+        } finally {
+            pendingInvalidation.remove()
+            if (pending.all) invalidateAll() else invalidate(pending.keys)
+        }
+    }
+
+    override fun getSignature(method: MethodInfo): SignatureInfo? =
+            cached(method.key(), { it?.contract?.estimatedSize ?: 0L }) { delegate.getSignature(method) }
+
+    override fun getRegisteredMethods(containerClass: ClassInfo): Collection<MethodInfo> =
+            cached(containerClass.key(), { it.size * ELEMENT_WEIGHT }) {
+                Collections.unmodifiableList(ArrayList(delegate.getRegisteredMethods(containerClass)))
+            }
+
+    override fun getAllClassesWithFQN(fqn: String): Collection<ClassInfo> =
+            cached(FqnKey(fqn), { it.size * ELEMENT_WEIGHT }) {
+                Collections.unmodifiableList(ArrayList(delegate.getAllClassesWithFQN(fqn)))
+            }
+
+    override fun putSignature(signatureInfo: SignatureInfo) {
+        invalidatingAfter(listOf(signatureInfo.methodInfo)) { delegate.putSignature(signatureInfo) }
+    }
+
+    override fun putSignatures(signatureInfos: Collection<SignatureInfo>) {
+        invalidatingAfter(signatureInfos.map { it.methodInfo }) { delegate.putSignatures(signatureInfos) }
+    }
+
+    override fun deleteSignature(method: MethodInfo) {
+        // the method itself stays registered
+        try {
+            delegate.deleteSignature(method)
+        } finally {
+            invalidate(listOf(method.key()))
+        }
+    }
+
+    override fun deleteGem(gem: GemInfo) {
+        // the cached classes and methods of the gem are not indexed by it
+        try {
+            delegate.deleteGem(gem)
+        } finally {
+            invalidateAll()
+        }
+    }
+
+    override fun mergeSignatures(signatureInfos: Collection<SignatureInfo>,
+                                 onlyStoredMethods: Boolean): Collection<SignatureInfo> =
+            invalidatingAfter(signatureInfos.map { it.methodInfo }) {
+                delegate.mergeSignatures(signatureInfos, onlyStoredMethods)
+            }
+
+    override fun readPacket(packet: T) {
+        invalidatingAfter(packet.signatures.map { it.methodInfo }) { delegate.readPacket(packet) }
+    }
+
+    override fun formPackets(descriptor: RSignatureStorage.ExportDescriptor?, consumer: Consumer<in T>) {
+        delegate.formPackets(descriptor, consumer)
+    }
+
+    override fun getLastChangeVersion(): Int = delegate.lastChangeVersion
+
+    override fun readChanges(sinceVersion: Int, consumer: Consumer<in RSignatureStorage.SignatureChange>) {
+        delegate.readChanges(sinceVersion, consumer)
+    }
+
+    override fun getRegisteredGems(): Collection<GemInfo> = delegate.registeredGems
+
+    override fun getClosestRegisteredGem(usedGem: GemInfo): GemInfo? = delegate.getClosestRegisteredGem(usedGem)
+
+    override fun getRegisteredClasses(gem: GemInfo): Collection<ClassInfo> = delegate.getRegisteredClasses(gem)
+
+    override fun getRegisteredSignatures(gem: GemInfo): Collection<SignatureInfo> = delegate.getRegisteredSignatures(gem)
+
+    override fun getMethodsByType(typeName: String, role: RSignatureProvider.TypeRole): Collection<MethodInfo> =
+            delegate.getMethodsByType(typeName, role)
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <V> cached(key: Any, weigh: (V) -> Long, load: () -> V): V {
+        val token = Any()
+        synchronized(entries) {
+            entries[key]?.let {
+                hits.incrementAndGet()
+                return it.value as V
+            }
+            loadingTokens[key] = token
+        }
+        misses.incrementAndGet()
+
+        val value = try {
+            load()
+        } catch (e: Throwable) {
+            synchronized(entries) {
+                if (loadingTokens[key] === token) {
+                    loadingTokens.remove(key)
+                }
+            }
+            throw e
+        }
+
+        val entry = Entry(value, ENTRY_WEIGHT + weigh(value))
+        val uncommitted = pendingInvalidation.get()?.contains(key) ?: false
+        synchronized(entries) {
+            if (loadingTokens[key] === token) {
+                loadingTokens.remove(key)
+                if (!uncommitted && entry.weight <= maxWeight) {
+                    weight += entry.weight - (entries.put(key, entry)?.weight ?: 0)
+                    evict()
+                }
+            }
+        }
+        return value
+    }
+
+    private fun evict() {
+        val iterator = entries.values.iterator()
+        while (weight > maxWeight && iterator.hasNext()) {
+            weight -= iterator.next().weight
+            iterator.remove()
+            evictions.incrementAndGet()
+        }
+    }
+
+    /**
+     * Invalidates the entries of the methods after the write, so that a load racing with it either sees the written
+     * data or does not store what it has read; the write made in an enclosing transaction is only seen after
+     * the commit, so its entries are invalidated again by [inTransaction]
+     */
+    private inline fun <R> invalidatingAfter(methods: Collection<MethodInfo>, write: () -> R): R {
+        try {
+            return write()
+        } finally {
+            // the write may register new methods and classes
+            invalidate(methods.flatMap { listOf(it.key(), it.classInfo.key(), FqnKey(it.classInfo.classFQN)) })
+        }
+    }
+
+    private fun invalidate(keys: Collection<Any>) {
+        pendingInvalidation.get()?.keys?.addAll(keys)
+        synchronized(entries) {
+            keys.forEach { key ->
+                entries.remove(key)?.let { weight -= it.weight }
+                loadingTokens.remove(key)
+            }
+        }
+    }
+
+    private fun ClassInfo.key() = ClassKey(gemInfo?.name, gemInfo?.version, classFQN)
+
+    /**
+     * Methods are looked up by their class and name only, see [RSignatureProvider.getSignature]
+     */
+    private fun MethodInfo.key() = MethodKey(classInfo.key(), name)
+
+    companion object {
+        /**
+         * Estimated size in bytes of the cached entries
+         */
+        const val DEFAULT_MAX_WEIGHT = 32L shl 20
+
+        /**
+         * Size of the entry itself, its key and the bookkeeping of the map
+         */
+        private const val ENTRY_WEIGHT = 128L
+        private const val ELEMENT_WEIGHT = 64L
+    }
+}
@@ -4,31 +4,30 @@ import org.jetbrains.ruby.codeInsight.types.signature.ClassInfo
 import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
 import org.jetbrains.ruby.codeInsight.types.signature.MethodInfo
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
+import java.util.function.Consumer
 
 class DiffPreservingStorage<T : RSignatureStorage.Packet>(
         private val receivedDataStorage: RSignatureStorage<T>,
         private val localDataStorage: RSignatureStorage<T>
 ) : RSignatureStorage<T> {
     override fun readPacket(packet: T) {
-        receivedDataStorage.readPacket(packet)
-        localDataStorage.readPacket(packet)
-
-        packet.signatures.forEach { signatureInfo ->
-            val methodInfo = signatureInfo.methodInfo
-
-            val localContract = localDataStorage.getSignature(methodInfo)
-                    ?: throw AssertionError("contract should be present after reading packets; " +
-                    "methodInfo=$methodInfo")
+        // the packet is decoded once and every method is merged once into each of the storages
+        val signatures = RSignatureStorage.mergeByMethod(packet.signatures)
+        receivedDataStorage.mergeSignatures(signatures, false)
+        // the local storage keeps only the contracts which may differ from the received ones,
+        // so the methods it does not have yet are not copied there
+        localDataStorage.mergeSignatures(signatures, true)
+    }
 
-            // local contracts are already merged at this point
-            if (localContract.contract == signatureInfo.contract) {
-                localDataStorage.deleteSignature(methodInfo)
-            }
-        }
+    override fun formPackets(descriptor: RSignatureStorage.ExportDescriptor?, consumer: Consumer<in T>) {
+        localDataStorage.formPackets(descriptor, consumer)
     }
 
-    override fun formPackets(descriptor: RSignatureStorage.ExportDescriptor?): MutableCollection<T> {
-        return localDataStorage.formPackets(descriptor)
+    // all the writes of this storage but the received packets go to the local one
+    override fun getLastChangeVersion(): Int = localDataStorage.lastChangeVersion
+
+    override fun readChanges(sinceVersion: Int, consumer: Consumer<in RSignatureStorage.SignatureChange>) {
+        localDataStorage.readChanges(sinceVersion, consumer)
     }
 
     override fun getRegisteredGems(): Collection<GemInfo> {
@@ -69,6 +68,14 @@ class DiffPreservingStorage<T : RSignatureStorage.Packet>(
         }
     }
 
+    override fun getMethodsByType(typeName: String, role: RSignatureProvider.TypeRole): MutableCollection<MethodInfo> {
+        return HashSet<MethodInfo>().let {
+            it.addAll(receivedDataStorage.getMethodsByType(typeName, role))
+            it.addAll(localDataStorage.getMethodsByType(typeName, role))
+            it
+        }
+    }
+
     override fun getSignature(method: MethodInfo): SignatureInfo? {
         return localDataStorage.getSignature(method)
                 ?: receivedDataStorage.getSignature(method)
@@ -78,7 +85,25 @@ class DiffPreservingStorage<T : RSignatureStorage.Packet>(
         localDataStorage.deleteSignature(method)
     }
 
+    override fun deleteGem(gem: GemInfo) {
+        // the received signatures of the gem would be read otherwise
+        receivedDataStorage.deleteGem(gem)
+        localDataStorage.deleteGem(gem)
+    }
+
     override fun putSignature(signatureInfo: SignatureInfo) {
         localDataStorage.putSignature(signatureInfo)
     }
+
+    override fun getRegisteredSignatures(gem: GemInfo): MutableCollection<SignatureInfo> {
+        return LinkedHashMap<MethodInfo, SignatureInfo>().let { result ->
+            receivedDataStorage.getRegisteredSignatures(gem).forEach { result[it.methodInfo] = it }
+            localDataStorage.getRegisteredSignatures(gem).forEach { result[it.methodInfo] = it }
+            result.values
+        }
+    }
+
+    override fun putSignatures(signatureInfos: Collection<SignatureInfo>) {
+        localDataStorage.putSignatures(signatureInfos)
+    }
 }
\ No newline at end of file
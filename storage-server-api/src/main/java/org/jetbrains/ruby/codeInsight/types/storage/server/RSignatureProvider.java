@@ -49,6 +49,37 @@ public interface RSignatureProvider {
 
     void deleteSignature(@NotNull MethodInfo method) throws StorageException;
 
+    /**
+     * Deletes the gem together with its classes, their methods and signatures
+     */
+    void deleteGem(@NotNull GemInfo gem) throws StorageException;
+
     void putSignature(@NotNull SignatureInfo signatureInfo) throws StorageException;
 
+    /**
+     * Reads the signatures of all the methods of the gem with a single query,
+     * rather than one query per class and per method
+     */
+    @NotNull
+    Collection<SignatureInfo> getRegisteredSignatures(@NotNull GemInfo gem) throws StorageException;
+
+    /**
+     * Stores the signatures as {@link #putSignature(SignatureInfo)} does, in a single transaction
+     */
+    void putSignatures(@NotNull Collection<? extends SignatureInfo> signatureInfos) throws StorageException;
+
+    /**
+     * Looks the methods up in the reverse index from the type names to the methods which contracts read them,
+     * the contracts themselves are not read. The index is updated whenever a contract is stored.
+     *
+     * @param typeName the fully qualified name of the type
+     * @param role     whether the methods should accept an argument of the type or return it
+     */
+    @NotNull
+    Collection<MethodInfo> getMethodsByType(@NotNull String typeName, @NotNull TypeRole role) throws StorageException;
+
+    enum TypeRole {
+        ARGUMENT,
+        RETURN
+    }
 }
@@ -4,24 +4,87 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.ruby.codeInsight.types.signature.*;
 
-import java.util.Collection;
+import java.util.*;
+import java.util.function.Consumer;
 
 public interface RSignatureStorage<T extends RSignatureStorage.Packet> extends RSignatureProvider {
 
     default void readPacket(@NotNull T packet) throws StorageException {
-        for (final SignatureInfo signatureInfo : packet.getSignatures()) {
+        mergeSignatures(packet.getSignatures(), false);
+    }
+
+    /**
+     * Merges the signatures with the stored ones of the same methods and stores the results
+     * with {@link #putSignatures(Collection)}. Signatures of the same method are merged together first.
+     *
+     * @param onlyStoredMethods whether the signatures of the methods which have no stored signature are skipped
+     * @return the stored signatures
+     */
+    @NotNull
+    default Collection<SignatureInfo> mergeSignatures(@NotNull Collection<? extends SignatureInfo> signatureInfos,
+                                                      boolean onlyStoredMethods) throws StorageException {
+        final List<SignatureInfo> merged = new ArrayList<>();
+        for (final SignatureInfo signatureInfo : mergeByMethod(signatureInfos)) {
             final MethodInfo methodInfo = signatureInfo.getMethodInfo();
             final SignatureInfo oldSignature = getSignature(methodInfo);
 
-            putSignature(oldSignature == null ? signatureInfo : SignatureInfoKt.SignatureInfo(
-                    methodInfo,
-                    RSignatureContract.mergeMutably(oldSignature.getContract(), signatureInfo.getContract())
-            ));
+            if (oldSignature != null) {
+                merged.add(SignatureInfoKt.SignatureInfo(
+                        methodInfo,
+                        RSignatureContract.mergeMutably(oldSignature.getContract(), signatureInfo.getContract())
+                ));
+            } else if (!onlyStoredMethods) {
+                merged.add(signatureInfo);
+            }
         }
+        putSignatures(merged);
+        return merged;
     }
 
+    /**
+     * Forms all the packets at once, prefer {@link #formPackets(ExportDescriptor, Consumer)} for big storages
+     */
+    @NotNull
+    default Collection<T> formPackets(@Nullable ExportDescriptor descriptor) throws StorageException {
+        final List<T> packets = new ArrayList<>();
+        formPackets(descriptor, packets::add);
+        return packets;
+    }
+
+    /**
+     * Passes every packet to the consumer as soon as it is formed, so that the packets need not be kept in memory
+     * together. Every packet can be read by {@link #readPacket(Packet)} on its own.
+     */
+    void formPackets(@Nullable ExportDescriptor descriptor, @NotNull Consumer<? super T> consumer) throws StorageException;
+
+    /**
+     * @return a single signature per method in the order of the first occurrence, signatures of the same method are
+     * merged together
+     */
     @NotNull
-    Collection<T> formPackets(@Nullable ExportDescriptor descriptor) throws StorageException;
+    static Collection<SignatureInfo> mergeByMethod(@NotNull Collection<? extends SignatureInfo> signatureInfos) {
+        final Map<MethodInfo, SignatureInfo> result = new LinkedHashMap<>();
+        for (final SignatureInfo signatureInfo : signatureInfos) {
+            result.merge(signatureInfo.getMethodInfo(), signatureInfo, (first, second) -> SignatureInfoKt.SignatureInfo(
+                    first.getMethodInfo(),
+                    RSignatureContract.mergeMutably(first.getContract(), second.getContract())
+            ));
+        }
+        return result.values();
+    }
+
+    /**
+     * @return the version of the last change of the stored signatures, 0 if there were no changes
+     */
+    int getLastChangeVersion() throws StorageException;
+
+    /**
+     * Passes the changes of the stored signatures made after the given version to the consumer in the order of their
+     * versions. Only the last change of every method is kept, so a method changed a few times is passed once.
+     *
+     * @param sinceVersion the version of the last change known to the caller, 0 to read all the changes
+     */
+    void readChanges(int sinceVersion, @NotNull Consumer<? super SignatureChange> consumer) throws StorageException;
 
     class ExportDescriptor {
         private final boolean myInclude;
@@ -44,6 +107,47 @@ public interface RSignatureStorage<T extends RSignatureStorage.Packet> extends R
         }
     }
 
+    class SignatureChange {
+        public enum Kind {
+            PUT, DELETE
+        }
+
+        private final int myVersion;
+        private final long myTimestamp;
+        @NotNull
+        private final MethodInfo myMethodInfo;
+        @NotNull
+        private final Kind myKind;
+
+        public SignatureChange(int version, long timestamp, @NotNull MethodInfo methodInfo, @NotNull Kind kind) {
+            myVersion = version;
+            myTimestamp = timestamp;
+            myMethodInfo = methodInfo;
+            myKind = kind;
+        }
+
+        public int getVersion() {
+            return myVersion;
+        }
+
+        /**
+         * @return the time of the change in milliseconds
+         */
+        public long getTimestamp() {
+            return myTimestamp;
+        }
+
+        @NotNull
+        public MethodInfo getMethodInfo() {
+            return myMethodInfo;
+        }
+
+        @NotNull
+        public Kind getKind() {
+            return myKind;
+        }
+    }
+
     interface Packet {
         Collection<SignatureInfo> getSignatures();
     }
@@ -1,69 +1,154 @@
 package org.jetbrains.ruby.codeInsight.types.storage.server
 
+import org.jetbrains.exposed.dao.EntityID
 import org.jetbrains.exposed.sql.*
 import org.jetbrains.exposed.sql.transactions.transaction
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.MethodInfo
-import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.readSignatureContract
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serializeCompact
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.*
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.util.function.Consumer
+
+/**
+ * @param maxPacketSize the size in bytes after which a packet is passed to the consumer,
+ * a single signature bigger than that forms a packet on its own
+ * @param fetchSize the number of the signatures read from the database at once
+ */
+class SignatureStorageImpl @JvmOverloads constructor(
+        private val maxPacketSize: Int = PacketImpl.DEFAULT_MAX_PACKET_SIZE,
+        private val fetchSize: Int = DEFAULT_FETCH_SIZE
+) : RSignatureStorage<PacketImpl>, RSignatureProvider by RSignatureProviderImpl() {
+
+    override fun formPackets(descriptor: RSignatureStorage.ExportDescriptor?, consumer: Consumer<in PacketImpl>) {
+        val builder = PacketImpl.Builder(maxPacketSize, consumer)
+        transaction {
+            val join = GemInfoTable innerJoin ClassInfoTable innerJoin MethodInfoTable innerJoin SignatureTable innerJoin
+                    ContractTable
+            // the rows are read page by page in the order of their ids, so only a page of decoded contracts
+            // and a single packet are held in memory
+            var lastId = 0
+            do {
+                val after = EntityID(lastId, SignatureTable)
+                val page = join.select {
+                    if (descriptor == null) {
+                        SignatureTable.id greater after
+                    } else {
+                        MyInListOrNotInListOp(
+                                listOf(GemInfoTable.name, GemInfoTable.version),
+                                descriptor.gemsToIncludeOrExclude.map { listOf(it.name, it.version) },
+                                descriptor.isInclude
+                        ) and (SignatureTable.id greater after)
+                    }
+                }.orderBy(SignatureTable.id).limit(fetchSize).toList()
+
+                page.forEach { builder.add(SignatureInfo(it)) }
+                page.lastOrNull()?.let { lastId = it[SignatureTable.id].value }
+            } while (page.size == fetchSize)
+        }
+        builder.finish()
+    }
 
-class SignatureStorageImpl : RSignatureStorage<PacketImpl>, RSignatureProvider by RSignatureProviderImpl() {
-    override fun formPackets(descriptor: RSignatureStorage.ExportDescriptor?): MutableCollection<PacketImpl> {
-        val contractData = transaction {
-            val join = GemInfoTable innerJoin ClassInfoTable innerJoin MethodInfoTable innerJoin SignatureTable
-            val resultsIterable = if (descriptor == null) {
-                join.selectAll()
-            } else {
-                join.select {
-                    MyInListOrNotInListOp(
-                            listOf(GemInfoTable.name, GemInfoTable.version),
-                            descriptor.gemsToIncludeOrExclude.map { listOf(it.name, it.version) },
-                            descriptor.isInclude
-                    )
-                }
-            }
-
-            resultsIterable.toList().map { SignatureInfo(it) }
+    override fun mergeSignatures(signatureInfos: Collection<SignatureInfo>,
+                                 onlyStoredMethods: Boolean): Collection<SignatureInfo> {
+        // every batch is read, merged and written in a single transaction instead of a few per method
+        val signatures = RSignatureStorage.mergeByMethod(signatureInfos).toList()
+        val merged = ArrayList<SignatureInfo>(signatures.size)
+        for (from in 0 until signatures.size step fetchSize) {
+            val batch = signatures.subList(from, minOf(from + fetchSize, signatures.size))
+            merged.addAll(transaction { super.mergeSignatures(batch, onlyStoredMethods) })
         }
+        return merged
+    }
+
+    override fun getLastChangeVersion(): Int = transaction { ChangeJournal.lastVersion() }
+
+    override fun readChanges(sinceVersion: Int, consumer: Consumer<in RSignatureStorage.SignatureChange>) {
+        transaction { ChangeJournal.read(sinceVersion, fetchSize, consumer) }
+    }
 
-        return PacketImpl.createPacketsBySignatureContracts(contractData)
+    companion object {
+        const val DEFAULT_FETCH_SIZE = 1000
     }
 }
 
 class PacketImpl(val data: ByteArray) : RSignatureStorage.Packet {
-
-    override fun getSignatures(): MutableCollection<SignatureInfo> {
+    // decoded on the first request only, the storages read the same packet a few times
+    private val decodedSignatures: MutableList<SignatureInfo> by lazy {
         val inputStream = ByteArrayInputStream(data)
         val dataInput = DataInputStream(inputStream)
 
         val contractsCount = dataInput.readInt()
 
-        return Array(contractsCount, {
+        val result = ArrayList<SignatureInfo>(contractsCount)
+        repeat(contractsCount) {
             val info = MethodInfo(dataInput)
-            val contract = SignatureContract(dataInput)
-            SignatureInfo(info, contract)
-        }).toMutableList()
+            val contract = readSignatureContract(dataInput)
+            result.add(SignatureInfo(info, contract))
+        }
+        result
     }
 
-    companion object {
-        fun createPacketsBySignatureContracts(contractData: List<SignatureInfo>): ArrayList<PacketImpl> {
-            val outputStream = ByteArrayOutputStream()
-            val dataOut = DataOutputStream(outputStream)
-
-            dataOut.writeInt(contractData.size)
+    override fun getSignatures(): MutableCollection<SignatureInfo> = decodedSignatures
+
+    /**
+     * Writes the signatures one by one and passes a packet to the consumer before it grows over [maxPacketSize]
+     */
+    class Builder(private val maxPacketSize: Int, private val consumer: Consumer<in PacketImpl>) {
+        private val packetOutputStream = ByteArrayOutputStream()
+        private val signatureOutputStream = ByteArrayOutputStream()
+        private val signatureDataOut = DataOutputStream(signatureOutputStream)
+        private var count = 0
+        private var packetCount = 0
+
+        fun add(signatureInfo: SignatureInfo) {
+            signatureOutputStream.reset()
+            signatureInfo.methodInfo.serialize(signatureDataOut)
+            signatureInfo.contract.serializeCompact(signatureDataOut)
+
+            if (count > 0 && Integer.BYTES + packetOutputStream.size() + signatureOutputStream.size() > maxPacketSize) {
+                flush()
+            }
+            signatureOutputStream.writeTo(packetOutputStream)
+            count++
+        }
 
-            for (data in contractData) {
-                val info = data.methodInfo
-                val contract = data.contract
-                info.serialize(dataOut)
-                contract.serialize(dataOut)
+        /**
+         * Passes the last packet to the consumer, an empty one if there were no signatures at all
+         */
+        fun finish() {
+            if (count > 0 || packetCount == 0) {
+                flush()
             }
-            return ArrayList(listOf(PacketImpl(outputStream.toByteArray())))
+        }
+
+        private fun flush() {
+            val outputStream = ByteArrayOutputStream(Integer.BYTES + packetOutputStream.size())
+            DataOutputStream(outputStream).writeInt(count)
+            packetOutputStream.writeTo(outputStream)
+
+            packetOutputStream.reset()
+            count = 0
+            packetCount++
+            consumer.accept(PacketImpl(outputStream.toByteArray()))
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_PACKET_SIZE = 16 shl 20
+
+        fun createPacketsBySignatureContracts(contractData: List<SignatureInfo>,
+                                              maxPacketSize: Int = DEFAULT_MAX_PACKET_SIZE): ArrayList<PacketImpl> {
+            val packets = ArrayList<PacketImpl>()
+            val builder = Builder(maxPacketSize, Consumer { packets.add(it) })
+            contractData.forEach { builder.add(it) }
+            builder.finish()
+            return packets
         }
 
     }
@@ -0,0 +1,112 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.sql.*
+import org.jetbrains.ruby.codeInsight.types.signature.ClassInfo
+import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
+import org.jetbrains.ruby.codeInsight.types.signature.Location
+import org.jetbrains.ruby.codeInsight.types.signature.MethodInfo
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureStorage.SignatureChange
+import java.util.function.Consumer
+
+/**
+ * Maintains [SignatureChangeTable], the journal of the changes of the stored signatures.
+ *
+ * The journal is compacted as it is written: every method, looked up by its class and name, keeps only the row
+ * of its last change, which gets the next version of the [CounterTable] every time. So the changes since a version
+ * are the methods changed after it in the order of their last changes, and the versions are never reused even if
+ * the rows having them are compacted away.
+ */
+object ChangeJournal {
+    private const val VERSION_COUNTER = "change_journal"
+
+    /**
+     * Creates the counter of the versions unless it exists, must be called in a transaction
+     */
+    fun init() {
+        if (CounterTable.select { CounterTable.name eq VERSION_COUNTER }.empty()) {
+            CounterTable.insert {
+                it[CounterTable.name] = VERSION_COUNTER
+                it[CounterTable.value] = 0
+            }
+        }
+    }
+
+    /**
+     * Records the change of the signature of the method, must be called in the transaction changing it
+     * before the method is deleted
+     */
+    fun record(method: MethodInfo, kind: SignatureChange.Kind) {
+        // the update locks the counter, so the versions are taken in the order of the commits
+        CounterTable.update({ CounterTable.name eq VERSION_COUNTER }) {
+            with(SqlExpressionBuilder) { it.update(CounterTable.value, CounterTable.value + 1) }
+        }
+        val version = lastVersion()
+
+        val gem = method.classInfo.gemInfo
+        SignatureChangeTable.deleteWhere {
+            val gemClause = if (gem == null) {
+                SignatureChangeTable.gemName.isNull()
+            } else {
+                (SignatureChangeTable.gemName eq gem.name) and (SignatureChangeTable.gemVersion eq gem.version)
+            }
+            (SignatureChangeTable.methodName eq method.name) and
+                    (SignatureChangeTable.classFqn eq method.classInfo.classFQN) and
+                    gemClause
+        }
+        SignatureChangeTable.insert {
+            it[SignatureChangeTable.version] = version
+            it[SignatureChangeTable.gemName] = gem?.name
+            it[SignatureChangeTable.gemVersion] = gem?.version
+            it[SignatureChangeTable.classFqn] = method.classInfo.classFQN
+            it[SignatureChangeTable.methodName] = method.name
+            it[SignatureChangeTable.visibility] = method.visibility
+            it[SignatureChangeTable.locationFile] = method.location?.path
+            it[SignatureChangeTable.locationLineno] = method.location?.lineno ?: 0
+            it[SignatureChangeTable.kind] = kind
+            it[SignatureChangeTable.changedAt] = System.currentTimeMillis()
+        }
+    }
+
+    /**
+     * @return the version of the last change, 0 if there were no changes; must be called in a transaction
+     */
+    fun lastVersion(): Int {
+        return CounterTable.slice(CounterTable.value)
+                .select { CounterTable.name eq VERSION_COUNTER }
+                .firstOrNull()
+                ?.get(CounterTable.value)
+                ?: 0
+    }
+
+    /**
+     * Passes the changes made after the given version to the consumer reading [pageSize] of them at once,
+     * must be called in a transaction
+     */
+    fun read(sinceVersion: Int, pageSize: Int, consumer: Consumer<in SignatureChange>) {
+        var lastVersion = sinceVersion
+        do {
+            val after = lastVersion
+            val page = SignatureChangeTable.select { SignatureChangeTable.version greater after }
+                    .orderBy(SignatureChangeTable.version)
+                    .limit(pageSize)
+                    .toList()
+
+            page.forEach { consumer.accept(SignatureChange(it)) }
+            page.lastOrNull()?.let { lastVersion = it[SignatureChangeTable.version] }
+        } while (page.size == pageSize)
+    }
+
+    private fun SignatureChange(row: ResultRow): SignatureChange {
+        val gemName = row[SignatureChangeTable.gemName]
+        val gemVersion = row[SignatureChangeTable.gemVersion]
+        val gem = if (gemName != null && gemVersion != null) GemInfo(gemName, gemVersion) else null
+        val location = row[SignatureChangeTable.locationFile]?.let {
+            Location(it, row[SignatureChangeTable.locationLineno])
+        }
+
+        val method = MethodInfo.Impl(ClassInfo(gem, row[SignatureChangeTable.classFqn]),
+                row[SignatureChangeTable.methodName], row[SignatureChangeTable.visibility], location)
+        return SignatureChange(row[SignatureChangeTable.version], row[SignatureChangeTable.changedAt],
+                method, row[SignatureChangeTable.kind])
+    }
+}
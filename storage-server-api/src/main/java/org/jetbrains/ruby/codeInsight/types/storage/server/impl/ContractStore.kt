@@ -0,0 +1,100 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.dao.EntityID
+import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.ruby.codeInsight.types.signature.RSignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.BlobSerializer
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.contentHash
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.readSignatureContract
+import java.io.DataInputStream
+import java.sql.Blob
+import java.util.Collections
+
+/**
+ * Maintains [ContractTable], the contracts stored once per [contentHash] and shared by the signatures referring to them.
+ *
+ * Every stored contract counts the signatures referring to it and is deleted together with the last of them.
+ * The signatures are deleted through [RSignatureProviderImpl], which releases their contracts before the cascade
+ * from their gems deletes them.
+ * The decoded contracts are cached by their hashes, so the methods sharing a contract share its decoded instance,
+ * which is immutable for that reason.
+ */
+object ContractStore {
+    private const val CACHE_SIZE = 4096
+
+    private val decodedContracts: MutableMap<String, SignatureContract> = Collections.synchronizedMap(
+            object : LinkedHashMap<String, SignatureContract>(16, 0.75f, true) {
+                override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, SignatureContract>) =
+                        size > CACHE_SIZE
+            })
+
+    /**
+     * Finds the stored contract equal to the given one or stores it, and counts one more reference to it;
+     * must be called in a transaction
+     *
+     * @return the id of the stored contract
+     */
+    fun acquire(contract: SignatureContract): EntityID<Int> {
+        val hash = contract.contentHash()
+        val existingId = ContractTable.slice(ContractTable.id)
+                .select { ContractTable.hash eq hash }
+                .firstOrNull()
+                ?.get(ContractTable.id)
+
+        if (existingId != null) {
+            ContractTable.update({ ContractTable.id eq existingId }) {
+                with(SqlExpressionBuilder) { it.update(ContractTable.refCount, ContractTable.refCount + 1) }
+            }
+            return existingId
+        }
+
+        val blob = TransactionManager.current().connection.createBlob()
+        try {
+            val id = ContractTable.insertAndGetId {
+                it[ContractTable.hash] = hash
+                it[ContractTable.contract] = BlobSerializer.writeToBlob(contract, blob)
+                it[ContractTable.refCount] = 1
+            } ?: throw IllegalStateException("Could not insert contract: $hash")
+            decodedContracts.putIfAbsent(hash, shared(contract))
+            return id
+        } finally {
+            blob.free()
+        }
+    }
+
+    /**
+     * Counts [count] references less to the stored contract and deletes it if there are no more references;
+     * must be called in a transaction after the referring signatures are deleted or changed
+     */
+    @JvmOverloads
+    fun release(contractId: EntityID<Int>, count: Int = 1) {
+        ContractTable.update({ ContractTable.id eq contractId }) {
+            with(SqlExpressionBuilder) { it.update(ContractTable.refCount, ContractTable.refCount - count) }
+        }
+        ContractTable.deleteWhere { (ContractTable.id eq contractId) and (ContractTable.refCount lessEq 0) }
+    }
+
+    /**
+     * @param row a row having the columns of [ContractTable]
+     */
+    fun decode(row: ResultRow): SignatureContract = decode(row[ContractTable.hash], row[ContractTable.contract])
+
+    /**
+     * @return the cached contract of the given hash, the blob is read only if there is no such contract; the blob is freed
+     */
+    fun decode(hash: String, blob: Blob): SignatureContract {
+        try {
+            decodedContracts[hash]?.let { return it }
+
+            val contract = shared(readSignatureContract(DataInputStream(blob.binaryStream)))
+            return decodedContracts.putIfAbsent(hash, contract) ?: contract
+        } finally {
+            blob.free()
+        }
+    }
+
+    private fun shared(contract: SignatureContract): SignatureContract =
+            (contract as? RSignatureContract)?.snapshot() ?: contract
+}
@@ -0,0 +1,109 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.dao.EntityID
+import org.jetbrains.exposed.dao.IntIdTable
+import org.jetbrains.exposed.sql.*
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.readSignatureContract
+import org.jetbrains.ruby.codeInsight.types.storage.server.StorageException
+import java.io.DataInputStream
+
+/**
+ * The version of the schema the database was created or migrated with, a single row
+ */
+object SchemaVersionTable : Table() {
+    val version = integer("version")
+}
+
+/**
+ * The signatures of the unversioned schema, which stored the contract of every method in place;
+ * only read by the migration of [DatabaseSchema]
+ */
+object LegacySignatureTable : IntIdTable("Signature") {
+    val methodInfo = reference("method_info", MethodInfoTable, ReferenceOption.CASCADE)
+    val contract = blob("contract")
+}
+
+/**
+ * Creates the tables of the storage and migrates the ones of the older schemas.
+ *
+ * Version 0 is the unversioned schema, the signatures of which are moved to [SignatureTable] and [ContractTable]
+ * by the migration. A database of a newer version than [VERSION] is not touched.
+ */
+object DatabaseSchema {
+    const val VERSION = 1
+
+    private const val MIGRATION_PAGE_SIZE = 256
+
+    private val tables = listOf(GemInfoTable, ClassInfoTable, MethodInfoTable, ContractTable, SignatureTable,
+            TypeNameTable, MethodTypeTable, SignatureChangeTable, CounterTable, SchemaVersionTable)
+
+    /**
+     * Creates the missing tables and migrates the existing ones to [VERSION], must be called in a transaction
+     */
+    fun create() {
+        val version = storedVersion()
+        if (version > VERSION) {
+            throw StorageException("The database schema version $version is newer than the supported $VERSION")
+        }
+
+        // the contracts were stored in place before they got their own table
+        val legacy = version < 1 && LegacySignatureTable.exists() && !ContractTable.exists()
+        SchemaUtils.create(*tables.toTypedArray())
+        ChangeJournal.init()
+        if (legacy) {
+            migrateSignatures()
+        }
+
+        if (version != VERSION) {
+            SchemaVersionTable.deleteAll()
+            SchemaVersionTable.insert { it[SchemaVersionTable.version] = VERSION }
+        }
+    }
+
+    /**
+     * Drops all the tables, must be called in a transaction
+     */
+    fun drop() {
+        SchemaUtils.drop(*tables.asReversed().toTypedArray())
+    }
+
+    private fun storedVersion(): Int {
+        if (!SchemaVersionTable.exists()) {
+            return 0
+        }
+        return SchemaVersionTable.selectAll().firstOrNull()?.get(SchemaVersionTable.version) ?: 0
+    }
+
+    /**
+     * Stores the in place contracts in [ContractTable] once per content and drops the legacy table,
+     * the type index is built from the migrated signatures by [TypeIndex.ensureBuilt]
+     */
+    private fun migrateSignatures() {
+        var lastId = 0
+        do {
+            val after = EntityID(lastId, LegacySignatureTable)
+            val page = LegacySignatureTable.select { LegacySignatureTable.id greater after }
+                    .orderBy(LegacySignatureTable.id)
+                    .limit(MIGRATION_PAGE_SIZE)
+                    .toList()
+
+            page.forEach {
+                val blob = it[LegacySignatureTable.contract]
+                val contract = try {
+                    readSignatureContract(DataInputStream(blob.binaryStream))
+                } finally {
+                    blob.free()
+                }
+
+                val contractId = ContractStore.acquire(contract)
+                SignatureTable.insert { row ->
+                    row[SignatureTable.methodInfo] = it[LegacySignatureTable.methodInfo]
+                    row[SignatureTable.contract] = contractId
+                }
+            }
+            page.lastOrNull()?.let { lastId = it[LegacySignatureTable.id].value }
+        } while (page.size == MIGRATION_PAGE_SIZE)
+
+        SchemaUtils.drop(LegacySignatureTable)
+    }
+}
@@ -9,6 +9,7 @@ import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
 import org.jetbrains.ruby.codeInsight.types.signature.MethodInfo
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
 import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureStorage
 import org.jetbrains.ruby.codeInsight.types.storage.server.StorageException
 
 class RSignatureProviderImpl : RSignatureProvider {
@@ -95,7 +96,10 @@ class RSignatureProviderImpl : RSignatureProvider {
             val methodId = findMethodId(method)
                     ?: return@transaction null
 
-            SignatureContractData.find { SignatureTable.methodInfo.eq(methodId) }.firstOrNull()?.copy()
+            (SignatureTable innerJoin ContractTable)
+                    .select { SignatureTable.methodInfo.eq(methodId) }
+                    .firstOrNull()
+                    ?.let { SignatureInfo(MethodInfoData[methodId].copy(), ContractStore.decode(it)) }
         }
     }
 
@@ -104,7 +108,35 @@ class RSignatureProviderImpl : RSignatureProvider {
             val methodId = findMethodId(method)
                     ?: return@transaction
 
+            val contractIds = SignatureTable.slice(SignatureTable.contract)
+                    .select { SignatureTable.methodInfo eq methodId }
+                    .map { it[SignatureTable.contract] }
             SignatureTable.deleteWhere { SignatureTable.methodInfo eq methodId }
+            contractIds.forEach { ContractStore.release(it) }
+            TypeIndex.remove(methodId)
+            if (contractIds.isNotEmpty()) {
+                ChangeJournal.record(MethodInfoData[methodId], RSignatureStorage.SignatureChange.Kind.DELETE)
+            }
+        }
+    }
+
+    override fun deleteGem(gem: GemInfo) {
+        transaction {
+            val gemIds = GemInfoTable.slice(GemInfoTable.id)
+                    .select { GemInfoTable.name.eq(gem.name) and GemInfoTable.version.eq(gem.version) }
+                    .map { it[GemInfoTable.id] }
+
+            gemIds.forEach { gemId ->
+                // the cascade deletes the signatures of the gem without releasing their contracts nor journaling them
+                val signatures = (GemInfoTable innerJoin ClassInfoTable innerJoin MethodInfoTable innerJoin SignatureTable)
+                        .select { GemInfoTable.id eq gemId }
+                        .map { MethodInfo(it) to it[SignatureTable.contract] }
+                signatures.forEach { ChangeJournal.record(it.first, RSignatureStorage.SignatureChange.Kind.DELETE) }
+                GemInfoTable.deleteWhere { GemInfoTable.id eq gemId }
+                signatures.groupingBy { it.second }.eachCount().forEach { (contractId, count) ->
+                    ContractStore.release(contractId, count)
+                }
+            }
         }
     }
 
@@ -166,14 +198,49 @@ class RSignatureProviderImpl : RSignatureProvider {
                         ?: throw StorageException("Could not retrieve not insert method info: $givenMethodInfo")
             }
 
-            val existingContractData = SignatureContractData.find { SignatureTable.methodInfo eq methodInfoData.id }
+            val contractId = ContractStore.acquire(signatureInfo.contract)
+            val existingSignature = SignatureTable.slice(SignatureTable.id, SignatureTable.contract)
+                    .select { SignatureTable.methodInfo eq methodInfoData.id }
                     .firstOrNull()
 
-            if (existingContractData != null) {
-                existingContractData.contract = signatureInfo.contract
+            if (existingSignature != null) {
+                val oldContractId = existingSignature[SignatureTable.contract]
+                if (oldContractId != contractId) {
+                    SignatureTable.update({ SignatureTable.id eq existingSignature[SignatureTable.id] }) {
+                        it[SignatureTable.contract] = contractId
+                    }
+                }
+                ContractStore.release(oldContractId)
             } else {
-                SignatureContractData.new { this.methodInfo = methodInfoData; contract = signatureInfo.contract }
+                SignatureTable.insert {
+                    it[SignatureTable.methodInfo] = methodInfoData.id
+                    it[SignatureTable.contract] = contractId
+                }
             }
+            TypeIndex.update(methodInfoData.id, signatureInfo.contract)
+            ChangeJournal.record(methodInfoData, RSignatureStorage.SignatureChange.Kind.PUT)
+        }
+    }
+
+    override fun getRegisteredSignatures(gem: GemInfo): Collection<SignatureInfo> {
+        return transaction {
+            (GemInfoTable innerJoin ClassInfoTable innerJoin MethodInfoTable innerJoin SignatureTable innerJoin ContractTable)
+                    .select { GemInfoTable.name.eq(gem.name) and GemInfoTable.version.eq(gem.version) }
+                    .map { SignatureInfo(it) }
+        }
+    }
+
+    override fun putSignatures(signatureInfos: Collection<SignatureInfo>) {
+        transaction {
+            signatureInfos.forEach { putSignature(it) }
+        }
+    }
+
+    override fun getMethodsByType(typeName: String, role: RSignatureProvider.TypeRole): Collection<MethodInfo> {
+        return transaction {
+            (MethodTypeTable innerJoin TypeNameTable innerJoin MethodInfoTable)
+                    .select { (TypeNameTable.name eq typeName) and (MethodTypeTable.role eq role) }
+                    .map { MethodInfoData.wrapRow(it, TransactionManager.current()).copy() }
         }
     }
 
@@ -2,8 +2,6 @@ package org.jetbrains.ruby.codeInsight.types.storage.server.impl
 
 import org.jetbrains.exposed.sql.ResultRow
 import org.jetbrains.ruby.codeInsight.types.signature.*
-import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
-import java.io.DataInputStream
 
 fun GemInfo(row: ResultRow): GemInfo = GemInfo(row[GemInfoTable.name], row[GemInfoTable.version])
 
@@ -22,11 +20,4 @@ fun MethodInfo(row: ResultRow): MethodInfo = MethodInfo.Impl(
         row[MethodInfoTable.visibility],
         Location(row))
 
-fun SignatureInfo(row: ResultRow): SignatureInfo {
-    val blob = row[SignatureTable.contract]
-    try {
-        return SignatureInfo(MethodInfo(row), SignatureContract(DataInputStream(blob.binaryStream)))
-    } finally {
-        blob.free()
-    }
-}
\ No newline at end of file
+fun SignatureInfo(row: ResultRow): SignatureInfo = SignatureInfo(MethodInfo(row), ContractStore.decode(row))
@@ -5,8 +5,12 @@ import org.jetbrains.exposed.dao.IntEntity
 import org.jetbrains.exposed.dao.IntEntityClass
 import org.jetbrains.exposed.dao.IntIdTable
 import org.jetbrains.exposed.sql.ReferenceOption
+import org.jetbrains.exposed.sql.Table
 import org.jetbrains.ruby.codeInsight.types.signature.*
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.BlobDeserializer
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.CONTENT_HASH_LENGTH
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureStorage
 import java.sql.Blob
 import kotlin.reflect.KProperty
 
@@ -67,18 +71,85 @@ class MethodInfoData(id: EntityID<Int>) : IntEntity(id), MethodInfo {
     fun copy() = MethodInfo(this)
 }
 
-object SignatureTable : IntIdTable() {
-    val methodInfo = reference("method_info", MethodInfoTable, ReferenceOption.CASCADE)
+/**
+ * Contracts stored once per content, the signatures of the methods refer to them, see [ContractStore]
+ */
+object ContractTable : IntIdTable() {
+    val hash = varchar("hash", CONTENT_HASH_LENGTH).uniqueIndex()
     val contract = blob("contract")
+    val refCount = integer("ref_count")
+}
+
+class ContractData(id: EntityID<Int>) : IntEntity(id) {
+    companion object : IntEntityClass<ContractData>(ContractTable)
+
+    val hash: String by ContractTable.hash
+    val contract: SignatureContract by BlobDeserializer()
+
+    val contractRaw: Blob by ContractTable.contract
+}
+
+/**
+ * The signatures of the methods, named apart from the in place contracts of the unversioned schema,
+ * see [DatabaseSchema]
+ */
+object SignatureTable : IntIdTable("MethodSignature") {
+    val methodInfo = reference("method_info", MethodInfoTable, ReferenceOption.CASCADE)
+    val contract = reference("contract", ContractTable)
 }
 
 class SignatureContractData(id: EntityID<Int>) : IntEntity(id), SignatureInfo {
     companion object : IntEntityClass<SignatureContractData>(SignatureTable)
 
     override var methodInfo: MethodInfoData by MethodInfoData referencedOn SignatureTable.methodInfo
-    override var contract: SignatureContract by BlobDeserializer()
-
-    var contractRaw: Blob by SignatureTable.contract
+    val contractData: ContractData by ContractData referencedOn SignatureTable.contract
+    override val contract: SignatureContract
+        get() = contractData.contract
 
     fun copy() = SignatureInfo(this)
-}
\ No newline at end of file
+}
+
+/**
+ * Interned names of the types read by the stored contracts
+ */
+object TypeNameTable : IntIdTable() {
+    val name = varchar("name", ClassInfo.LENGTH_OF_FQN).uniqueIndex()
+}
+
+/**
+ * Reverse index from the type names to the methods which contracts read them, see [TypeIndex]
+ */
+object MethodTypeTable : Table() {
+    val methodInfo = reference("method_info", MethodInfoTable, ReferenceOption.CASCADE).index()
+    val typeName = reference("type_name", TypeNameTable, ReferenceOption.CASCADE)
+    val role = enumeration("role", RSignatureProvider.TypeRole::class.java)
+
+    init {
+        index(false, typeName, role)
+    }
+}
+
+/**
+ * The last change of the signature of every method, see [ChangeJournal]. The methods are stored in place,
+ * so that the deletions outlive them.
+ */
+object SignatureChangeTable : Table() {
+    val version = integer("version").uniqueIndex()
+    val gemName = varchar("gem_name", GemInfo.LENGTH_OF_GEMNAME).nullable()
+    val gemVersion = varchar("gem_version", GemInfo.LENGTH_OF_GEMVERSION).nullable()
+    val classFqn = varchar("class_fqn", ClassInfo.LENGTH_OF_FQN)
+    val methodName = varchar("method_name", MethodInfo.LENGTH_OF_NAME).index()
+    val visibility = enumeration("visibility", RVisibility::class.java)
+    val locationFile = varchar("location_file", MethodInfo.LENGTH_OF_PATH).nullable()
+    val locationLineno = integer("location_lineno").default(0)
+    val kind = enumeration("kind", RSignatureStorage.SignatureChange.Kind::class.java)
+    val changedAt = long("changed_at")
+}
+
+/**
+ * Named counters which never go back, e.g. the version of the last change of [ChangeJournal]
+ */
+object CounterTable : Table() {
+    val name = varchar("name", 50).primaryKey()
+    val value = integer("value")
+}
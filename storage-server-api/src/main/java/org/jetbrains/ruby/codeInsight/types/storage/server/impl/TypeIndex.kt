@@ -0,0 +1,96 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.dao.EntityID
+import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.jetbrains.ruby.codeInsight.types.signature.ClassInfo
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureProvider.TypeRole
+
+/**
+ * Maintains [MethodTypeTable], the reverse index from the type names to the methods accepting or returning them.
+ *
+ * The types of a contract are taken from its [SignatureContract.returnTypeSummary], so the reference
+ * transitions are resolved to the literal types. Storing a contract only writes the links which changed.
+ */
+object TypeIndex {
+
+    /**
+     * Replaces the links of the method with the ones of the given contract, must be called in a transaction
+     */
+    fun update(methodId: EntityID<Int>, contract: SignatureContract) {
+        val summary = contract.returnTypeSummary
+        val expected = HashSet<Pair<String, TypeRole>>()
+        summary.allArgumentTypes.forEach { expected.add(it to TypeRole.ARGUMENT) }
+        summary.allReturnTypes.forEach { expected.add(it to TypeRole.RETURN) }
+        expected.removeAll { it.first.length > ClassInfo.LENGTH_OF_FQN }
+
+        val existing = HashMap<Pair<String, TypeRole>, EntityID<Int>>()
+        (MethodTypeTable innerJoin TypeNameTable)
+                .select { MethodTypeTable.methodInfo eq methodId }
+                .forEach { existing[it[TypeNameTable.name] to it[MethodTypeTable.role]] = it[MethodTypeTable.typeName] }
+
+        for ((key, typeId) in existing) {
+            if (key !in expected) {
+                MethodTypeTable.deleteWhere {
+                    (MethodTypeTable.methodInfo eq methodId) and
+                            (MethodTypeTable.typeName eq typeId) and
+                            (MethodTypeTable.role eq key.second)
+                }
+            }
+        }
+
+        val added = expected.filter { it !in existing }
+        if (added.isEmpty()) {
+            return
+        }
+
+        val typeIds = intern(added.mapTo(HashSet()) { it.first })
+        MethodTypeTable.batchInsert(added) { (name, role) ->
+            this[MethodTypeTable.methodInfo] = methodId
+            this[MethodTypeTable.typeName] = typeIds[name]!!
+            this[MethodTypeTable.role] = role
+        }
+    }
+
+    /**
+     * Removes all the links of the method, must be called in a transaction
+     */
+    fun remove(methodId: EntityID<Int>) {
+        MethodTypeTable.deleteWhere { MethodTypeTable.methodInfo eq methodId }
+    }
+
+    /**
+     * Builds the index of the stored contracts if it is empty, e.g. for a database created before the index existed
+     */
+    fun ensureBuilt() {
+        transaction {
+            if (MethodTypeTable.selectAll().limit(1).empty() && !SignatureTable.selectAll().limit(1).empty()) {
+                rebuild()
+            }
+        }
+    }
+
+    /**
+     * Recalculates the index from scratch, must be called in a transaction
+     */
+    fun rebuild() {
+        MethodTypeTable.deleteAll()
+        (SignatureTable innerJoin ContractTable).selectAll()
+                .forEach { update(it[SignatureTable.methodInfo], ContractStore.decode(it)) }
+    }
+
+    private fun intern(names: Set<String>): Map<String, EntityID<Int>> {
+        val result = HashMap<String, EntityID<Int>>()
+        TypeNameTable.select { TypeNameTable.name inList names }
+                .forEach { result[it[TypeNameTable.name]] = it[TypeNameTable.id] }
+
+        for (name in names) {
+            if (name !in result) {
+                result[name] = TypeNameTable.insertAndGetId { it[TypeNameTable.name] = name }
+                        ?: throw IllegalStateException("Could not insert type name: $name")
+            }
+        }
+        return result
+    }
+}
@@ -1,31 +1,43 @@
 package org.jetbrains.ruby.codeInsight.types.storage.server.impl
 
 import junit.framework.TestCase
-import org.jetbrains.exposed.sql.SchemaUtils
-import org.jetbrains.exposed.sql.Transaction
-import org.jetbrains.exposed.sql.insert
-import org.jetbrains.exposed.sql.insertAndGetId
+import org.jetbrains.exposed.sql.*
 import org.jetbrains.exposed.sql.transactions.TransactionManager
 import org.jetbrains.ruby.codeInsight.types.signature.*
-import org.jetbrains.ruby.codeInsight.types.signature.serialization.BlobSerializer
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.StringDataInput
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import org.jetbrains.ruby.codeInsight.types.storage.server.CachingSignatureStorage
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.PacketImpl
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureStorage
+import org.jetbrains.ruby.codeInsight.types.storage.server.SignatureStorageImpl
+import org.jetbrains.ruby.codeInsight.types.storage.server.RSignatureStorage.SignatureChange
 import org.junit.Test
+import java.io.DataOutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.function.Consumer
+import kotlin.concurrent.thread
 
 class RSignatureProviderTest : TestCase() {
     var transaction: Transaction? = null
 
+    private fun simpleContract() = SignatureContract(StringDataInput(SignatureTestData.simpleContract))
+
+    private fun trivialContract() = SignatureContract(StringDataInput(SignatureTestData.trivialContract))
+
     override fun setUp() {
         DatabaseProvider.connect(true)
         super.setUp()
         transaction = TransactionManager.manager.newTransaction()
-        SchemaUtils.create(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable)
+        DatabaseSchema.create()
     }
 
     override fun tearDown() {
         try {
-            SchemaUtils.drop(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable)
+            DatabaseSchema.drop()
         } finally {
             transaction?.commit()
         }
@@ -127,16 +139,11 @@ class RSignatureProviderTest : TestCase() {
             it[classInfo] = clazz
         }
 
-        val contract1 = SignatureContract(StringDataInput(SignatureTestData.simpleContract))
-        val contract2 = SignatureContract(StringDataInput(SignatureTestData.trivialContract))
+        val contract1 = simpleContract()
+        val contract2 = trivialContract()
 
-        val blob1 = TransactionManager.current().connection.createBlob()
-        SignatureTable.insert { it[contract] = BlobSerializer.writeToBlob(contract1, blob1); it[methodInfo] = method1 }
-        blob1.free()
-
-        val blob2 = TransactionManager.current().connection.createBlob()
-        SignatureTable.insert { it[contract] = BlobSerializer.writeToBlob(contract2, blob2); it[methodInfo] = method2 }
-        blob2.free()
+        SignatureTable.insert { it[contract] = ContractStore.acquire(contract1); it[methodInfo] = method1 }
+        SignatureTable.insert { it[contract] = ContractStore.acquire(contract2); it[methodInfo] = method2 }
 
         val provider = RSignatureProviderImpl()
         val signatureInfo1 = provider.getSignature(MethodInfo(ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn"), "met1", RVisibility.PUBLIC))
@@ -161,8 +168,8 @@ class RSignatureProviderTest : TestCase() {
                 "met2",
                 RVisibility.PUBLIC)
 
-        val contract1 = SignatureContract(StringDataInput(SignatureTestData.simpleContract))
-        val contract2 = SignatureContract(StringDataInput(SignatureTestData.trivialContract))
+        val contract1 = simpleContract()
+        val contract2 = trivialContract()
 
         val provider = RSignatureProviderImpl()
 
@@ -187,8 +194,8 @@ class RSignatureProviderTest : TestCase() {
                 "met1",
                 RVisibility.PUBLIC)
 
-        val contract1 = SignatureContract(StringDataInput(SignatureTestData.simpleContract))
-        val contract2 = SignatureContract(StringDataInput(SignatureTestData.trivialContract))
+        val contract1 = simpleContract()
+        val contract2 = trivialContract()
 
         val provider = RSignatureProviderImpl()
 
@@ -203,6 +210,288 @@ class RSignatureProviderTest : TestCase() {
         assertEquals(2, signatureInfo2!!.contract.nodeCount)
     }
 
+    @Test
+    fun testMethodsByType() {
+        val clazz = ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn")
+        val method1 = MethodInfo(clazz, "met1", RVisibility.PUBLIC)
+        val method2 = MethodInfo(clazz, "met2", RVisibility.PUBLIC)
+
+        val provider = RSignatureProviderImpl()
+        provider.putSignature(SignatureInfo(method1, simpleContract()))
+        provider.putSignature(SignatureInfo(method2, trivialContract()))
+
+        assertEquals(setOf("met1"), provider.getMethodsByType("b", RSignatureProvider.TypeRole.ARGUMENT).map { it.name }.toSet())
+        assertEquals(setOf("met1"), provider.getMethodsByType("d", RSignatureProvider.TypeRole.RETURN).map { it.name }.toSet())
+        assertEquals(setOf("met2"), provider.getMethodsByType("a", RSignatureProvider.TypeRole.RETURN).map { it.name }.toSet())
+        assertTrue(provider.getMethodsByType("d", RSignatureProvider.TypeRole.ARGUMENT).isEmpty())
+
+        provider.putSignature(SignatureInfo(method1, trivialContract()))
+        assertTrue(provider.getMethodsByType("d", RSignatureProvider.TypeRole.RETURN).isEmpty())
+        assertEquals(setOf("met1", "met2"), provider.getMethodsByType("a", RSignatureProvider.TypeRole.RETURN).map { it.name }.toSet())
+
+        provider.deleteSignature(method2)
+        assertEquals(setOf("met1"), provider.getMethodsByType("a", RSignatureProvider.TypeRole.RETURN).map { it.name }.toSet())
+    }
+
+    @Test
+    fun testRegisteredSignatures() {
+        val gem = GemInfo("test_gem", "1.2.3")
+        val methods = listOf(ClassInfo(gem, "Test::Fqn"), ClassInfo(gem, "Test::Other")).flatMap { clazz ->
+            listOf("met1", "met2").map { MethodInfo(clazz, it, RVisibility.PUBLIC) }
+        }
+        val otherMethod = MethodInfo(ClassInfo(GemInfo("test_gem", "1.2.4"), "Test::Fqn"), "met1", RVisibility.PUBLIC)
+
+        val provider = RSignatureProviderImpl()
+        provider.putSignatures(methods.map { SignatureInfo(it, simpleContract()) })
+        provider.putSignature(SignatureInfo(otherMethod, trivialContract()))
+
+        val signatures = provider.getRegisteredSignatures(gem)
+        assertEquals(methods.toSet(), signatures.map { it.methodInfo }.toSet())
+        signatures.forEach { assertEquals(4, it.contract.nodeCount) }
+        assertEquals(listOf(otherMethod), provider.getRegisteredSignatures(otherMethod.classInfo.gemInfo!!).map { it.methodInfo })
+        assertTrue(provider.getRegisteredSignatures(GemInfo("test_gem", "0.1")).isEmpty())
+    }
+
+    @Test
+    fun testBoundedPackets() {
+        val gem = GemInfo("test_gem", "1.2.3")
+        val methods = (0 until 10).map { MethodInfo(ClassInfo(gem, "Test::Fqn$it"), "met", RVisibility.PUBLIC) }
+        val otherMethod = MethodInfo(ClassInfo(GemInfo("test_gem2", "1.2"), "Test::Fqn"), "met", RVisibility.PUBLIC)
+
+        val storage = SignatureStorageImpl(maxPacketSize = 200, fetchSize = 3)
+        storage.putSignatures(methods.map { SignatureInfo(it, simpleContract()) })
+        storage.putSignature(SignatureInfo(otherMethod, trivialContract()))
+
+        val packets = storage.formPackets(null)
+        assertTrue(packets.size > 1)
+        packets.forEach { assertTrue(it.data.size <= 200) }
+        assertEquals(methods.toSet() + otherMethod, packets.flatMap { it.signatures }.map { it.methodInfo }.toSet())
+        assertEquals(11, packets.sumBy { it.signatures.size })
+
+        val excluded = storage.formPackets(RSignatureStorage.ExportDescriptor(false, listOf(gem)))
+        assertEquals(listOf(otherMethod), excluded.flatMap { it.signatures }.map { it.methodInfo })
+        assertEquals(listOf(0), storage.formPackets(RSignatureStorage.ExportDescriptor(true, emptyList())).map { it.signatures.size })
+    }
+
+    @Test
+    fun testReadPacket() {
+        val clazz = ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn")
+        val method1 = MethodInfo(clazz, "met1", RVisibility.PUBLIC)
+        val method2 = MethodInfo(clazz, "met2", RVisibility.PUBLIC)
+
+        val storage = SignatureStorageImpl(fetchSize = 1)
+        storage.putSignature(SignatureInfo(method1, simpleContract()))
+        val packet = PacketImpl.createPacketsBySignatureContracts(listOf(
+                SignatureInfo(method2, trivialContract()),
+                SignatureInfo(method1, simpleContract()),
+                SignatureInfo(method2, trivialContract())
+        )).single()
+        assertSame(packet.signatures, packet.signatures)
+
+        storage.readPacket(packet)
+
+        assertEquals(setOf(method1, method2), storage.getRegisteredMethods(clazz).toSet())
+        assertEquals(4, storage.getSignature(method1)?.contract?.nodeCount)
+        assertEquals(2, storage.getSignature(method2)?.contract?.nodeCount)
+    }
+
+    @Test
+    fun testContractsAreShared() {
+        val clazz = ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn")
+        val methods = listOf("met1", "met2", "met3").map { MethodInfo(clazz, it, RVisibility.PUBLIC) }
+
+        val provider = RSignatureProviderImpl()
+        provider.putSignatures(methods.map { SignatureInfo(it, simpleContract()) })
+
+        assertEquals(listOf(3), ContractTable.selectAll().map { it[ContractTable.refCount] })
+        assertSame(provider.getSignature(methods[0])!!.contract, provider.getSignature(methods[2])!!.contract)
+
+        provider.putSignature(SignatureInfo(methods[0], trivialContract()))
+
+        assertEquals(setOf(1, 2), ContractTable.selectAll().map { it[ContractTable.refCount] }.toSet())
+        assertEquals(2, provider.getSignature(methods[0])!!.contract.nodeCount)
+        assertEquals(4, provider.getSignature(methods[1])!!.contract.nodeCount)
+
+        methods.forEach { provider.deleteSignature(it) }
+        assertTrue(ContractTable.selectAll().empty())
+    }
+
+    @Test
+    fun testDeleteGem() {
+        val gem = GemInfo("test_gem", "1.2.3")
+        val clazz = ClassInfo(gem, "Test::Fqn")
+        val otherClazz = ClassInfo(GemInfo("other_gem", "1.0"), "Test::Fqn")
+        val (method1, method2) = listOf("met1", "met2").map { MethodInfo(clazz, it, RVisibility.PUBLIC) }
+        val otherMethod = MethodInfo(otherClazz, "met1", RVisibility.PUBLIC)
+
+        val storage = CachingSignatureStorage(SignatureStorageImpl())
+        storage.putSignatures(listOf(SignatureInfo(method1, simpleContract()), SignatureInfo(method2, simpleContract()),
+                SignatureInfo(otherMethod, trivialContract())))
+        assertNotNull(storage.getSignature(method1))
+        assertEquals(2, storage.getAllClassesWithFQN("Test::Fqn").size)
+
+        storage.deleteGem(gem)
+
+        assertNull(storage.getSignature(method1))
+        assertEquals(listOf(otherClazz), storage.getAllClassesWithFQN("Test::Fqn").toList())
+        assertEquals(listOf(1), ContractTable.selectAll().map { it[ContractTable.refCount] })
+        assertEquals(2, storage.getSignature(otherMethod)?.contract?.nodeCount)
+    }
+
+    @Test
+    fun testLegacySchemaMigration() {
+        DatabaseSchema.drop()
+        SchemaUtils.create(GemInfoTable, ClassInfoTable, MethodInfoTable, LegacySignatureTable)
+
+        val clazz = ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn")
+        val methods = listOf("met1", "met2", "met3").map { MethodInfo(clazz, it, RVisibility.PUBLIC) }
+        val gemId = GemInfoTable.insertAndGetId { it[name] = "test_gem"; it[version] = "1.2.3" }
+        val classId = ClassInfoTable.insertAndGetId { it[gemInfo] = gemId; it[fqn] = "Test::Fqn" }
+        methods.zip(listOf(simpleContract(), simpleContract(), trivialContract())).forEach { (method, contract) ->
+            val methodId = MethodInfoTable.insertAndGetId {
+                it[name] = method.name
+                it[visibility] = method.visibility
+                it[classInfo] = classId!!
+            }
+            val blob = TransactionManager.current().connection.createBlob()
+            blob.setBinaryStream(1).use { contract.serialize(DataOutputStream(it)) }
+            LegacySignatureTable.insert {
+                it[LegacySignatureTable.methodInfo] = methodId!!
+                it[LegacySignatureTable.contract] = blob
+            }
+        }
+
+        DatabaseSchema.create()
+
+        assertFalse(LegacySignatureTable.exists())
+        assertEquals(listOf(DatabaseSchema.VERSION), SchemaVersionTable.selectAll().map { it[SchemaVersionTable.version] })
+        assertEquals(setOf(1, 2), ContractTable.selectAll().map { it[ContractTable.refCount] }.toSet())
+
+        val provider = RSignatureProviderImpl()
+        assertEquals(listOf(4, 4, 2), methods.map { provider.getSignature(it)?.contract?.nodeCount })
+
+        // the migrated database is not migrated again
+        DatabaseSchema.create()
+        assertEquals(2, ContractTable.selectAll().count())
+    }
+
+    @Test
+    fun testChangeJournal() {
+        val clazz = ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn")
+        val (method1, method2, method3) = listOf("met1", "met2", "met3").map { MethodInfo(clazz, it, RVisibility.PUBLIC) }
+        val simpleContract = simpleContract()
+        val trivialContract = trivialContract()
+
+        val storage = SignatureStorageImpl(fetchSize = 1)
+        assertEquals(0, storage.lastChangeVersion)
+
+        storage.putSignatures(listOf(SignatureInfo(method1, simpleContract), SignatureInfo(method2, trivialContract),
+                SignatureInfo(method3, simpleContract)))
+        val watermark = storage.lastChangeVersion
+        storage.putSignature(SignatureInfo(method1, trivialContract))
+        storage.deleteSignature(method2)
+        storage.deleteSignature(method2)
+
+        val readChanges = { since: Int ->
+            ArrayList<SignatureChange>().also { changes -> storage.readChanges(since, Consumer { changes.add(it) }) }
+        }
+        val all = readChanges(0)
+        assertEquals(listOf(method3 to SignatureChange.Kind.PUT,
+                method1 to SignatureChange.Kind.PUT,
+                method2 to SignatureChange.Kind.DELETE), all.map { it.methodInfo to it.kind })
+        assertEquals(all.map { it.version }.sorted(), all.map { it.version })
+        assertEquals(all.drop(1).map { it.version }, readChanges(watermark).map { it.version })
+        assertTrue(readChanges(storage.lastChangeVersion).isEmpty())
+
+        // the versions of the compacted changes are not reused
+        val lastVersion = storage.lastChangeVersion
+        storage.putSignature(SignatureInfo(method2, simpleContract))
+        storage.deleteSignature(method2)
+        assertEquals(lastVersion + 2, storage.lastChangeVersion)
+
+        // the methods without a gem are journaled as well as the ones of the deleted gems
+        val gemlessMethod = MethodInfo(ClassInfo("Test::Fqn"), "met1", RVisibility.PUBLIC)
+        val since = storage.lastChangeVersion
+        storage.putSignature(SignatureInfo(gemlessMethod, simpleContract))
+        storage.deleteGem(clazz.gemInfo!!)
+        assertEquals(setOf(gemlessMethod to SignatureChange.Kind.PUT,
+                method1 to SignatureChange.Kind.DELETE,
+                method3 to SignatureChange.Kind.DELETE), readChanges(since).map { it.methodInfo to it.kind }.toSet())
+    }
+
+    @Test
+    fun testCachingStorage() {
+        val clazz = ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn")
+        val (method1, method2) = listOf("met1", "met2").map { MethodInfo(clazz, it, RVisibility.PUBLIC) }
+
+        val storage = CachingSignatureStorage(SignatureStorageImpl())
+        storage.putSignature(SignatureInfo(method1, simpleContract()))
+
+        assertEquals(4, storage.getSignature(method1)?.contract?.nodeCount)
+        assertSame(storage.getSignature(method1), storage.getSignature(method1))
+        assertNull(storage.getSignature(method2))
+        assertNull(storage.getSignature(method2))
+        assertEquals(listOf(method1), storage.getRegisteredMethods(clazz).toList())
+        assertEquals(listOf(clazz), storage.getAllClassesWithFQN("Test::Fqn").toList())
+        assertEquals(listOf(clazz), storage.getAllClassesWithFQN("Test::Fqn").toList())
+        assertEquals(4, storage.stats.missCount)
+        assertEquals(4, storage.stats.hitCount)
+
+        storage.putSignature(SignatureInfo(method2, trivialContract()))
+        assertEquals(2, storage.getSignature(method2)?.contract?.nodeCount)
+        assertEquals(setOf(method1, method2), storage.getRegisteredMethods(clazz).toSet())
+
+        storage.deleteSignature(method1)
+        assertNull(storage.getSignature(method1))
+        assertEquals(7, storage.stats.missCount)
+
+        // two lookups finding nothing fit in
+        val small = CachingSignatureStorage(SignatureStorageImpl(), maxWeight = 300)
+        val (method3, method4, method5) = listOf("met3", "met4", "met5").map { MethodInfo(clazz, it, RVisibility.PUBLIC) }
+        listOf(method3, method4, method3, method5).forEach { assertNull(small.getSignature(it)) }
+        assertEquals(1, small.stats.evictionCount)
+        assertEquals(2, small.stats.size)
+
+        // the least recently used one is evicted
+        small.getSignature(method3)
+        assertEquals(2, small.stats.hitCount)
+        small.getSignature(method4)
+        assertEquals(4, small.stats.missCount)
+    }
+
+    @Test
+    fun testCachingStorageInTransaction() {
+        val method = MethodInfo(ClassInfo(GemInfo("test_gem", "1.2.3"), "Test::Fqn"), "met1", RVisibility.PUBLIC)
+        val storage = CachingSignatureStorage(SignatureStorageImpl())
+        val written = CountDownLatch(1)
+        val read = CountDownLatch(1)
+        var writerFailure: Throwable? = null
+
+        // the reader uses the transaction of the test, which does not see the uncommitted write
+        val writer = thread {
+            try {
+                storage.inTransaction {
+                    storage.putSignature(SignatureInfo(method, simpleContract()))
+                    assertEquals(4, storage.getSignature(method)?.contract?.nodeCount)
+                    written.countDown()
+                    assertTrue(read.await(10, TimeUnit.SECONDS))
+                }
+            } catch (e: Throwable) {
+                writerFailure = e
+            }
+        }
+        try {
+            assertTrue(written.await(10, TimeUnit.SECONDS))
+            assertNull(storage.getSignature(method))
+        } finally {
+            read.countDown()
+            writer.join()
+        }
+        writerFailure?.let { throw it }
+
+        assertEquals(4, storage.getSignature(method)?.contract?.nodeCount)
+    }
+
     object SignatureTestData {
         val simpleContract = """
 1 arg 0